@@ -1,30 +1,54 @@
 package org.cryptocoinpartners.bin;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 
 import javax.inject.Inject;
 
 import org.cryptocoinpartners.enumeration.TransactionType;
+import org.cryptocoinpartners.module.BacktestRecorder;
 import org.cryptocoinpartners.module.BasicPortfolioService;
 import org.cryptocoinpartners.module.BasicQuoteService;
 import org.cryptocoinpartners.module.Context;
 import org.cryptocoinpartners.module.MockOrderService;
 import org.cryptocoinpartners.module.xchange.XchangeAccountService;
+import org.cryptocoinpartners.report.TableOutput;
+import org.cryptocoinpartners.schema.Amount;
+import org.cryptocoinpartners.schema.BookFactory;
+import org.cryptocoinpartners.schema.DecimalAmount;
 import org.cryptocoinpartners.schema.DiscreteAmount;
+import org.cryptocoinpartners.schema.Fill;
 import org.cryptocoinpartners.schema.Holding;
 import org.cryptocoinpartners.schema.Portfolio;
 import org.cryptocoinpartners.schema.ReplayFactory;
 import org.cryptocoinpartners.schema.StrategyInstance;
+import org.cryptocoinpartners.schema.TradeFactory;
 import org.cryptocoinpartners.schema.Transaction;
 import org.cryptocoinpartners.schema.TransactionFactory;
 import org.cryptocoinpartners.service.OrderService;
+import org.cryptocoinpartners.util.BinaryEventSource;
+import org.cryptocoinpartners.util.CsvEventSource;
+import org.cryptocoinpartners.util.EventSource;
+import org.cryptocoinpartners.util.IoUtil;
 import org.cryptocoinpartners.util.Replay;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.joda.time.Duration;
 import org.joda.time.Instant;
+import org.joda.time.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
@@ -40,12 +64,15 @@ public class BacktestRunMode extends RunMode {
     protected transient TransactionFactory transactionFactory;
     @Inject
     protected transient ReplayFactory replayFactory;
+    @Inject
+    protected transient TradeFactory tradeFactory;
+    @Inject
+    protected transient BookFactory bookFactory;
 
     @Parameter(description = "Strategy name to load", arity = 1, required = true)
     public List<String> strategyNames;
     private Context context;
     private static ExecutorService service;
-    Semaphore backTestSemaphore = new Semaphore(0);
     //
     //private final Instant start = new DateTime(2015, 02, 15, 0, 0, 0, 0, DateTimeZone.UTC).toInstant();
     // private final Instant start = new DateTime(2015, 8, 30, 16, 50, 0, 0, DateTimeZone.UTC).toInstant();
@@ -69,45 +96,225 @@ public class BacktestRunMode extends RunMode {
     @Parameter(names = { "-" }, description = "No-op switch used to end list of positions before supplying the strategy name")
     boolean noop = false;
 
+    @Parameter(names = { "-s", "--shards" }, description = "split the backtest interval into this many time shards and replay them in parallel")
+    public int shards = 1;
+
+    @Parameter(names = { "-w", "--warmup" }, description = "hours of market data replayed, with trading disabled, ahead of each shard to prime indicators")
+    public int warmUpHours = 24;
+
+    @Parameter(names = { "--csv" }, description = "when sharding, also write the stitched equity curve to this CSV file")
+    public String csvFilename;
+
+    @Parameter(names = { "-e", "--events" }, description = "replay market data from this tick CSV (*.csv) or binary event file instead of the database")
+    public String eventsFilename;
+
     @Override
     public void run(Semaphore semaphore) {
+        if (shards > 1) {
+            runSharded();
+            if (semaphore != null)
+                semaphore.release();
+            return;
+        }
         //PersistUtil.purgeTransactions();
         //Replay replay = Replay.all(true);
         //Replay replay = Replay.between(start, end, true);
-        Replay replay = replayFactory.between(start, end, true, backTestSemaphore);
+        Replay replay = replayFactory.between(start, end, true);
+        replay.setEventSource(openEventSource());
         //  rootInjector.createChildInjector(new PersistanceModule());
 
         context = replay.getContext();
+        setUpContext(context, true);
+        // this should be run on seperate thread
+        //service = Executors.newSingleThreadExecutor();
+        //	Replay replayThread = new Replay();
+        //service.submit(replay);
 
+        replay.run();
+        if (semaphore != null)
+            semaphore.release();
+        //System.exit(0);
+        // todo report P&L, etc.
+    }
+
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.backtest");
+
+    /** @return a source reading eventsFilename, or null to replay from the database */
+    private EventSource openEventSource() {
+        if (eventsFilename == null)
+            return null;
+        try {
+            if (eventsFilename.toLowerCase().endsWith(".csv"))
+                return new CsvEventSource(eventsFilename, tradeFactory, bookFactory);
+            BinaryEventSource source = new BinaryEventSource(eventsFilename, tradeFactory, bookFactory);
+            // backtest replays run in order of time received
+            if (!source.isOrderedByTimeReceived()) {
+                source.close();
+                throw new IllegalArgumentException(eventsFilename + " was exported in order of exchange time; export it again without -by-time");
+            }
+            return source;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open event file " + eventsFilename, e);
+        }
+    }
+
+    private OrderService setUpContext(Context context, boolean tradingEnabled) {
         context.attach(XchangeAccountService.class);
         context.attach(BasicQuoteService.class);
         context.attach(BasicPortfolioService.class);
         context.attach(MockOrderService.class);
         OrderService orderService = context.getInjector().getInstance(OrderService.class);
-        orderService.setTradingEnabled(true);
+        orderService.setTradingEnabled(tradingEnabled);
 
         for (String strategyName : strategyNames) {
             StrategyInstance strategyInstance = new StrategyInstance(strategyName);
             context.attachInstance(strategyInstance);
 
-            setUpInitialPortfolio(strategyInstance);
+            setUpInitialPortfolio(context, strategyInstance);
 
             // context.getInjector().getInstance(cls)
 
         }
-        // this should be run on seperate thread
-        //service = Executors.newSingleThreadExecutor();
-        //	Replay replayThread = new Replay();
-        //service.submit(replay);
+        return orderService;
+    }
 
-        replay.run();
-        if (semaphore != null)
-            semaphore.release();
-        //System.exit(0);
-        // todo report P&L, etc.
+    /**
+     * Splits [start,end) into equal shards and replays each one in its own Context on its own Esper engine.  Every
+     * shard first replays warmUpHours of data with trading disabled so indicators are primed, then records fills and
+     * equity until the end of the shard.  Each shard starts from the initial portfolio, so the stitched equity curve
+     * adds the PnL of all earlier shards to the equity of the later ones.  Shards which end with open positions are
+     * flagged because those positions are not carried into the following shard.
+     */
+    private void runSharded() {
+        Duration shardLength = new Duration(start, end).dividedBy(shards);
+        Duration warmUp = Duration.standardHours(warmUpHours);
+        ExecutorService shardService = Executors.newFixedThreadPool(shards);
+        List<Future<ShardResult>> futures = new ArrayList<Future<ShardResult>>();
+        for (int i = 0; i < shards; i++) {
+            Instant shardStart = start.plus(shardLength.getMillis() * i);
+            Instant shardEnd = i == shards - 1 ? end : shardStart.plus(shardLength);
+            futures.add(shardService.submit(new ShardCallable(i, shardStart, shardEnd, warmUp)));
+        }
+        shardService.shutdown();
+
+        List<ShardResult> results = new ArrayList<ShardResult>();
+        int failed = 0;
+        for (Future<ShardResult> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException | ExecutionException e) {
+                log.error("Backtest shard failed", e);
+                failed++;
+            }
+        }
+        // a stitched curve with a shard missing would look like a complete result
+        if (failed > 0)
+            throw new IllegalStateException(failed + " of " + shards + " backtest shards failed");
+        reportShards(results);
+    }
+
+    private class ShardCallable implements Callable<ShardResult> {
+
+        private final int shard;
+        private final Instant shardStart;
+        private final Instant shardEnd;
+        private final Duration warmUp;
+
+        public ShardCallable(int shard, Instant shardStart, Instant shardEnd, Duration warmUp) {
+            this.shard = shard;
+            this.shardStart = shardStart;
+            this.shardEnd = shardEnd;
+            this.warmUp = warmUp;
+        }
+
+        @Override
+        public ShardResult call() {
+            Replay replay = replayFactory.create(new Interval(shardStart.minus(warmUp), shardEnd), true, "backtest-shard-" + shard);
+            replay.setEventSource(openEventSource());
+            Context shardContext = replay.getContext();
+            final OrderService orderService = setUpContext(shardContext, warmUp.getMillis() == 0);
+            shardContext.attach(BacktestRecorder.class);
+            final BacktestRecorder recorder = shardContext.getInjector().getInstance(BacktestRecorder.class);
+            recorder.start(shardStart);
+            replay.setWarmUp(shardStart, new Runnable() {
+                @Override
+                public void run() {
+                    recorder.start(shardStart);
+                    orderService.setTradingEnabled(true);
+                }
+            });
+            log.info("starting backtest shard " + shard + " " + shardStart + " to " + shardEnd);
+            replay.run();
+            recorder.stop(shardEnd);
+            ShardResult result = new ShardResult(shard, shardStart, shardEnd, recorder.getFills(), recorder.getEquityCurve(), !recorder
+                    .getOpenPositions().isEmpty());
+            shardContext.destroy();
+            return result;
+        }
+
+    }
+
+    private static class ShardResult {
+
+        private final int shard;
+        private final Instant start;
+        private final Instant end;
+        private final List<Fill> fills;
+        private final Map<Instant, Amount> equityCurve;
+        private final boolean carriedOver;
+
+        private ShardResult(int shard, Instant start, Instant end, List<Fill> fills, Map<Instant, Amount> equityCurve, boolean carriedOver) {
+            this.shard = shard;
+            this.start = start;
+            this.end = end;
+            this.fills = new ArrayList<Fill>(fills);
+            this.equityCurve = equityCurve;
+            this.carriedOver = carriedOver;
+        }
+
+        private Amount startEquity() {
+            return equityCurve.isEmpty() ? DecimalAmount.ZERO : equityCurve.values().iterator().next();
+        }
+
+        private Amount endEquity() {
+            Amount last = DecimalAmount.ZERO;
+            for (Amount equity : equityCurve.values())
+                last = equity;
+            return last;
+        }
+
+    }
+
+    private void reportShards(List<ShardResult> results) {
+        List<Fill> fills = new ArrayList<Fill>();
+        List<String[]> summaryRows = new ArrayList<String[]>();
+        List<String[]> equityRows = new ArrayList<String[]>();
+        Amount offset = DecimalAmount.ZERO;
+        for (ShardResult result : results) {
+            fills.addAll(result.fills);
+            Amount pnl = result.endEquity().minus(result.startEquity());
+            summaryRows.add(new String[] { String.valueOf(result.shard), result.start.toString(), result.end.toString(),
+                    String.valueOf(result.fills.size()), result.startEquity().toString(), result.endEquity().toString(), pnl.toString(),
+                    result.carriedOver ? "CARRIED OVER" : "" });
+            for (Map.Entry<Instant, Amount> entry : result.equityCurve.entrySet())
+                equityRows.add(new String[] { entry.getKey().toString(), String.valueOf(result.shard), entry.getValue().plus(offset).toString() });
+            offset = offset.plus(pnl);
+        }
+        Collections.sort(fills, new Comparator<Fill>() {
+            @Override
+            public int compare(Fill fill, Fill fill2) {
+                return fill.getTime().compareTo(fill2.getTime());
+            }
+        });
+
+        IoUtil.outputAscii(new TableOutput(new String[] { "Shard", "Start", "End", "Fills", "Start Equity", "End Equity", "PnL", "Positions" },
+                summaryRows.toArray(new String[summaryRows.size()][])));
+        log.info("backtest of " + shards + " shards complete: " + fills.size() + " fills, total PnL " + offset);
+        if (csvFilename != null)
+            IoUtil.writeCsv(new TableOutput(new String[] { "Time", "Shard", "Equity" }, equityRows.toArray(new String[equityRows.size()][])), csvFilename);
     }
 
-    private void setUpInitialPortfolio(StrategyInstance strategyInstance) {
+    private void setUpInitialPortfolio(Context context, StrategyInstance strategyInstance) {
         // @Inject
         // Portfolio portfolio;
         // ;= context.getInjector().getInstance(Portfolio.class);
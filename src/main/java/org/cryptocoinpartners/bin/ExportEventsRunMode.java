@@ -0,0 +1,84 @@
+package org.cryptocoinpartners.bin;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.MarketDataExtent;
+import org.cryptocoinpartners.schema.RemoteEvent;
+import org.cryptocoinpartners.schema.Trade;
+import org.cryptocoinpartners.util.BinaryEventWriter;
+import org.cryptocoinpartners.util.ConfigUtil;
+import org.cryptocoinpartners.util.JpaEventSource;
+import org.cryptocoinpartners.util.Replay;
+import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.clutch.dates.StringToTime;
+
+@SuppressWarnings("UnusedDeclaration")
+@Parameters(commandNames = "export-events", commandDescription = "copy the Trades and Books of the replay.markets into a binary event file for backtest --events")
+public class ExportEventsRunMode extends RunMode {
+
+    @Override
+    public void run(Semaphore semaphore) {
+        try {
+            export();
+        } finally {
+            if (semaphore != null)
+                semaphore.release();
+        }
+    }
+
+    private void export() {
+        boolean orderByTimeReceived = !byTime;
+        Instant start = startStr == null ? MarketDataExtent.getStart(orderByTimeReceived, Trade.class, Book.class) : new Instant(new StringToTime(startStr));
+        Instant end = endStr == null ? MarketDataExtent.getEnd(orderByTimeReceived, Trade.class, Book.class) : new Instant(new StringToTime(endStr));
+        if (start == null || end == null) {
+            log.error("No market data start and end times were given and there is no market data");
+            return;
+        }
+        JpaEventSource source = new JpaEventSource(orderByTimeReceived, Replay.getReplayMarkets(), true, true, end, ConfigUtil.combined().getInt("db.replay.reader.threads"));
+        long count = 0;
+        try (BinaryEventWriter writer = new BinaryEventWriter(filenames.get(0), orderByTimeReceived)) {
+            source.seek(start);
+            while (source.hasNext()) {
+                RemoteEvent event = source.next();
+                if (writer.write(event))
+                    count++;
+                source.release(event);
+            }
+        } catch (IOException e) {
+            log.error("Could not write " + filenames.get(0), e);
+            return;
+        } finally {
+            source.close();
+        }
+        log.info("exported " + count + " events from " + start + " to " + end + " into " + filenames.get(0));
+    }
+
+    @Parameter(names = { "-start" }, description = "English time description of the time to start exporting; defaults to the first event")
+    public String startStr = null;
+
+    @Parameter(names = { "-end" }, description = "English time description of the time to stop exporting; defaults to the last event")
+    public String endStr = null;
+
+    @Parameter(names = "-by-time", description = "order events by the exchange's time instead of the time they were received")
+    public boolean byTime = false;
+
+    @Parameter(required = true, arity = 1, description = "output filename")
+    public List<String> filenames;
+
+    @Override
+    public void run() {
+        Semaphore semaphore = null;
+        run(semaphore);
+
+    }
+
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.exportEvents");
+}
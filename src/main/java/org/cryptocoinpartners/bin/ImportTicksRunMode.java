@@ -0,0 +1,47 @@
+package org.cryptocoinpartners.bin;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.cryptocoinpartners.util.TickImporter;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+
+@SuppressWarnings("UnusedDeclaration")
+@Parameters(commandNames = "import-ticks", commandDescription = "bulk load tick csv files into the database")
+public class ImportTicksRunMode extends RunMode {
+
+    @Override
+    public void run(Semaphore semaphore) {
+        int status = 0;
+        try {
+            injector.getInstance(TickImporter.class).importFiles(filenames, parseThreads, writerThreads, batchSize);
+        } catch (Exception e) {
+            log.error("Import failed", e);
+            status = 1;
+        }
+        if (semaphore != null)
+            semaphore.release();
+        System.exit(status);
+    }
+
+    @Parameter(names = { "-parsers" }, description = "number of threads parsing rows")
+    public int parseThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    @Parameter(names = { "-writers" }, description = "number of threads inserting rows, each with its own connection")
+    public int writerThreads = 4;
+
+    @Parameter(names = { "-batch" }, description = "rows inserted per transaction")
+    public int batchSize = 5000;
+
+    @Parameter(required = true, description = "csv files in the readtickscsv format")
+    public List<String> filenames;
+
+    @Override
+    public void run() {
+        Semaphore semaphore = null;
+        run(semaphore);
+
+    }
+}
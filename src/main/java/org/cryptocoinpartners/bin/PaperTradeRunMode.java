@@ -49,7 +49,6 @@ public class PaperTradeRunMode extends RunMode {
     public List<String> positions = Arrays.asList("OKCOIN:USD", "1000000"); //private final Instant start = new DateTime(2014, 11, 01, 0, 0, 0, 0, DateTimeZone.UTC).toInstant();
     final ExecutorService service = Executors.newSingleThreadExecutor();
     private final Instant end = new DateTime(DateTime.now()).toInstant();
-    Semaphore paperSemaphore = new Semaphore(0);
     private final Instant start = end.minus(Duration.standardHours(25)).toInstant();
 
     // new DateTime(2013, 12, 20, 0, 0, 0, 0, DateTimeZone.UTC).toInstant();
@@ -57,7 +56,7 @@ public class PaperTradeRunMode extends RunMode {
     @Override
     public void run(Semaphore semaphore) {
         //context = Context.create();
-        Replay replay = replayFactory.between(start, end, true, paperSemaphore);
+        Replay replay = replayFactory.between(start, end, true);
         context = replay.getContext();
 
         context = replay.getContext();
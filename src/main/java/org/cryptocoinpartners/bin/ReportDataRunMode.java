@@ -1,8 +1,12 @@
 package org.cryptocoinpartners.bin;
 
+import java.util.concurrent.Semaphore;
+
+import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import org.cryptocoinpartners.report.DataSummaryReport;
 import org.cryptocoinpartners.report.Report;
+import org.cryptocoinpartners.schema.MarketDataExtent;
 
 
 @SuppressWarnings("UnusedDeclaration")
@@ -10,8 +14,18 @@ import org.cryptocoinpartners.report.Report;
             commandDescription = "Shows how many trades have been recorded in the database for each Market")
 public class ReportDataRunMode extends ReportRunMode {
 
+    @Override
+    public void run(Semaphore semaphore) {
+        if (rebuild)
+            MarketDataExtent.rebuild();
+        super.run(semaphore);
+    }
+
     @Override
     protected Report getReport() {
         return injector.getInstance(DataSummaryReport.class);
     }
-}
\ No newline at end of file
+
+    @Parameter(names = "-rebuild", description = "recreate the market data catalogue from the Trade, Book and Bar tables before reporting")
+    private boolean rebuild = false;
+}
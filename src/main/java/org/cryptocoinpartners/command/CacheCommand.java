@@ -0,0 +1,63 @@
+package org.cryptocoinpartners.command;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cryptocoinpartners.util.EM;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
+@SuppressWarnings("UnusedDeclaration")
+public class CacheCommand extends CommandBase {
+
+    @Override
+    public String getUsageHelp() {
+        return "cache [reset]";
+    }
+
+    @Override
+    public String getExtraHelp() {
+        return "Displays the hits, misses and puts of each second-level cache region and of the query cache.  \"cache reset\" zeroes the counts.";
+    }
+
+    @Override
+    public void parse(String commandArguments) {
+        reset = commandArguments.trim().equalsIgnoreCase("reset");
+    }
+
+    @Override
+    public void run() {
+        Statistics statistics = EM.getStatistics();
+        if (reset) {
+            statistics.clear();
+            out.println("Cache statistics reset");
+            return;
+        }
+        if (!statistics.isStatisticsEnabled()) {
+            out.println("Cache statistics are off, set db.cache.statistics=true to collect them");
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        String[] regions = statistics.getSecondLevelCacheRegionNames();
+        Arrays.sort(regions);
+        for (String region : regions) {
+            SecondLevelCacheStatistics regionStatistics = statistics.getSecondLevelCacheStatistics(region);
+            if (regionStatistics != null)
+                lines.add(describe(region, regionStatistics.getHitCount(), regionStatistics.getMissCount(), regionStatistics.getPutCount())
+                        + String.format(" entries=%d", regionStatistics.getElementCountInMemory()));
+        }
+        lines.add(describe("second-level total", statistics.getSecondLevelCacheHitCount(), statistics.getSecondLevelCacheMissCount(),
+                statistics.getSecondLevelCachePutCount()));
+        lines.add(describe("query cache", statistics.getQueryCacheHitCount(), statistics.getQueryCacheMissCount(), statistics.getQueryCachePutCount()));
+        out.printList(lines);
+    }
+
+    private static String describe(String name, long hits, long misses, long puts) {
+        long lookups = hits + misses;
+        return String.format("%s: hits=%d misses=%d puts=%d hit ratio=%.1f%%", name, hits, misses, puts, lookups == 0 ? 0 : 100d * hits / lookups);
+    }
+
+    private boolean reset;
+
+}
@@ -0,0 +1,71 @@
+package org.cryptocoinpartners.command;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.util.LatencyHistogram;
+import org.cryptocoinpartners.util.LatencyStats;
+
+@SuppressWarnings("UnusedDeclaration")
+public class LatencyCommand extends CommandBase {
+
+    @Override
+    public String getUsageHelp() {
+        return "latency [reset]";
+    }
+
+    @Override
+    public String getExtraHelp() {
+        return "Displays the tick-to-trade latency of each market, in microseconds, from the arrival of a book through the strategy's "
+                + "decision, placeOrder, the submission to the exchange and the order's acknowledgement as placed.  \"latency reset\" "
+                + "clears the histograms.";
+    }
+
+    @Override
+    public void parse(String commandArguments) {
+        String args = commandArguments.trim();
+        if (!args.isEmpty() && !args.equalsIgnoreCase("reset"))
+            throw new ParseError("Unknown action " + args);
+        reset = !args.isEmpty();
+    }
+
+    @Override
+    public void run() {
+        if (reset) {
+            LatencyStats.reset();
+            out.println("Latency histograms reset");
+            return;
+        }
+        // markets by name, and the stages of each in path order
+        Map<String, Map<LatencyStats.Stage, LatencyHistogram>> byMarket = new TreeMap<>();
+        for (Map.Entry<Market, Map<LatencyStats.Stage, LatencyHistogram>> entry : LatencyStats.getHistograms().entrySet())
+            byMarket.put(entry.getKey().toString(), entry.getValue());
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Map<LatencyStats.Stage, LatencyHistogram>> entry : byMarket.entrySet()) {
+            for (Map.Entry<LatencyStats.Stage, LatencyHistogram> stage : entry.getValue().entrySet()) {
+                LatencyHistogram histogram = stage.getValue();
+                long count = histogram.getCount();
+                if (count == 0)
+                    continue;
+                long[] percentiles = histogram.getPercentiles(50, 99, 99.9);
+                lines.add(String.format("%s %s: n=%d p50=%.1f p99=%.1f p99.9=%.1f max=%.1f", entry.getKey(), stage.getKey().getDescription(), count,
+                        micros(percentiles[0]), micros(percentiles[1]), micros(percentiles[2]), micros(histogram.getMax())));
+            }
+        }
+        if (lines.isEmpty()) {
+            out.println("No orders have been placed since the last reset");
+            return;
+        }
+        out.printList(lines);
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000d;
+    }
+
+    private boolean reset;
+
+}
@@ -0,0 +1,86 @@
+package org.cryptocoinpartners.command;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.cryptocoinpartners.schema.MarketDataPartitions;
+import org.joda.time.DateTime;
+
+@SuppressWarnings("UnusedDeclaration")
+public class PartitionsCommand extends CommandBase {
+
+    @Override
+    public String getUsageHelp() {
+        return "partitions [create|add|drop {yyyy-MM}|archive {yyyy-MM}] [trade|book|bar]";
+    }
+
+    @Override
+    public String getExtraHelp() {
+        return "Lists the monthly partitions of the market data tables.  \"create\" partitions the tables by month, which rebuilds them and "
+                + "can take a long time.  \"add\" adds partitions up to db.partition.ahead months ahead.  \"drop\" deletes the partitions "
+                + "before the given month and \"archive\" moves them into tables of their own.";
+    }
+
+    @Override
+    public void parse(String commandArguments) {
+        List<String> args = new ArrayList<>();
+        for (String arg : commandArguments.trim().split("\\s+"))
+            if (!arg.isEmpty())
+                args.add(arg.toLowerCase());
+        tables = MarketDataPartitions.tables;
+        if (!args.isEmpty() && MarketDataPartitions.tables.contains(args.get(args.size() - 1)))
+            tables = Collections.singletonList(args.remove(args.size() - 1));
+        action = args.isEmpty() ? "list" : args.get(0);
+        switch (action) {
+            case "list":
+            case "create":
+            case "add":
+                if (args.size() > 1)
+                    throw new ParseError("Unexpected arguments " + args.subList(1, args.size()));
+                break;
+            case "drop":
+            case "archive":
+                if (args.size() != 2)
+                    throw new ParseError(action + " needs the first month to keep, e.g. 2016-01");
+                try {
+                    month = MarketDataPartitions.parseMonth(args.get(1));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseError("Bad month " + args.get(1) + ", expected yyyy-MM");
+                }
+                break;
+            default:
+                throw new ParseError("Unknown action " + action);
+        }
+    }
+
+    @Override
+    public void run() {
+        for (String table : tables) {
+            try {
+                switch (action) {
+                    case "create":
+                        MarketDataPartitions.partition(table);
+                        break;
+                    case "add":
+                        out.println(table + ": added " + MarketDataPartitions.addFuture(table) + " partitions");
+                        break;
+                    case "drop":
+                        out.println(table + ": dropped " + MarketDataPartitions.dropBefore(table, month));
+                        break;
+                    case "archive":
+                        out.println(table + ": archived to " + MarketDataPartitions.archiveBefore(table, month));
+                        break;
+                }
+                out.printList(MarketDataPartitions.partitions(table));
+            } catch (Exception e) {
+                out.println(table + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private String action;
+    private List<String> tables;
+    private DateTime month;
+
+}
@@ -0,0 +1,26 @@
+package org.cryptocoinpartners.command;
+
+import org.cryptocoinpartners.util.PersistenceQueue;
+
+@SuppressWarnings("UnusedDeclaration")
+public class QueuesCommand extends CommandBase {
+
+    @Override
+    public String getUsageHelp() {
+        return "queues";
+    }
+
+    @Override
+    public String getExtraHelp() {
+        return "Displays the depth, drops, spills, retries and wait times of the database persistence queues";
+    }
+
+    @Override
+    public void run() {
+        if (PersistenceQueue.getAll().isEmpty())
+            out.println("No persistence queues");
+        else
+            out.printList(PersistenceQueue.describeAll());
+    }
+
+}
@@ -0,0 +1,26 @@
+package org.cryptocoinpartners.command;
+
+import org.cryptocoinpartners.util.ReplayStats;
+
+@SuppressWarnings("UnusedDeclaration")
+public class ReplayCommand extends CommandBase {
+
+    @Override
+    public String getUsageHelp() {
+        return "replay";
+    }
+
+    @Override
+    public String getExtraHelp() {
+        return "Displays progress, throughput, DB fetch vs. publish time, queue depths and ETA of all running replays";
+    }
+
+    @Override
+    public void run() {
+        if (ReplayStats.getActive().isEmpty())
+            out.println("No replays running");
+        else
+            out.printList(ReplayStats.describeActive());
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.cryptocoinpartners.module;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.cryptocoinpartners.schema.Amount;
+import org.cryptocoinpartners.schema.Asset;
+import org.cryptocoinpartners.schema.Fill;
+import org.cryptocoinpartners.schema.Position;
+import org.cryptocoinpartners.service.PortfolioService;
+import org.joda.time.Instant;
+
+/**
+ * Collects the fills and the equity curve of a single backtest run so that the results of several runs (e.g. the
+ * shards of a parallel backtest) can be stitched together afterwards.  Equity is sampled in the base asset after every
+ * Fill and whenever sampleEquity() is called explicitly.
+ */
+@Singleton
+public class BacktestRecorder {
+
+    @When("select * from Fill")
+    public void handleFill(Fill fill) {
+        if (!recording)
+            return;
+        fills.add(fill);
+        sampleEquity(fill.getTime());
+    }
+
+    /** Fills seen since recording started, in the order they were published */
+    public List<Fill> getFills() {
+        return Collections.unmodifiableList(fills);
+    }
+
+    /** Equity in the base asset keyed by event time */
+    public Map<Instant, Amount> getEquityCurve() {
+        return Collections.unmodifiableMap(equityCurve);
+    }
+
+    public Amount sampleEquity(Instant time) {
+        Asset baseAsset = Asset.forSymbol(context.getConfig().getString("base.symbol", "USD"));
+        Amount equity = portfolioService.getBaseCashBalance(baseAsset).plus(portfolioService.getBaseUnrealisedPnL(baseAsset));
+        equityCurve.put(time, equity);
+        return equity;
+    }
+
+    /** Positions which are still open, i.e. which would be carried over into whatever period follows this run */
+    public List<Position> getOpenPositions() {
+        List<Position> open = new ArrayList<Position>();
+        for (Position position : portfolioService.getPositions())
+            if (!position.isFlat())
+                open.add(position);
+        return open;
+    }
+
+    /** Starts recording.  Anything published before this (e.g. during a warm-up window) is ignored. */
+    public void start(Instant time) {
+        fills.clear();
+        equityCurve.clear();
+        recording = true;
+        sampleEquity(time);
+    }
+
+    public void stop(Instant time) {
+        sampleEquity(time);
+        recording = false;
+    }
+
+    @Inject
+    private Context context;
+    @Inject
+    private PortfolioService portfolioService;
+
+    private volatile boolean recording = true;
+    private final List<Fill> fills = new CopyOnWriteArrayList<Fill>();
+    private final ConcurrentSkipListMap<Instant, Amount> equityCurve = new ConcurrentSkipListMap<Instant, Amount>();
+
+}
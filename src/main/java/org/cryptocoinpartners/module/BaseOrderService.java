@@ -4,7 +4,6 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -12,6 +11,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
 
 import javax.inject.Inject;
 import javax.persistence.Transient;
@@ -45,16 +45,21 @@ import org.cryptocoinpartners.schema.SpecificOrder;
 import org.cryptocoinpartners.schema.SpecificOrderFactory;
 import org.cryptocoinpartners.schema.Transaction;
 import org.cryptocoinpartners.schema.TransactionFactory;
+import org.cryptocoinpartners.schema.dao.OrderUpdateDao;
 import org.cryptocoinpartners.service.OrderService;
 import org.cryptocoinpartners.service.PortfolioService;
 import org.cryptocoinpartners.service.QuoteService;
+import org.cryptocoinpartners.util.ConfigUtil;
+import org.cryptocoinpartners.util.LatencyStats;
 import org.cryptocoinpartners.util.Remainder;
 import org.cryptocoinpartners.util.RemainderHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This depends on a QuoteService being attached to the Context first.
+ * This depends on a QuoteService being attached to the Context first.  Orders are placed and their states updated in
+ * per (portfolio, listing) lanes, and Books are handled one at a time per Market; see OrderLanes for the ordering this
+ * guarantees.
  *
  * @author Tim Olson
  */
@@ -73,11 +78,32 @@ public abstract class BaseOrderService implements OrderService {
     }
 
     @Override
-    public synchronized void placeOrder(Order order) {
+    public void placeOrder(Order order) {
         if (!enableTrading) {
             log.info("Trading Mode Disabled");
+            LatencyStats.discard(order);
             return;
         }
+        LatencyStats.placing(order);
+        Lock lane = lockLane(order);
+        try {
+            placeOrderInLane(order);
+        } finally {
+            unlockLane(lane);
+            // the specific orders routed from it have taken its stamps by now
+            if (order instanceof GeneralOrder)
+                LatencyStats.discard(order);
+        }
+    }
+
+    private void placeOrderInLane(Order order) {
+        if (order instanceof SpecificOrder) {
+            String breach = risk.check((SpecificOrder) order, riskPrice((SpecificOrder) order));
+            if (breach != null) {
+                reject(order, breach);
+                return;
+            }
+        }
         updateOrderState(order, OrderState.NEW, true);
 
         //   updateOrderState(order, OrderState.NEW, true);
@@ -158,6 +184,71 @@ public abstract class BaseOrderService implements OrderService {
 
     }
 
+    @Override
+    public Collection<Order> cancelOrders(Collection<? extends Order> orders) {
+        List<Order> triggered = new ArrayList<Order>();
+        List<SpecificOrder> working = new ArrayList<SpecificOrder>();
+        for (Order order : orders) {
+            if (triggerIndex.contains(order))
+                triggered.add(order);
+            else if (order instanceof SpecificOrder && orderStateMap.get(order) != null && orderStateMap.get(order).isOpen())
+                working.add((SpecificOrder) order);
+        }
+        List<Order> cancelledOrders = new ArrayList<Order>(triggered);
+        // trigger orders only rest here, so removing them cancels them
+        for (Order triggerOrder : triggered)
+            removeTriggerOrder(triggerOrder);
+        if (!working.isEmpty())
+            cancelledOrders.addAll(handleCancelSpecificOrders(working));
+        if (cancelledOrders.isEmpty())
+            return cancelledOrders;
+
+        List<OrderUpdate> orderUpdates = new ArrayList<OrderUpdate>(cancelledOrders.size());
+        for (Order cancelledOrder : cancelledOrders) {
+            if (cancelledOrder.getParentFill() != null)
+                cancelledOrder.getParentFill().setPositionType(cancelledOrder.getParentFill().getVolumeCount() > 0 ? PositionType.LONG : PositionType.SHORT);
+            Lock lane = lockLane(cancelledOrder);
+            try {
+                OrderUpdate orderUpdate = recordOrderState(cancelledOrder, OrderState.CANCELLED);
+                if (orderUpdate != null)
+                    orderUpdates.add(orderUpdate);
+            } finally {
+                unlockLane(lane);
+            }
+        }
+        // one transaction for all of them
+        if (!orderUpdates.isEmpty())
+            orderUpdateDao.persist(orderUpdates.toArray(new EntityBase[orderUpdates.size()]));
+        for (OrderUpdate orderUpdate : orderUpdates) {
+            log.info("Cancelled order: " + orderUpdate.getOrder());
+            routeOrderUpdate(orderUpdate);
+        }
+        return cancelledOrders;
+    }
+
+    @Override
+    public Collection<Order> cancelReplaceOrders(Collection<? extends Order> orders, Collection<? extends Order> replacements) {
+        Collection<Order> cancelledOrders = cancelOrders(orders);
+        for (Order replacement : replacements)
+            placeOrder(replacement);
+        return cancelledOrders;
+    }
+
+    /**
+     * Pulls the working orders from their markets, in as few requests as the venue allows.  Orders which are cancelled
+     * at once are returned and have their state updated by the caller; the rest are confirmed later with OrderUpdates.
+     * The default cancels the orders one at a time with handleCancelSpecificOrder().
+     */
+    protected Collection<SpecificOrder> handleCancelSpecificOrders(Collection<SpecificOrder> specificOrders) {
+        for (SpecificOrder specificOrder : specificOrders)
+            try {
+                handleCancelSpecificOrder(specificOrder);
+            } catch (OrderNotFoundException onf) {
+                log.info("Order " + specificOrder + " Not found to cacnel");
+            }
+        return new ArrayList<SpecificOrder>();
+    }
+
     @Override
     public void updateWorkingOrderQuantity(Order order, Amount quantity) {
         if (quantity.isZero()) {
@@ -188,262 +279,85 @@ public abstract class BaseOrderService implements OrderService {
 
     @Override
     public void handleCancelAllShortStopOrders(Portfolio portfolio, Market market) {
-        Collection<Order> cancelledOrders = new ConcurrentLinkedQueue<>();
-        boolean found = false;
-        Fill parentFill;
-        Order parentOrder;
-        //synchronized (lock) {
-        for (Iterator<Event> ite = triggerOrders.keySet().iterator(); ite.hasNext();) {
-            Event parentKey = ite.next();
-            for (Iterator<Order> it = triggerOrders.get(parentKey).iterator(); it.hasNext();) {
-                Order triggerOrder = it.next();
-
-                if (triggerOrder.getMarket().equals(market) && triggerOrder.isBid())
-
-                    cancelledOrders.add(triggerOrder);
-                Collection<SpecificOrder> closingOrders = null;
-                if (triggerOrder.getParentFill() != null) {
-                    triggerOrder.getParentFill().setPositionType(triggerOrder.getParentFill().getVolumeCount() > 0 ? PositionType.LONG : PositionType.SHORT);
-
-                    if (triggerOrder.isAsk())
-                        closingOrders = getPendingLongCloseOrders(triggerOrder.getPortfolio(), triggerOrder.getExecutionInstruction());
-                    if (triggerOrder.isBid())
-                        closingOrders = getPendingShortCloseOrders(triggerOrder.getPortfolio(), triggerOrder.getExecutionInstruction());
-
-                    for (Order closingOrder : closingOrders)
-                        if (closingOrder.getParentFill() == triggerOrder.getParentFill()) {
-                            found = true;
-                            break;
-                        }
-                    // if (closingOrders == null || closingOrders.isEmpty() || !found)
-                    //   triggerOrder.getParentFill().setStopPriceCount(0);
-
-                }
-
-                //TODO could be a condition here where we have not removed the trigger order but we have set the stop price to 0 on the fill
-                //   if (triggerOrder.getParentFill() != null)
-                //     triggerOrder.getParentFill().setStopPriceCount(0);
-            }
-            triggerOrders.get(parentKey).removeAll(cancelledOrders);
-            for (Order cancelledOrder : cancelledOrders) {
-                updateOrderState(cancelledOrder, OrderState.CANCELLED, false);
-                log.info("Cancelled Short Stop Trigger Order: " + cancelledOrder);
-            }
-
-            if (triggerOrders.get(parentKey).isEmpty())
-                triggerOrders.remove(parentKey);
-
-            //                if(parentKey instanceof Fill) 
-            //                      parentFill = (Fill) parentKey;
-            //                if(parentKey instanceof Order) 
-            //                     parentOrder = (Order) parentKey;
-            //                if ((parentFill!=null && parentFill.getMarket().equals(market)) || (parentOrder!=null && parentOrder.getMarket().equals(market)))
-            //                    triggerOrders.remove(parentKey);
-
-            //TODO could be a condition here where we have not removed the trigger order but we have set the stop price to 0 on the fill
-
-        }
-        // }
+        for (Order cancelledOrder : cancelOrders(triggerIndex.orders(market, true)))
+            log.info("Cancelled Short Stop Trigger Order: " + cancelledOrder);
     }
 
     @Override
     public void handleCancelAllLongStopOrders(Portfolio portfolio, Market market) {
-        Collection<Order> cancelledOrders = new ConcurrentLinkedQueue<>();
-        boolean found = false;
-        Fill parentFill;
-        Order parentOrder;
-        //synchronized (lock) {
-        for (Iterator<Event> ite = triggerOrders.keySet().iterator(); ite.hasNext();) {
-            Event parentKey = ite.next();
-            for (Iterator<Order> it = triggerOrders.get(parentKey).iterator(); it.hasNext();) {
-                Order triggerOrder = it.next();
-
-                if (triggerOrder.getMarket().equals(market) && triggerOrder.isAsk())
-
-                    cancelledOrders.add(triggerOrder);
-                Collection<SpecificOrder> closingOrders = null;
-                if (triggerOrder.getParentFill() != null) {
-                    triggerOrder.getParentFill().setPositionType(triggerOrder.getParentFill().getVolumeCount() > 0 ? PositionType.LONG : PositionType.SHORT);
-
-                    if (triggerOrder.isAsk())
-                        closingOrders = getPendingLongCloseOrders(triggerOrder.getPortfolio(), triggerOrder.getExecutionInstruction());
-                    if (triggerOrder.isBid())
-                        closingOrders = getPendingShortCloseOrders(triggerOrder.getPortfolio(), triggerOrder.getExecutionInstruction());
-
-                    for (Order closingOrder : closingOrders)
-                        if (closingOrder.getParentFill() == triggerOrder.getParentFill()) {
-                            found = true;
-                            break;
-                        }
-                    //   if (closingOrders == null || closingOrders.isEmpty() || !found)
-                    //     triggerOrder.getParentFill().setStopPriceCount(0);
-
-                }
-            }
-            triggerOrders.get(parentKey).removeAll(cancelledOrders);
-            for (Order cancelledOrder : cancelledOrders) {
-                updateOrderState(cancelledOrder, OrderState.CANCELLED, false);
-                log.info("Cancelled Long Stop Trigger Order: " + cancelledOrder);
-
-            }
-
-            if (triggerOrders.get(parentKey).isEmpty())
-                triggerOrders.remove(parentKey);
-
-            //                if(parentKey instanceof Fill) 
-            //                      parentFill = (Fill) parentKey;
-            //                if(parentKey instanceof Order) 
-            //                     parentOrder = (Order) parentKey;
-            //                if ((parentFill!=null && parentFill.getMarket().equals(market)) || (parentOrder!=null && parentOrder.getMarket().equals(market)))
-            //                    triggerOrders.remove(parentKey);
-
-            //TODO could be a condition here where we have not removed the trigger order but we have set the stop price to 0 on the fill
-
-        }
-        // }
+        for (Order cancelledOrder : cancelOrders(triggerIndex.orders(market, false)))
+            log.info("Cancelled Long Stop Trigger Order: " + cancelledOrder);
     }
 
     @Override
     public void handleCancelGeneralOrder(GeneralOrder order) {
-        Collection<Order> cancelledOrders = new ConcurrentLinkedQueue<>();
-        boolean found = false;
-        //synchronized (lock) {
-        for (Iterator<Event> ite = triggerOrders.keySet().iterator(); ite.hasNext();) {
-            Event parentKey = ite.next();
-            for (Iterator<Order> it = triggerOrders.get(parentKey).iterator(); it.hasNext();) {
-                Order triggerOrder = it.next();
-
-                if (triggerOrder.equals(order)) {
-
-                    cancelledOrders.add(triggerOrder);
-                    //TODO could be a condition here where we have not removed the trigger order but we have set the stop price to 0 on the fill
-
-                }
-            }
-            triggerOrders.get(parentKey).removeAll(cancelledOrders);
-            if (triggerOrders.get(parentKey).isEmpty())
-                triggerOrders.remove(parentKey);
-            for (Order cancelledOrder : cancelledOrders) {
-                updateOrderState(cancelledOrder, OrderState.CANCELLED, false);
-                log.info("Cancelled General  Trigger Order: " + cancelledOrder);
-                // if (cancelledOrder.)
-                Collection<SpecificOrder> closingOrders = null;
-                if (cancelledOrder.getParentFill() != null) {
-                    cancelledOrder.getParentFill()
-                            .setPositionType(cancelledOrder.getParentFill().getVolumeCount() > 0 ? PositionType.LONG : PositionType.SHORT);
-
-                    if (cancelledOrder.isAsk())
-                        closingOrders = getPendingLongCloseOrders(cancelledOrder.getPortfolio(), cancelledOrder.getExecutionInstruction());
-                    if (cancelledOrder.isBid())
-                        closingOrders = getPendingShortCloseOrders(cancelledOrder.getPortfolio(), cancelledOrder.getExecutionInstruction());
-
-                    for (Order closingOrder : closingOrders)
-                        if (closingOrder.getParentFill() == cancelledOrder.getParentFill()) {
-                            found = true;
-                            break;
-                        }
-                    // if (closingOrders == null || closingOrders.isEmpty() || !found)
-                    // cancelledOrder.getParentFill().setStopPriceCount(0);
-
-                }
-
-                // only set the Stop price to zero is no related orders.
-                // if it is  a buy order, set the stop price to the highest of all closing orders for this parent
-                // so I could have a close order for this fill in the market or I could have another trigger order for this fill in the market.
-                // for(this.get.getPendingClosingOrders().
-                // if it is a sell order, set the stp price to lowest of all closing orders fo this parent.
-                //cancelledOrder.getParentFill().setStopPriceCount(0);
-
-            }
-
-            //                if(parentKey instanceof Fill) 
-            //                      parentFill = (Fill) parentKey;
-            //                if(parentKey instanceof Order) 
-            //                     parentOrder = (Order) parentKey;
-            //                if ((parentFill!=null && parentFill.getMarket().equals(market)) || (parentOrder!=null && parentOrder.getMarket().equals(market)))
-            //                    triggerOrders.remove(parentKey);
-
-            //TODO could be a condition here where we have not removed the trigger order but we have set the stop price to 0 on the fill
-
-        }
-        // }
+        Order cancelledOrder = triggerIndex.get(order);
+        if (cancelledOrder == null)
+            return;
+        removeTriggerOrder(cancelledOrder);
+        updateOrderState(cancelledOrder, OrderState.CANCELLED, false);
+        log.info("Cancelled General  Trigger Order: " + cancelledOrder);
+        if (cancelledOrder.getParentFill() != null)
+            cancelledOrder.getParentFill().setPositionType(cancelledOrder.getParentFill().getVolumeCount() > 0 ? PositionType.LONG : PositionType.SHORT);
+        //TODO could be a condition here where we have not removed the trigger order but we have set the stop price to 0 on the fill
     }
 
     @Override
     public void adjustShortStopLoss(Amount price, Amount amount) {
-        for (Iterator<Event> ite = triggerOrders.keySet().iterator(); ite.hasNext();) {
-            Event parentKey = ite.next();
-            for (Iterator<Order> it = triggerOrders.get(parentKey).iterator(); it.hasNext();) {
-                Order triggerOrder = it.next();
-                if (triggerOrder.isBid()) {
-                    long stopPrice = Math.min((triggerOrder.getStopPrice().toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount(),
-                            (price.plus(amount.abs()).toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount());
-                    DecimalAmount stopDiscrete = DecimalAmount.of(new DiscreteAmount(stopPrice, triggerOrder.getMarket().getPriceBasis()));
-                    triggerOrder.setStopPrice(stopDiscrete);
-                    if (triggerOrder.getParentFill() != null)
-                        triggerOrder.getParentFill().setStopPriceCount(stopPrice);
-
-                }
-            }
+        for (Order triggerOrder : triggerIndex.orders(null, true)) {
+            flushTrailingStop(triggerOrder);
+            long stopPrice = Math.min((triggerOrder.getStopPrice().toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount(),
+                    (price.plus(amount.abs()).toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount());
+            DecimalAmount stopDiscrete = DecimalAmount.of(new DiscreteAmount(stopPrice, triggerOrder.getMarket().getPriceBasis()));
+            triggerOrder.setStopPrice(stopDiscrete);
+            triggerIndex.add(triggerOrder);
+            if (triggerOrder.getParentFill() != null)
+                triggerOrder.getParentFill().setStopPriceCount(stopPrice);
         }
     }
 
     @Override
     public void adjustLongStopLoss(Amount price, Amount amount) {
-        for (Iterator<Event> ite = triggerOrders.keySet().iterator(); ite.hasNext();) {
-            Event parentKey = ite.next();
-            for (Iterator<Order> it = triggerOrders.get(parentKey).iterator(); it.hasNext();) {
-                Order triggerOrder = it.next();
-                if (triggerOrder.isAsk()) {
-                    long stopPrice = Math.max((triggerOrder.getStopPrice().toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount(),
-                            (price.minus(amount.abs()).toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount());
-                    DecimalAmount stopDiscrete = DecimalAmount.of(new DiscreteAmount(stopPrice, triggerOrder.getMarket().getPriceBasis()));
-                    triggerOrder.setStopPrice(stopDiscrete);
-                    if (triggerOrder.getParentFill() != null)
-                        triggerOrder.getParentFill().setStopPriceCount(stopPrice);
-                }
-            }
+        for (Order triggerOrder : triggerIndex.orders(null, false)) {
+            flushTrailingStop(triggerOrder);
+            long stopPrice = Math.max((triggerOrder.getStopPrice().toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount(),
+                    (price.minus(amount.abs()).toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount());
+            DecimalAmount stopDiscrete = DecimalAmount.of(new DiscreteAmount(stopPrice, triggerOrder.getMarket().getPriceBasis()));
+            triggerOrder.setStopPrice(stopDiscrete);
+            triggerIndex.add(triggerOrder);
+            if (triggerOrder.getParentFill() != null)
+                triggerOrder.getParentFill().setStopPriceCount(stopPrice);
         }
     }
 
     @Override
     public void adjustLongTargetPrices(Amount price, Amount amount) {
-        for (Iterator<Event> ite = triggerOrders.keySet().iterator(); ite.hasNext();) {
-            Event parentKey = ite.next();
-            for (Iterator<Order> it = triggerOrders.get(parentKey).iterator(); it.hasNext();) {
-                Order triggerOrder = it.next();
-                //TODO: should this be the max for bid and the min for shorts
-                if (triggerOrder.isAsk()) {
-                    long targetPrice = Math.max(
-                            (triggerOrder.getTargetPrice().toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount(),
-                            (price.plus(amount.abs()).toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount());
-                    DecimalAmount targetDiscrete = DecimalAmount.of(new DiscreteAmount(targetPrice, triggerOrder.getMarket().getPriceBasis()));
-                    triggerOrder.setTargetPrice(targetDiscrete);
-                    if (triggerOrder.getParentFill() != null)
-                        triggerOrder.getParentFill().setTargetPriceCount(targetPrice);
-                }
-            }
+        for (Order triggerOrder : triggerIndex.orders(null, false)) {
+            //TODO: should this be the max for bid and the min for shorts
+            long targetPrice = Math.max(
+                    (triggerOrder.getTargetPrice().toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount(),
+                    (price.plus(amount.abs()).toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount());
+            DecimalAmount targetDiscrete = DecimalAmount.of(new DiscreteAmount(targetPrice, triggerOrder.getMarket().getPriceBasis()));
+            triggerOrder.setTargetPrice(targetDiscrete);
+            triggerIndex.add(triggerOrder);
+            if (triggerOrder.getParentFill() != null)
+                triggerOrder.getParentFill().setTargetPriceCount(targetPrice);
         }
 
     }
 
     @Override
     public void adjustShortTargetPrices(Amount price, Amount amount) {
-        for (Iterator<Event> ite = triggerOrders.keySet().iterator(); ite.hasNext();) {
-            Event parentKey = ite.next();
-            for (Iterator<Order> it = triggerOrders.get(parentKey).iterator(); it.hasNext();) {
-                Order triggerOrder = it.next();
-                //TODO: should this be the max for bid and the min for shorts
-                if (triggerOrder.isBid()) {
-                    long targetPrice = Math.min(
-                            (triggerOrder.getTargetPrice().toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount(),
-                            (price.minus(amount.abs()).toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount());
-                    DecimalAmount TargetDiscrete = DecimalAmount.of(new DiscreteAmount(targetPrice, triggerOrder.getMarket().getPriceBasis()));
-                    triggerOrder.setTargetPrice(TargetDiscrete);
-                    if (triggerOrder.getParentFill() != null)
-                        triggerOrder.getParentFill().setTargetPriceCount(targetPrice);
-                }
-            }
+        for (Order triggerOrder : triggerIndex.orders(null, true)) {
+            //TODO: should this be the max for bid and the min for shorts
+            long targetPrice = Math.min(
+                    (triggerOrder.getTargetPrice().toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount(),
+                    (price.minus(amount.abs()).toBasis(triggerOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount());
+            DecimalAmount TargetDiscrete = DecimalAmount.of(new DiscreteAmount(targetPrice, triggerOrder.getMarket().getPriceBasis()));
+            triggerOrder.setTargetPrice(TargetDiscrete);
+            triggerIndex.add(triggerOrder);
+            if (triggerOrder.getParentFill() != null)
+                triggerOrder.getParentFill().setTargetPriceCount(targetPrice);
         }
 
     }
@@ -462,21 +376,43 @@ public abstract class BaseOrderService implements OrderService {
     }
 
     public SpecificOrder getSpecifcOrderFromStateMap(UUID id) {
-        boolean found = false;
-        for (Order order : orderStateMap.keySet()) {
-            if (order.getId().equals(id)) {
-                found = true;
-                if (order instanceof SpecificOrder)
-                    return (SpecificOrder) order;
-            }
-
-        }
-        if (!found)
+        Order order = orderIndex.forId(id);
+        if (order == null)
             throw new IllegalStateException("Untracked order " + id);
+        if (order instanceof SpecificOrder)
+            return (SpecificOrder) order;
         return null;
 
     }
 
+    /** records the order's state in the order state map and its secondary indexes */
+    protected void putOrderState(Order order, OrderState state) {
+        orderStateMap.put(order, state);
+        orderIndex.update(order, state);
+        risk.update(order, state);
+        LatencyStats.stateChanged(order, state);
+    }
+
+    /** the price a SpecificOrder without a limit price is checked at: the far touch, or 0 when there is no quote */
+    private double riskPrice(SpecificOrder order) {
+        if (order.getLimitPrice() != null || order.getMarket() == null)
+            return 0;
+        Offer offer = order.isBid() ? quotes.getLastAskForMarket(order.getMarket()) : quotes.getLastBidForMarket(order.getMarket());
+        return offer == null || offer.getPrice() == null ? 0 : offer.getPrice().asDouble();
+    }
+
+    /**
+     * Publishes an OrderUpdate into the Context for a state change which happened outside it, e.g. an exchange's
+     * response on a gateway thread, where the OrderUpdate cannot be routed.  The new state is applied when the Context
+     * handles the update.
+     */
+    protected void publishOrderUpdate(Order order, OrderState state) {
+        OrderState oldState = orderStateMap.get(order);
+        OrderUpdate orderUpdate = orderUpdateFactory.create(order, oldState == null ? OrderState.NEW : oldState, state);
+        orderUpdate.persit();
+        context.publish(orderUpdate);
+    }
+
     @Override
     public boolean getTradingEnabled() {
 
@@ -490,12 +426,26 @@ public abstract class BaseOrderService implements OrderService {
 
     @When("@Priority(8) select * from OrderUpdate")
     public void handleOrderUpdate(OrderUpdate orderUpdate) {
+        // the cancel handlers take the lane themselves, every other state is written under it
+        if (orderUpdate.getState() == OrderState.CANCELLING) {
+            applyOrderUpdate(orderUpdate);
+            return;
+        }
+        Lock lane = lockLane(orderUpdate.getOrder());
+        try {
+            applyOrderUpdate(orderUpdate);
+        } finally {
+            unlockLane(lane);
+        }
+    }
+
+    private void applyOrderUpdate(OrderUpdate orderUpdate) {
         //TOOD somethig is up in here causing the states of stop orders to be changed when they are still resting
         OrderState orderState = orderUpdate.getState();
         Order order = orderUpdate.getOrder();
         switch (orderState) {
             case NEW:
-                orderStateMap.put(order, orderState);
+                putOrderState(order, orderState);
                 if (order.getParentOrder() != null
                         && (order.getFillType() != FillType.ONE_CANCELS_OTHER || order.getFillType() != FillType.COMPLETED_CANCELS_OTHER))
                     updateParentOrderState(order.getParentOrder(), order, orderState);
@@ -504,7 +454,7 @@ public abstract class BaseOrderService implements OrderService {
                 //PersitOrderFill(orderUpdate.getOrder());
                 break;
             case TRIGGER:
-                orderStateMap.put(order, orderState);
+                putOrderState(order, orderState);
                 // if all children have same state, set parent state.
                 if (order.getParentOrder() != null && order.getParentOrder().getOrderChildren() != null && order.getParentOrder().getOrderChildren().isEmpty()) {
                     updateParentOrderState(order.getParentOrder(), order, orderState);
@@ -522,7 +472,7 @@ public abstract class BaseOrderService implements OrderService {
                     }
                 break;
             case ROUTED:
-                orderStateMap.put(order, orderState);
+                putOrderState(order, orderState);
                 if (order.getParentOrder() != null && order.getParentOrder().getOrderChildren() != null && order.getParentOrder().getOrderChildren().isEmpty()) {
                     updateParentOrderState(order.getParentOrder(), order, orderState);
                     break;
@@ -539,7 +489,7 @@ public abstract class BaseOrderService implements OrderService {
                     }
                 break;
             case PLACED:
-                orderStateMap.put(order, orderState);
+                putOrderState(order, orderState);
                 if (order.getParentOrder() != null && order.getParentOrder().getOrderChildren() != null && order.getParentOrder().getOrderChildren().isEmpty()) {
                     updateParentOrderState(order.getParentOrder(), order, orderState);
                     break;
@@ -556,7 +506,7 @@ public abstract class BaseOrderService implements OrderService {
                     }
                 break;
             case PARTFILLED:
-                orderStateMap.put(order, orderState);
+                putOrderState(order, orderState);
                 if (order.getParentOrder() != null && order.getParentOrder().getOrderChildren() != null && order.getParentOrder().getOrderChildren().isEmpty()) {
                     updateParentOrderState(order.getParentOrder(), order, orderState);
                     break;
@@ -573,7 +523,7 @@ public abstract class BaseOrderService implements OrderService {
                     }
                 break;
             case FILLED:
-                orderStateMap.put(order, orderState);
+                putOrderState(order, orderState);
                 if (order.getParentOrder() != null && order.getParentOrder().getOrderChildren() != null && order.getParentOrder().getOrderChildren().isEmpty()) {
                     updateParentOrderState(order.getParentOrder(), order, orderState);
                     break;
@@ -607,6 +557,7 @@ public abstract class BaseOrderService implements OrderService {
                 }
                 break;
             case CANCELLED:
+                putOrderState(order, orderState);
                 if (order.getParentOrder() != null && order.getParentOrder().getOrderChildren() != null && order.getParentOrder().getOrderChildren().isEmpty()) {
                     updateParentOrderState(order.getParentOrder(), order, orderState);
                     break;
@@ -624,7 +575,7 @@ public abstract class BaseOrderService implements OrderService {
                 break;
 
             case EXPIRED:
-                orderStateMap.put(order, orderState);
+                putOrderState(order, orderState);
                 if (order.getParentOrder() != null && order.getParentOrder().getOrderChildren() != null && order.getParentOrder().getOrderChildren().isEmpty()) {
                     updateParentOrderState(order.getParentOrder(), order, orderState);
                     break;
@@ -641,7 +592,7 @@ public abstract class BaseOrderService implements OrderService {
                     }
                 break;
             case REJECTED:
-                orderStateMap.put(order, orderState);
+                putOrderState(order, orderState);
                 if (order.getParentOrder() != null && order.getParentOrder().getOrderChildren() != null && order.getParentOrder().getOrderChildren().isEmpty()) {
                     updateParentOrderState(order.getParentOrder(), order, orderState);
                     break;
@@ -664,10 +615,17 @@ public abstract class BaseOrderService implements OrderService {
     @When("@Priority(9) select * from Fill")
     public void handleFillProcessing(Fill fill) {
         log.debug("BaseOrderService:handleFillProcessing Fill Recieved: " + fill);
+        // before the portfolio merges the fill, so a portfolio first seeded here does not count it twice
+        risk.fill(fill);
         handleFill(fill);
         // service.submit(new handleFillRunnable(fill));
     }
 
+    @When("@Priority(8) select * from Transaction")
+    public void handleTransaction(Transaction transaction) {
+        risk.transaction(transaction);
+    }
+
     public void handleFill(Fill fill) {
         //  log.debug("BaseOrderService:handleFill Fill Recieved: " + fill);
 
@@ -862,7 +820,8 @@ public abstract class BaseOrderService implements OrderService {
         }
         if (state == OrderState.NEW)
             log.warn("Fill received for Order in NEW state: skipping PLACED state");
-        if (state.isOpen()) {
+        // an order can fill while its cancel is on the way, and if it fills completely the cancel will never confirm
+        if (state.isOpen() || (state.isCancelling() && order.isFilled())) {
             OrderState newState;
             if (order.isFilled()) {
                 PositionType newFillState = (fill.getVolumeCount() > 0) ? PositionType.LONG : PositionType.SHORT;
@@ -1061,11 +1020,20 @@ public abstract class BaseOrderService implements OrderService {
         }
     }
 
+    private void updateRestingOrders(Book b) {
+        // triggered orders are placed in their own lanes while the Market is held
+        Lock market = lanes.market(b.getMarket());
+        market.lock();
+        try {
+            updateRestingOrdersForMarket(b);
+        } finally {
+            market.unlock();
+        }
+    }
+
     @SuppressWarnings("ConstantConditions")
-    private synchronized void updateRestingOrders(Book b) {
+    private void updateRestingOrdersForMarket(Book b) {
 
-        Offer offer;
-        //  synchronized (lock) {
         Offer ask = b.getBestAsk();
 
         Offer bid = b.getBestBid();
@@ -1073,297 +1041,178 @@ public abstract class BaseOrderService implements OrderService {
             return;
         log.trace("Bid price for trigger: " + bid.getPrice() + ". Ask price for trigger: " + ask.getPrice());
 
-        Iterator<SpecificOrder> itOrder = getPendingOrders().iterator();
-        while (itOrder.hasNext()) {
-            SpecificOrder pendingOrder = itOrder.next();
-
-            // for (SpecificOrder pendingOrder : getPendingOrders()) {
-
-            /*            if (pendingOrder.getMarket().equals(b.getMarket())
-                                &&
-                                //pendingOrder.getParentOrder().getFillType() == FillType.STOP_LIMIT) 
-                                (pendingOrder.getPositionEffect() == PositionEffect.CLOSE) && (pendingOrder.getUnfilledVolumeCount() != 0)
-                                && pendingOrder.getExecutionInstruction() == ExecutionInstruction.TAKER) {
-                            boolean cancelled = true;
-                            pendingOrder.setPlacementCount(pendingOrder.getPlacementCount() + 1);
-
-                            if (pendingOrder.isAsk())
-                                offer = (pendingOrder.getExecutionInstruction() == ExecutionInstruction.MAKER) ? quotes.getLastAskForMarket(pendingOrder.getMarket())
-                                        : quotes.getLastBidForMarket(pendingOrder.getMarket());
-                            else
-                                offer = (pendingOrder.getExecutionInstruction() == ExecutionInstruction.MAKER) ? quotes.getLastBidForMarket(pendingOrder.getMarket())
-                                        : quotes.getLastAskForMarket(pendingOrder.getMarket());
-
-                            DiscreteAmount limitPrice = (pendingOrder.getVolume().isNegative()) ? bid.getPrice().decrement(
-                                    (long) (Math.pow(pendingOrder.getPlacementCount(), 4))) : ask.getPrice().increment(
-                                    (long) (Math.pow(pendingOrder.getPlacementCount(), 4)));
-
-                            // we neeed to cancle order
-                            //TODO surround with try catch so we only insert if we cancel
-                            //TODO  we only need to do this is the best bid/best ask has changed vs previous
-                            log.debug("canceling existing order :" + pendingOrder);
-                            try {
-                                if (!getOrderState(pendingOrder).isCancelled()) {
-                                    log.info("Canceling Closing Orders " + pendingOrder);
-                                    handleCancelSpecificOrder(pendingOrder);
-                                    //cancelled = false;
-                                }
-                                // if (cancelled) {
-
-                                // OrderBuilder.SpecificOrderBuilder builder = new OrderBuilder(pendingOrder.getPortfolio()).create(pendingOrder);
-                                SpecificOrder order = specificOrderFactory.create(pendingOrder);
-                              //  order.setLimitPriceCount(limitPrice.getCount());
-                                order.setPlacementCount(pendingOrder.getPlacementCount());
-                                DiscreteAmount volume;
-                                if (pendingOrder.getParentOrder() != null) {
-                                    volume = (pendingOrder.getParentOrder().getUnfilledVolume().compareTo(pendingOrder.getVolume()) < 0) ? pendingOrder.getParentOrder()
-                                            .getUnfilledVolume().toBasis(pendingOrder.getMarket().getVolumeBasis(), Remainder.DISCARD) : pendingOrder.getVolume().toBasis(
-                                            pendingOrder.getMarket().getVolumeBasis(), Remainder.DISCARD);
-
-                                    // DiscreteAmount volume = (generalOrder.getParentFill() == null) ? generalOrder.getVolume().toBasis(market.getVolumeBasis(), Remainder.DISCARD)
-                                    //       : generalOrder.getParentFill().getOpenVolume().negate().toBasis(market.getVolumeBasis(), Remainder.DISCARD);
-                                    order.setVolumeCount(volume.getCount());
-                                }
-
-                                placeOrder(order);
-                                log.info("submitted new order :" + order);
-                                // }
-
-                            } catch (Exception e) {
-                                log.error("attmept to cancel an order that was not pending :" + pendingOrder, e);
-                            }
-
-                            //PersistUtil.merge(pendingOrder);
-                            //  order.persit();
-                            //  PersistUtil.merge(pendingOrder);
-                            // pendingOrder.persit();
-
-                        }*/
-        }
-        // }
-
-        // synchronized (lock) {
-        ArrayList<Event> triggeredParents = new ArrayList<Event>();
-        for (Event parentKey : triggerOrders.keySet()) {
-            //  Iterator<Event> itEvent = triggerOrders.keySet().iterator();
-            //while (itEvent.hasNext()) {
-            // closing position
-            //  Event parentKey = itEvent.next();
-            ArrayList<Order> triggeredOrders = new ArrayList<Order>();
-            for (Order triggeredOrder : triggerOrders.get(parentKey)) {
-                //   Iterator<Order> itTriggeredOrder = triggerOrders.get(parentKey).iterator();
-                //  while (itTriggeredOrder.hasNext()) {
-                // closing position
-                //    Order triggeredOrder = itTriggeredOrder.next();
-                //    Offer ask = quotes.getLastAskForMarket(triggeredOrder.getMarket());
-                //  Offer bid = quotes.getLastBidForMarket(triggeredOrder.getMarket());
-                log.trace("determining to trigger order:" + triggeredOrder);
-
-                if (triggeredOrder.getMarket().equals(b.getMarket())) {
-                    if (triggeredOrder.isBid()) {
-                        Long triggerPrice = (triggeredOrder.getExecutionInstruction() == ExecutionInstruction.MAKER) ? bid.getPriceCount() : ask
-                                .getPriceCount();
-
-                        if ((triggeredOrder.getStopPrice() != null && (triggerPrice >= (triggeredOrder.getStopPrice().toBasis(triggeredOrder.getMarket()
-                                .getPriceBasis(), Remainder.ROUND_EVEN)).getCount()))
-                                || (triggeredOrder.getTargetPrice() != null && (triggerPrice <= (triggeredOrder.getTargetPrice().toBasis(triggeredOrder
-                                        .getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount()))) {
-                            //convert order to specfic order
-
-                            log.info("triggered order:" + triggeredOrder);
-                            triggeredOrders.add(triggeredOrder);
-                            //  itTriggeredOrder.remove();
-                            //   triggerOrders.get(parentKey).remove(triggeredOrder);
-                            // if (triggerOrders.get(parentKey).isEmpty())
-                            //   triggeredParents.add(parentKey);
-
-                            SpecificOrder specificOrder = convertGeneralOrderToSpecific((GeneralOrder) triggeredOrder, triggeredOrder.getMarket());
-                            if (specificOrder == null) {
-                                log.info("triggered order:" + triggeredOrder + " not convereted to specific order");
-                                continue;
-                            }
-                            //   DiscreteAmount volume = (triggeredOrder.getUnfilledVolume().compareTo(specificOrder.getVolume()) < 0) ? : specificOrder.getVolume()
-                            //         .toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD);
-
-                            // DiscreteAmount volume = (generalOrder.getParentFill() == null) ? generalOrder.getVolume().toBasis(market.getVolumeBasis(), Remainder.DISCARD)
-                            //       : generalOrder.getParentFill().getOpenVolume().negate().toBasis(market.getVolumeBasis(), Remainder.DISCARD);
-                            if (!specificOrder.getVolume().equals(
-                                    triggeredOrder.getUnfilledVolume().toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD)))
-                                log.debug("Unfilled Volume: " + triggeredOrder + " not the same as trigger volume:" + specificOrder);
-
-                            specificOrder.setVolumeCount(triggeredOrder.getUnfilledVolume()
-                                    .toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD).getCount());
-                            specificOrder.setExecutionInstruction(ExecutionInstruction.TAKER);
-                            specificOrder.setPositionEffect(PositionEffect.CLOSE);
-                            specificOrder.setFillType(FillType.MARKET);
-                            specificOrder.setLimitPriceCount(0);
-                            // we need to set the sepecifc order children to any working open orders.
-                            //TODO: loop over open order by parent fill and link them so we know to cancel them is this get's filled first.
-                            // specificOrder.addChild(this);
-                            // this.setParentOrder(specificOrder);
-                            //specificOrder.setFillType(FillType.MARKET);
-                            if (triggeredOrder.getStopPrice() != null
-                                    && (triggerPrice >= (triggeredOrder.getStopPrice()
-                                            .toBasis(triggeredOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount())) {
-
-                                specificOrder.setComment("Short Stop Order with Stop Price");
-                                //specificOrder.setExecutionInstruction(ExecutionInstruction.TAKER);
-                            } else
-                                specificOrder.setComment("Short Stop Order with Target Price");
-                            log.info("At " + context.getTime() + " Routing trigger order " + triggeredOrder + " to "
-                                    + triggeredOrder.getMarket().getExchange().getSymbol());
-                            //TODO need 
-                            // placeOrder(specificOrder);
-                            //   OrderState newState = order.isFilled() ? OrderState.FILLED : OrderState.PARTFILLED;
-                            // updateOrderState(triggeredOrder, OrderState.ROUTED);
-                            //context.route(new PositionUpdate(null, specificOrder.getMarket(), PositionType.SHORT, PositionType.EXITING));
-
-                            if (specificOrder.getVolume() != null && !specificOrder.getVolume().isZero() && specificOrder.getVolume().isPositive()) {
-                                // need to cancel any order with same parent fill id
-                                log.info("Cancelling working orders for parent fill: " + triggeredOrder.getParentFill());
-                                try {
-                                    handleCancelSpecificOrderByParentFill(triggeredOrder.getParentFill());
-                                } catch (OrderNotFoundException e) {
-                                    log.info("order not found");
-                                }
-
-                                placeOrder(specificOrder);
-                                if (triggeredOrder.getParentFill() != null)
-                                    triggeredOrder.getParentFill().setPositionType(PositionType.EXITING);
-
-                                log.info(triggeredOrder + " triggered as specificOrder " + specificOrder);
-                                context.publish(new PositionUpdate(null, specificOrder.getMarket(), PositionType.SHORT, PositionType.EXITING));
-                            } else {
-                                log.info(triggeredOrder
-                                        + " not triggered as zero volume"
-                                        + (triggeredOrder.getParentFill() != null ? "fill open volume" + triggeredOrder.getParentFill().getOpenVolume()
-                                                : "trigger order volume" + triggeredOrder.getVolume()));
-
-                            }
-                            //i = Math.min(0, i - 1);
-                            //  triggerOrders.remove(triggerOrder);
-
-                        } else if (triggeredOrder.getTrailingStopPrice() != null) {
-                            //current price is less than the stop price so I will update the stop price
-                            long stopPrice = Math.min((triggeredOrder.getStopPrice().toBasis(triggeredOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN))
-                                    .getCount(), (triggerPrice + (triggeredOrder.getTrailingStopPrice().toBasis(triggeredOrder.getMarket().getPriceBasis(),
-                                    Remainder.ROUND_EVEN)).getCount()));
-                            DecimalAmount stopDiscrete = DecimalAmount.of(new DiscreteAmount(stopPrice, triggeredOrder.getMarket().getPriceBasis()));
-                            triggeredOrder.setStopAmount(stopDiscrete);
-                            triggeredOrder.persit();
-
-                        }
-
+        // only the orders whose stop or target this book has crossed are visited
+        for (Order triggeredOrder : triggerIndex.popTriggered(b.getMarket(), bid.getPriceCount(), ask.getPriceCount())) {
+            flushTrailingStop(triggeredOrder);
+            removeTriggerOrder(triggeredOrder);
+            log.info("triggered order:" + triggeredOrder);
+            if (triggeredOrder.isBid()) {
+                Long triggerPrice = (triggeredOrder.getExecutionInstruction() == ExecutionInstruction.MAKER) ? bid.getPriceCount() : ask.getPriceCount();
+                SpecificOrder specificOrder = convertGeneralOrderToSpecific((GeneralOrder) triggeredOrder, triggeredOrder.getMarket());
+                if (specificOrder == null) {
+                    log.info("triggered order:" + triggeredOrder + " not convereted to specific order");
+                    continue;
+                }
+                //   DiscreteAmount volume = (triggeredOrder.getUnfilledVolume().compareTo(specificOrder.getVolume()) < 0) ? : specificOrder.getVolume()
+                //         .toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD);
+
+                // DiscreteAmount volume = (generalOrder.getParentFill() == null) ? generalOrder.getVolume().toBasis(market.getVolumeBasis(), Remainder.DISCARD)
+                //       : generalOrder.getParentFill().getOpenVolume().negate().toBasis(market.getVolumeBasis(), Remainder.DISCARD);
+                if (!specificOrder.getVolume().equals(
+                        triggeredOrder.getUnfilledVolume().toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD)))
+                    log.debug("Unfilled Volume: " + triggeredOrder + " not the same as trigger volume:" + specificOrder);
+
+                specificOrder.setVolumeCount(triggeredOrder.getUnfilledVolume()
+                        .toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD).getCount());
+                specificOrder.setExecutionInstruction(ExecutionInstruction.TAKER);
+                specificOrder.setPositionEffect(PositionEffect.CLOSE);
+                specificOrder.setFillType(FillType.MARKET);
+                specificOrder.setLimitPriceCount(0);
+                // we need to set the sepecifc order children to any working open orders.
+                //TODO: loop over open order by parent fill and link them so we know to cancel them is this get's filled first.
+                // specificOrder.addChild(this);
+                // this.setParentOrder(specificOrder);
+                //specificOrder.setFillType(FillType.MARKET);
+                if (triggeredOrder.getStopPrice() != null
+                        && (triggerPrice >= (triggeredOrder.getStopPrice()
+                                .toBasis(triggeredOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount())) {
+
+                    specificOrder.setComment("Short Stop Order with Stop Price");
+                    //specificOrder.setExecutionInstruction(ExecutionInstruction.TAKER);
+                } else
+                    specificOrder.setComment("Short Stop Order with Target Price");
+                log.info("At " + context.getTime() + " Routing trigger order " + triggeredOrder + " to "
+                        + triggeredOrder.getMarket().getExchange().getSymbol());
+                //TODO need 
+                // placeOrder(specificOrder);
+                //   OrderState newState = order.isFilled() ? OrderState.FILLED : OrderState.PARTFILLED;
+                // updateOrderState(triggeredOrder, OrderState.ROUTED);
+                //context.route(new PositionUpdate(null, specificOrder.getMarket(), PositionType.SHORT, PositionType.EXITING));
+
+                if (specificOrder.getVolume() != null && !specificOrder.getVolume().isZero() && specificOrder.getVolume().isPositive()) {
+                    // need to cancel any order with same parent fill id
+                    log.info("Cancelling working orders for parent fill: " + triggeredOrder.getParentFill());
+                    try {
+                        handleCancelSpecificOrderByParentFill(triggeredOrder.getParentFill());
+                    } catch (OrderNotFoundException e) {
+                        log.info("order not found");
                     }
-                    if (triggeredOrder.isAsk()) {
-                        Long triggerPrice = triggeredOrder.getExecutionInstruction() == ExecutionInstruction.MAKER ? ask.getPriceCount() : bid.getPriceCount();
-
-                        if ((triggeredOrder.getStopPrice() != null && (triggerPrice <= (triggeredOrder.getStopPrice().toBasis(triggeredOrder.getMarket()
-                                .getPriceBasis(), Remainder.ROUND_EVEN)).getCount()))
-                                || (triggeredOrder.getTargetPrice() != null && (triggerPrice >= (triggeredOrder.getTargetPrice().toBasis(triggeredOrder
-                                        .getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount()))) {
-                            //Place order
-
-                            log.info("triggered order:" + triggeredOrder);
-                            triggeredOrders.add(triggeredOrder);
-                            // itTriggeredOrder.remove();
-                            //  triggerOrders.get(parentKey).remove(triggeredOrder);
-
-                            //   triggerOrders.remove(parentKey);
-
-                            SpecificOrder specificOrder = convertGeneralOrderToSpecific((GeneralOrder) triggeredOrder, triggeredOrder.getMarket());
-
-                            if (specificOrder == null)
-                                continue;
-                            // ask order so volumes are -10 > -4 then t
-                            //   DiscreteAmount volume = (triggeredOrder.getUnfilledVolume().compareTo(specificOrder.getVolume()) > 0) ? triggeredOrder
-                            //         .getUnfilledVolume().toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD) : specificOrder.getVolume()
-                            //       .toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD);
-
-                            // DiscreteAmount volume = (generalOrder.getParentFill() == null) ? generalOrder.getVolume().toBasis(market.getVolumeBasis(), Remainder.DISCARD)
-                            //       : generalOrder.getParentFill().getOpenVolume().negate().toBasis(market.getVolumeBasis(), Remainder.DISCARD);
-                            // specificOrder.setVolumeCount(triggeredOrder.getUnfilledVolume()
-                            //       .toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD).getCount());
-
-                            if (!specificOrder.getVolume().equals(
-                                    triggeredOrder.getUnfilledVolume().toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD)))
-                                log.debug("Unfilled Volume: " + triggeredOrder + " not the same as trigger volume:" + specificOrder);
-
-                            specificOrder.setVolumeCount(triggeredOrder.getUnfilledVolume()
-                                    .toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD).getCount());
-
-                            specificOrder.setExecutionInstruction(ExecutionInstruction.TAKER);
-                            specificOrder.setPositionEffect(PositionEffect.CLOSE);
-                            specificOrder.setFillType(FillType.MARKET);
-                            specificOrder.setLimitPriceCount(0);
-
-                            if (triggeredOrder.getStopPrice() != null
-                                    && (triggerPrice <= (triggeredOrder.getStopPrice()
-                                            .toBasis(triggeredOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount())) {
-                                specificOrder.setComment("Long Stop Order with Stop Price");
-
-                            } else
-                                specificOrder.setComment("Long Stop Order with Target Price");
-
-                            log.info("At " + context.getTime() + " Routing trigger order " + triggeredOrder + " to " + specificOrder + " to "
-                                    + specificOrder.getMarket().getExchange().getSymbol());
-                            // updateOrderState(triggeredOrder, OrderState.ROUTED);
-
-                            if (specificOrder.getVolume() != null && !specificOrder.getVolume().isZero() && specificOrder.getVolume().isNegative()) {
-                                log.info("Cancelling working orders for parent fill: " + triggeredOrder.getParentFill());
-                                try {
-                                    handleCancelSpecificOrderByParentFill(triggeredOrder.getParentFill());
-                                } catch (OrderNotFoundException e) {
-                                    log.info("order not found");
-                                }
-                                if (triggeredOrder.getParentFill() != null)
-                                    triggeredOrder.getParentFill().setPositionType(PositionType.EXITING);
-
-                                placeOrder(specificOrder);
-                                log.info(triggeredOrder + " triggered as specificOrder " + specificOrder);
-                                context.publish(new PositionUpdate(null, specificOrder.getMarket(), PositionType.LONG, PositionType.EXITING));
-                            } else {
-                                log.info(triggeredOrder
-                                        + " not triggered as zero volume"
-                                        + (triggeredOrder.getParentFill() != null ? "fill open volume" + triggeredOrder.getParentFill().getOpenVolume()
-                                                : "trigger order volume" + triggeredOrder.getVolume()));
 
-                            }
-
-                            // portfolioService.publishPositionUpdate(new Position(triggeredOrder.getPortfolio(), triggeredOrder.getMarket().getExchange(), triggeredOrder.getMarket(), triggeredOrder.getMarket().getBase(),
-                            //       DecimalAmount.ZERO, DecimalAmount.ZERO));
-
-                            //i = Math.min(0, i - 1);
-                            //triggeredOrders.add(triggeredOrder);
+                    placeOrder(specificOrder);
+                    if (triggeredOrder.getParentFill() != null)
+                        triggeredOrder.getParentFill().setPositionType(PositionType.EXITING);
 
-                        } else if (triggeredOrder.getTrailingStopPrice() != null) {
-                            //&& ((bid.getPriceCount() + order.getTrailingStopPrice().getCount() > (order.getStopPrice().getCount())))) {
-                            //current price is less than the stop price so I will update the stop price
-                            long stopPrice = Math.max((triggeredOrder.getStopPrice().toBasis(triggeredOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN))
-                                    .getCount(), (triggerPrice - (triggeredOrder.getTrailingStopPrice().toBasis(triggeredOrder.getMarket().getPriceBasis(),
-                                    Remainder.ROUND_EVEN)).getCount()));
-                            DecimalAmount stopDiscrete = DecimalAmount.of(new DiscreteAmount(stopPrice, triggeredOrder.getMarket().getPriceBasis()));
-                            triggeredOrder.setStopAmount(stopDiscrete);
-                            triggeredOrder.persit();
+                    log.info(triggeredOrder + " triggered as specificOrder " + specificOrder);
+                    context.publish(new PositionUpdate(null, specificOrder.getMarket(), PositionType.SHORT, PositionType.EXITING));
+                } else {
+                    log.info(triggeredOrder
+                            + " not triggered as zero volume"
+                            + (triggeredOrder.getParentFill() != null ? "fill open volume" + triggeredOrder.getParentFill().getOpenVolume()
+                                    : "trigger order volume" + triggeredOrder.getVolume()));
 
-                        }
+                }
+            }
+            if (triggeredOrder.isAsk()) {
+                Long triggerPrice = triggeredOrder.getExecutionInstruction() == ExecutionInstruction.MAKER ? ask.getPriceCount() : bid.getPriceCount();
+                SpecificOrder specificOrder = convertGeneralOrderToSpecific((GeneralOrder) triggeredOrder, triggeredOrder.getMarket());
 
+                if (specificOrder == null)
+                    continue;
+                // ask order so volumes are -10 > -4 then t
+                //   DiscreteAmount volume = (triggeredOrder.getUnfilledVolume().compareTo(specificOrder.getVolume()) > 0) ? triggeredOrder
+                //         .getUnfilledVolume().toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD) : specificOrder.getVolume()
+                //       .toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD);
+
+                // DiscreteAmount volume = (generalOrder.getParentFill() == null) ? generalOrder.getVolume().toBasis(market.getVolumeBasis(), Remainder.DISCARD)
+                //       : generalOrder.getParentFill().getOpenVolume().negate().toBasis(market.getVolumeBasis(), Remainder.DISCARD);
+                // specificOrder.setVolumeCount(triggeredOrder.getUnfilledVolume()
+                //       .toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD).getCount());
+
+                if (!specificOrder.getVolume().equals(
+                        triggeredOrder.getUnfilledVolume().toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD)))
+                    log.debug("Unfilled Volume: " + triggeredOrder + " not the same as trigger volume:" + specificOrder);
+
+                specificOrder.setVolumeCount(triggeredOrder.getUnfilledVolume()
+                        .toBasis(specificOrder.getMarket().getVolumeBasis(), Remainder.DISCARD).getCount());
+
+                specificOrder.setExecutionInstruction(ExecutionInstruction.TAKER);
+                specificOrder.setPositionEffect(PositionEffect.CLOSE);
+                specificOrder.setFillType(FillType.MARKET);
+                specificOrder.setLimitPriceCount(0);
+
+                if (triggeredOrder.getStopPrice() != null
+                        && (triggerPrice <= (triggeredOrder.getStopPrice()
+                                .toBasis(triggeredOrder.getMarket().getPriceBasis(), Remainder.ROUND_EVEN)).getCount())) {
+                    specificOrder.setComment("Long Stop Order with Stop Price");
+
+                } else
+                    specificOrder.setComment("Long Stop Order with Target Price");
+
+                log.info("At " + context.getTime() + " Routing trigger order " + triggeredOrder + " to " + specificOrder + " to "
+                        + specificOrder.getMarket().getExchange().getSymbol());
+                // updateOrderState(triggeredOrder, OrderState.ROUTED);
+
+                if (specificOrder.getVolume() != null && !specificOrder.getVolume().isZero() && specificOrder.getVolume().isNegative()) {
+                    log.info("Cancelling working orders for parent fill: " + triggeredOrder.getParentFill());
+                    try {
+                        handleCancelSpecificOrderByParentFill(triggeredOrder.getParentFill());
+                    } catch (OrderNotFoundException e) {
+                        log.info("order not found");
                     }
+                    if (triggeredOrder.getParentFill() != null)
+                        triggeredOrder.getParentFill().setPositionType(PositionType.EXITING);
+
+                    placeOrder(specificOrder);
+                    log.info(triggeredOrder + " triggered as specificOrder " + specificOrder);
+                    context.publish(new PositionUpdate(null, specificOrder.getMarket(), PositionType.LONG, PositionType.EXITING));
+                } else {
+                    log.info(triggeredOrder
+                            + " not triggered as zero volume"
+                            + (triggeredOrder.getParentFill() != null ? "fill open volume" + triggeredOrder.getParentFill().getOpenVolume()
+                                    : "trigger order volume" + triggeredOrder.getVolume()));
 
                 }
             }
-            triggerOrders.get(parentKey).removeAll(triggeredOrders);
-            if (triggerOrders.get(parentKey).isEmpty())
-                triggeredParents.add(parentKey);
+        }
 
+        // trailing stops move in memory and are only written to their orders every order.trailing.persist.interval seconds
+        triggerIndex.trail(b.getMarket(), bid.getPriceCount(), ask.getPriceCount());
+        // on the Context's clock, so that backtests persist at the same cadence of market time as live trading
+        long now = context.getTime().getMillis();
+        if (now - lastTrailingPersist >= trailingPersistInterval) {
+            lastTrailingPersist = now;
+            for (Map.Entry<Order, Long> moved : triggerIndex.takeMoved().entrySet())
+                persistTrailingStop(moved.getKey(), moved.getValue());
         }
-        for (Event parent : triggeredParents)
-            triggerOrders.remove(parent);
-        //triggerOrders.removeAll(triggeredOrders);
-        //  }
 
     }
 
+    /** writes the order's trailing stop to it if the stop has moved since it was last persisted */
+    private void flushTrailingStop(Order order) {
+        Long stopPrice = triggerIndex.takeMoved(order);
+        if (stopPrice != null)
+            persistTrailingStop(order, stopPrice);
+    }
+
+    private void persistTrailingStop(Order order, long stopPrice) {
+        order.setStopPrice(DecimalAmount.of(new DiscreteAmount(stopPrice, order.getMarket().getPriceBasis())));
+        order.persit();
+    }
+
+    /**
+     * Trailing stops are persisted periodically, so the stop of an order loaded or restored after a restart may lag the
+     * trail.  Re-derive it from the latest quotes as the order is indexed, before any Book can trigger it.
+     */
+    private void recoverTrailingStop(Order order) {
+        if (order.getTrailingStopPrice() == null)
+            return;
+        Offer bid = quotes.getLastBidForMarket(order.getMarket());
+        Offer ask = quotes.getLastAskForMarket(order.getMarket());
+        if (bid == null || ask == null || bid.getPriceCount() == 0 || ask.getPriceCount() == 0)
+            return;
+        triggerIndex.trail(order.getMarket(), bid.getPriceCount(), ask.getPriceCount());
+    }
+
     private SpecificOrder convertGeneralOrderToSpecific(GeneralOrder generalOrder, Market market) {
         if (generalOrder.getVolume().isZero())
 
@@ -1465,47 +1314,12 @@ public abstract class BaseOrderService implements OrderService {
 
     @Override
     public Collection<Order> getPendingStopOrders(Portfolio portfolio) {
-        Collection<Order> portfolioPendingStopOrders = new ConcurrentLinkedQueue<>();
-        Fill parentFill;
-        Order parentOrder;
-        //synchronized (lock) {
-        for (Iterator<Event> ite = triggerOrders.keySet().iterator(); ite.hasNext();) {
-            Event parentKey = ite.next();
-            for (Iterator<Order> it = triggerOrders.get(parentKey).iterator(); it.hasNext();) {
-                Order triggerOrder = it.next();
-
-                if (triggerOrder.getPortfolio().equals(portfolio))
-
-                    portfolioPendingStopOrders.add(triggerOrder);
-                //TODO could be a condition here where we have not removed the trigger order but we have set the stop price to 0 on the fill
-
-            }
-
-        }
-        return portfolioPendingStopOrders;
+        return new ConcurrentLinkedQueue<>(triggerIndex.orders(portfolio));
     }
 
     @Override
     public Order getPendingTriggerOrder(Order order) {
-        Collection<Order> portfolioPendingStopOrders = new ConcurrentLinkedQueue<>();
-        Fill parentFill;
-        Order parentOrder;
-        //synchronized (lock) {
-        for (Iterator<Event> ite = triggerOrders.keySet().iterator(); ite.hasNext();) {
-            Event parentKey = ite.next();
-            for (Iterator<Order> it = triggerOrders.get(parentKey).iterator(); it.hasNext();) {
-                Order triggerOrder = it.next();
-
-                if (triggerOrder.equals(order))
-                    return triggerOrder;
-
-                //TODO could be a condition here where we have not removed the trigger order but we have set the stop price to 0 on the fill
-
-            }
-
-        }
-        return null;
-
+        return triggerIndex.get(order);
     }
 
     @Override
@@ -1530,30 +1344,97 @@ public abstract class BaseOrderService implements OrderService {
     public abstract void handleCancelAllSpecificOrders(Portfolio portfolio, Market market);
 
     protected void updateOrderState(Order order, OrderState state, boolean route) {
+        if (order == null) {
+            applyOrderState(order, state, route);
+            return;
+        }
+        Lock lane = lockLane(order);
+        try {
+            applyOrderState(order, state, route);
+        } finally {
+            unlockLane(lane);
+        }
+    }
+
+    /**
+     * Takes the order's lane.  OrderUpdates and Transactions created while the thread holds a lane are not routed until
+     * unlockLane() releases the last lane it holds, because routing runs the Context's handlers, and a strategy handler
+     * which places an order for another listing would take a second lane.
+     */
+    protected Lock lockLane(Order order) {
+        Lock lane = lanes.lane(order);
+        lane.lock();
+        laneDepth.get()[0]++;
+        return lane;
+    }
+
+    /** releases a lane taken by lockLane(), and routes the deferred OrderUpdates once the thread holds no lane */
+    protected void unlockLane(Lock lane) {
+        lane.unlock();
+        if (--laneDepth.get()[0] == 0)
+            routeDeferred();
+    }
+
+    /** @return true if the thread holds a lane, so the event has been kept for unlockLane() to route */
+    private boolean deferRoute(Event event) {
+        if (laneDepth.get()[0] == 0)
+            return false;
+        deferredRoutes.get().add(event);
+        return true;
+    }
+
+    private void routeDeferred() {
+        List<Event> deferred = deferredRoutes.get();
+        // a handler may create more events, which join the back of the list and are routed in turn
+        while (!deferred.isEmpty()) {
+            Event event = deferred.remove(0);
+            if (event instanceof OrderUpdate)
+                routeOrderUpdate((OrderUpdate) event);
+            else
+                context.route(event);
+        }
+    }
+
+    private void applyOrderState(Order order, OrderState state, boolean route) {
+        OrderUpdate orderUpdate = recordOrderState(order, state);
+        if (orderUpdate == null)
+            return;
+        orderUpdate.persit();
+        routeOrderUpdate(orderUpdate);
+    }
+
+    /** @return the OrderUpdate for the order's new state, which has been recorded, or null if it was already in that state */
+    private OrderUpdate recordOrderState(Order order, OrderState state) {
         OrderState oldState = null;
         if (order != null)
             oldState = orderStateMap.get(order);
         if (oldState != null && oldState.equals(state))
-            return;
+            return null;
         if (oldState == null)
             oldState = OrderState.NEW;
         if (order != null) {
-            orderStateMap.put(order, state);
+            flushTrailingStop(order);
+            putOrderState(order, state);
             log.info(order + " added to order state cache");
         }
         // this.getClass()
         // context.route(new OrderUpdate(order, oldState, state));
         OrderUpdate orderUpdate = orderUpdateFactory.create(order, oldState, state);
-        //if (route)
         context.setPublishTime(orderUpdate);
+        return orderUpdate;
+    }
 
-        orderUpdate.persit();
+    private void routeOrderUpdate(OrderUpdate orderUpdate) {
+        if (deferRoute(orderUpdate))
+            return;
+        //if (route)
         context.route(orderUpdate);
         //else
         //  context.publish(orderUpdate);
 
+        Order order = orderUpdate.getOrder();
         if (order.getParentOrder() != null)
-            updateParentOrderState(order.getParentOrder(), order, state);
+            updateParentOrderState(order.getParentOrder(), order, orderUpdate.getState());
     }
 
     private void updateParentOrderState(Order order, Order childOrder, OrderState childOrderState) {
@@ -1727,37 +1608,22 @@ public abstract class BaseOrderService implements OrderService {
     }
 
     private void removeTriggerOrder(Order order) {
-
-        for (Event parentKey : triggerOrders.keySet()) {
-            ArrayList<Order> removedTriggerOrders = new ArrayList<Order>();
-            for (Order triggerOrder : triggerOrders.get(parentKey)) {
-
-                if (triggerOrder == order) {
-                    removedTriggerOrders.add(order);
-                    //  triggerOrders.get(parentKey).remove(order);
-                    // --removeOrder(order);
-                }
-
-                // pendingOrders.remove(order);
-            }
-            triggerOrders.get(parentKey).removeAll(removedTriggerOrders);
-        }
+        triggerIndex.remove(order);
     }
 
     private void addTriggerOrder(Order triggerOrder) {
         //If the trigger order is from a fill, we use the fill as the key for mutliple triggers, else we use the parent
         //any one of the multiple triggers can trigger first, but once one is triggered, all others are removed at for either the same fill or same parent
-        Event eventKey = (triggerOrder.getParentFill() != null) ? triggerOrder.getParentFill() : triggerOrder.getParentOrder();
-        if (eventKey == null)
-            eventKey = triggerOrder;
-        // synchronized (lock) {
-        ArrayList<Order> triggerOrderQueue = new ArrayList<Order>();
-        triggerOrderQueue.add(triggerOrder);
-        triggerOrders.put(eventKey, triggerOrderQueue);
-        // }
+        triggerIndex.add(triggerKey(triggerOrder), triggerOrder);
+        recoverTrailingStop(triggerOrder);
 
     }
 
+    private static Event triggerKey(Order triggerOrder) {
+        Event eventKey = (triggerOrder.getParentFill() != null) ? triggerOrder.getParentFill() : triggerOrder.getParentOrder();
+        return eventKey == null ? triggerOrder : eventKey;
+    }
+
     protected final void CreateTransaction(EntityBase entity, Boolean route) {
         Transaction transaction = null;
         Order order;
@@ -1773,7 +1639,8 @@ public abstract class BaseOrderService implements OrderService {
                     // PersistUtil.insert(transaction);
                     log.info("Created new transaction " + transaction);
                     // if (route)
-                    context.route(transaction);
+                    if (!deferRoute(transaction))
+                        context.route(transaction);
                     // else
                     // context.publish(transaction);
 
@@ -1794,7 +1661,8 @@ public abstract class BaseOrderService implements OrderService {
                     transaction.persit();
                     log.info("Created new transaction " + transaction);
                     // if (route)
-                    context.route(transaction);
+                    if (!deferRoute(transaction))
+                        context.route(transaction);
                     //else
                     //context.publish(transaction);
 
@@ -1863,7 +1731,9 @@ public abstract class BaseOrderService implements OrderService {
     }
 
     void getAllGeneralOrdersByParentFill(Fill parentFill, List allChildren) {
-        for (Order child : parentFill.getFillChildOrders()) {
+        // children tracked through their state are indexed; untracked ones, e.g. loaded but never updated, are only reachable through the entities
+        Collection<Order> children = orderIndex.children(parentFill);
+        for (Order child : children.isEmpty() ? parentFill.getFillChildOrders() : children) {
             if (child instanceof GeneralOrder)
                 allChildren.add(child);
             getAllGeneralOrderByParentOrder(child, allChildren);
@@ -1871,7 +1741,8 @@ public abstract class BaseOrderService implements OrderService {
     }
 
     void getAllGeneralOrderByParentOrder(Order paretnOrder, List allChildren) {
-        for (Order child : paretnOrder.getOrderChildren()) {
+        Collection<Order> children = orderIndex.children(paretnOrder);
+        for (Order child : children.isEmpty() ? paretnOrder.getOrderChildren() : children) {
             if (child instanceof GeneralOrder)
                 allChildren.add(child);
             getAllGeneralOrderByParentOrder(child, allChildren);
@@ -1887,6 +1758,10 @@ public abstract class BaseOrderService implements OrderService {
 
     protected boolean enableTrading = false;
     protected final Map<Order, OrderState> orderStateMap = new ConcurrentHashMap<>();
+    // secondary indexes over orderStateMap, kept in step by putOrderState()
+    protected final OrderIndex orderIndex = new OrderIndex();
+    // pre-trade limits, kept current by putOrderState(), Fills and Transactions
+    protected final RiskEngine risk = new RiskEngine();
     @Inject
     protected transient QuoteService quotes;
     @Inject
@@ -1901,13 +1776,35 @@ public abstract class BaseOrderService implements OrderService {
     @Inject
     protected transient OrderUpdateFactory orderUpdateFactory;
 
+    @Inject
+    protected transient OrderUpdateDao orderUpdateDao;
+
     @Inject
     protected transient TransactionFactory transactionFactory;
 
     @Inject
     protected transient FillFactory fillFactory;
 
-    protected final static Map<Event, ArrayList<Order>> triggerOrders = new ConcurrentHashMap<Event, ArrayList<Order>>();
+    // the resting trigger orders, by the fill or parent they protect, by market and side, and by price level so a Book only
+    // visits the ones it triggers
+    private final TriggerIndex triggerIndex = new TriggerIndex();
+    private final long trailingPersistInterval = ConfigUtil.combined().getLong("order.trailing.persist.interval", 30) * 1000;
+    private volatile long lastTrailingPersist;
+    // order placement and state updates are single-writer per (portfolio, listing) lane; see OrderLanes
+    protected final OrderLanes lanes = new OrderLanes();
+    // how many lanes this thread holds, and the events waiting for it to release the last one
+    private final ThreadLocal<int[]> laneDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    private final ThreadLocal<List<Event>> deferredRoutes = new ThreadLocal<List<Event>>() {
+        @Override
+        protected List<Event> initialValue() {
+            return new ArrayList<Event>();
+        }
+    };
     private static Object lock = new Object();
 
 }
@@ -821,11 +821,11 @@ public class BasicPortfolioService implements PortfolioService {
 
     protected static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.portfolioService");
 
-    private static int transactionsHashCode;
-    private static int tradesHashCode;
-    private static int marginsHashCode;
+    private int transactionsHashCode;
+    private int tradesHashCode;
+    private int marginsHashCode;
 
-    private static Map<Asset, Amount> balances;
+    private Map<Asset, Amount> balances;
     private Collection<Portfolio> portfolios;
 
     @Override
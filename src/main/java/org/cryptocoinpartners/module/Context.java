@@ -26,10 +26,12 @@ import org.apache.commons.lang.ArrayUtils;
 import org.cryptocoinpartners.esper.annotation.Listeners;
 import org.cryptocoinpartners.esper.annotation.Subscriber;
 import org.cryptocoinpartners.esper.annotation.When;
+import org.cryptocoinpartners.schema.Book;
 import org.cryptocoinpartners.schema.Event;
 import org.cryptocoinpartners.service.Service;
 import org.cryptocoinpartners.util.ConfigUtil;
 import org.cryptocoinpartners.util.Injector;
+import org.cryptocoinpartners.util.LatencyStats;
 import org.cryptocoinpartners.util.ReflectionUtil;
 import org.joda.time.Instant;
 import org.slf4j.Logger;
@@ -70,7 +72,7 @@ public class Context {
      * method for construction.
      */
     public static Context create() {
-        return new Context(null);
+        return new Context(null, null);
     }
 
     /**
@@ -78,7 +80,16 @@ public class Context {
      * of historical events.
      */
     public static Context create(TimeProvider timeProvider) {
-        return new Context(timeProvider);
+        return new Context(timeProvider, null);
+    }
+
+    /**
+     * Creates a Context backed by its own Esper engine instead of the shared default engine.  Use this when several
+     * Contexts must run side by side without seeing each other's statements or events; for example, the shards of a
+     * parallel backtest.
+     */
+    public static Context create(TimeProvider timeProvider, String engineURI) {
+        return new Context(timeProvider, engineURI);
     }
 
     public interface TimeProvider {
@@ -228,6 +239,8 @@ public class Context {
     }
 
     private void handlePublish(Event e) {
+        if (e instanceof Book)
+            LatencyStats.bookReceived(((Book) e).getMarket());
         Instant now;
         if (timeProvider != null) {
             now = timeProvider.nextTime(e);
@@ -548,7 +561,7 @@ public class Context {
     }
 
     @Inject
-    private Context(TimeProvider timeProvider) {
+    private Context(TimeProvider timeProvider, @Nullable String engineURI) {
         this.timeProvider = timeProvider;
 
         final com.espertech.esper.client.Configuration esperConfig = new com.espertech.esper.client.Configuration();
@@ -562,7 +575,10 @@ public class Context {
         if (timeProvider != null) {
             esperConfig.getEngineDefaults().getThreading().setInternalTimerEnabled(false);
         }
-        epService = EPServiceProviderManager.getDefaultProvider(esperConfig);
+        if (engineURI == null)
+            epService = EPServiceProviderManager.getDefaultProvider(esperConfig);
+        else
+            epService = EPServiceProviderManager.getProvider(engineURI, esperConfig);
         if (timeProvider != null) {
             lastTime = timeProvider.getInitialTime();
             final EPServiceProviderImpl epService1 = (EPServiceProviderImpl) epService;
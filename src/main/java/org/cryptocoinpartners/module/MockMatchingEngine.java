@@ -0,0 +1,378 @@
+package org.cryptocoinpartners.module;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Offer;
+import org.cryptocoinpartners.schema.SpecificOrder;
+import org.cryptocoinpartners.util.ConfigUtil;
+import org.joda.time.Instant;
+
+/**
+ * The simulated exchange behind MockOrderService.  Each Market holds our resting orders in price levels, best price
+ * first, with a FIFO queue of orders at each level, so incoming liquidity fills orders in price-time priority.  An
+ * order with no limit price is a market order and queues ahead of every limit.
+ * <p>
+ * match() walks the resting levels and the incoming offers together, best first on both sides, and stops as soon as
+ * the best remaining offer no longer crosses the best remaining level, so a Book or Trade costs O(log n + fills)
+ * however many orders are resting.  The volume of each offer is depleted as it fills orders, so one offer never fills
+ * more than its own volume across all of our orders.
+ * <p>
+ * Two optional refinements make fills more realistic for strategies which trade often:
+ * <ul>
+ * <li>Latency.  Orders reach the exchange, and cancels take effect, mock.latency milliseconds plus an exponentially
+ * distributed jitter with mean mock.latency.jitter after they are sent.  Until then an order cannot fill, and an order
+ * being cancelled can still fill.  dropCancelled() removes the orders whose cancels have arrived and hands them back,
+ * so that only then are they reported as cancelled.  Set mock.latency.seed to make the jitter repeatable.</li>
+ * <li>Queue position, when mock.queue is true.  An order joins the back of the volume shown at its price in the last
+ * Book, and must wait for that volume to trade, as seen in Trades at its price, or to be cancelled, as seen in Books
+ * showing less volume there, before a Trade at its price fills it.  A Trade through its price, or a Book offering the
+ * other side at or through its price, fills it straight away, since the queue must have been cleared for the price to
+ * get there.</li>
+ * </ul>
+ * Both are off by default.  The queue estimates only touch the levels holding our orders, so replay speed is unchanged.
+ */
+class MockMatchingEngine {
+
+    /** A fill of a resting order by an incoming offer. */
+    static class Match {
+
+        private Match(SpecificOrder order, Offer offer, long volumeCount, boolean filled) {
+            this.order = order;
+            this.offer = offer;
+            this.volumeCount = volumeCount;
+            this.filled = filled;
+        }
+
+        final SpecificOrder order;
+        final Offer offer;
+        /** the filled volume, always positive */
+        final long volumeCount;
+        /** true if this match filled the rest of the order, which has been removed from the engine */
+        final boolean filled;
+
+    }
+
+    MockMatchingEngine() {
+        this(ConfigUtil.combined().getLong("mock.latency", 0), ConfigUtil.combined().getDouble("mock.latency.jitter", 0), ConfigUtil.combined()
+                .getBoolean("mock.queue", false), ConfigUtil.combined().getLong("mock.latency.seed", 0));
+    }
+
+    MockMatchingEngine(long latency, double latencyJitter, boolean queueModel, long seed) {
+        this.latency = latency;
+        this.latencyJitter = latencyJitter;
+        this.queueModel = queueModel;
+        random = seed == 0 ? new Random() : new Random(seed);
+    }
+
+    /** @return true if cancels take effect as soon as they are sent, false if they are delayed by the latency */
+    boolean cancelsAtOnce() {
+        return latency == 0 && latencyJitter == 0;
+    }
+
+    /** queues the order behind the orders already resting at its price, once it reaches the exchange */
+    void add(SpecificOrder order, Instant sent) {
+        long remaining = Math.abs(order.getUnfilledVolumeCount());
+        if (remaining == 0)
+            return;
+        MarketLevels levels = levels(order.getMarket());
+        synchronized (levels) {
+            if (levels.resting.containsKey(order))
+                return;
+            Resting resting = new Resting(order, levelPrice(order), remaining, arrival(sent));
+            if (queueModel)
+                resting.ahead = displayedVolume(levels.lastBook, order.isBid(), resting.price);
+            TreeMap<Long, ArrayDeque<Resting>> side = order.isBid() ? levels.bids : levels.asks;
+            ArrayDeque<Resting> queue = side.get(resting.price);
+            if (queue == null) {
+                queue = new ArrayDeque<Resting>();
+                side.put(resting.price, queue);
+            }
+            queue.addLast(resting);
+            levels.resting.put(order, resting);
+        }
+    }
+
+    /**
+     * Removes the order once the cancel reaches the exchange, and until then leaves it to fill.  Unless cancelsAtOnce(),
+     * the order stays resting until dropCancelled() is called at or after the cancel's arrival.
+     *
+     * @return true if the order was resting
+     */
+    boolean cancel(SpecificOrder order, Instant sent) {
+        if (cancelsAtOnce())
+            return remove(order);
+        MarketLevels levels = markets.get(order.getMarket());
+        if (levels == null)
+            return false;
+        synchronized (levels) {
+            Resting resting = levels.resting.get(order);
+            if (resting == null)
+                return false;
+            if (resting.cancelled == Long.MAX_VALUE) {
+                resting.cancelled = arrival(sent);
+                levels.cancelling.add(resting);
+            }
+            return true;
+        }
+    }
+
+    /** removes the orders of the Market whose cancels have reached the exchange by the given time */
+    List<SpecificOrder> dropCancelled(Market market, Instant now) {
+        MarketLevels levels = markets.get(market);
+        if (levels == null)
+            return Collections.emptyList();
+        List<SpecificOrder> dropped = new ArrayList<SpecificOrder>();
+        synchronized (levels) {
+            for (Iterator<Resting> it = levels.cancelling.iterator(); it.hasNext();) {
+                Resting resting = it.next();
+                if (resting.cancelled > now.getMillis())
+                    continue;
+                it.remove();
+                if (remove(resting.order))
+                    dropped.add(resting.order);
+            }
+        }
+        return dropped;
+    }
+
+    /** @return true if the order was resting */
+    boolean remove(SpecificOrder order) {
+        MarketLevels levels = markets.get(order.getMarket());
+        if (levels == null)
+            return false;
+        synchronized (levels) {
+            Resting resting = levels.resting.remove(order);
+            if (resting == null)
+                return false;
+            levels.cancelling.remove(resting);
+            TreeMap<Long, ArrayDeque<Resting>> side = order.isBid() ? levels.bids : levels.asks;
+            ArrayDeque<Resting> queue = side.get(resting.price);
+            if (queue != null) {
+                queue.remove(resting);
+                if (queue.isEmpty())
+                    side.remove(resting.price);
+            }
+            return true;
+        }
+    }
+
+    /** recomputes the resting volume of an order whose working quantity has changed, keeping its place in the queue */
+    void resize(SpecificOrder order) {
+        MarketLevels levels = markets.get(order.getMarket());
+        if (levels == null)
+            return;
+        synchronized (levels) {
+            Resting resting = levels.resting.get(order);
+            if (resting != null)
+                resting.remaining = Math.abs(order.getUnfilledVolumeCount());
+        }
+    }
+
+    /**
+     * Records the Book as the latest for its Market and, with the queue model, moves our orders up their queues where
+     * the Book shows less volume at their price than was ahead of them.
+     */
+    void observe(Book book) {
+        MarketLevels levels = levels(book.getMarket());
+        synchronized (levels) {
+            levels.lastBook = book;
+            if (!queueModel)
+                return;
+            shrinkQueues(levels.bids, book.getBids(), true);
+            shrinkQueues(levels.asks, book.getAsks(), false);
+        }
+    }
+
+    /**
+     * Fills resting orders against incoming liquidity.
+     *
+     * @param time when the liquidity was seen at the exchange
+     * @param asks offers to sell, best (lowest) first, which fill our bids
+     * @param bids offers to buy, best (highest) first, which fill our asks
+     * @param trade true if the offers are Trades, which also consume the queues ahead of our orders
+     * @return the fills, in the order they happened
+     */
+    List<Match> match(Market market, Instant time, List<Offer> asks, List<Offer> bids, boolean trade) {
+        MarketLevels levels = markets.get(market);
+        if (levels == null)
+            return Collections.emptyList();
+        List<Match> matches = new ArrayList<Match>();
+        synchronized (levels) {
+            match(levels, levels.bids, asks, true, time.getMillis(), trade, matches);
+            match(levels, levels.asks, bids, false, time.getMillis(), trade, matches);
+        }
+        return matches;
+    }
+
+    private void match(MarketLevels levels, TreeMap<Long, ArrayDeque<Resting>> side, List<Offer> offers, boolean bid, long now, boolean trade,
+            List<Match> matches) {
+        if (side.isEmpty() || offers.isEmpty())
+            return;
+        long[] available = new long[offers.size()];
+        for (int i = 0; i < available.length; i++)
+            available[i] = offers.get(i) == null ? 0 : Math.abs(offers.get(i).getVolumeCount());
+        int next = 0;
+        Iterator<Map.Entry<Long, ArrayDeque<Resting>>> levelIt = side.entrySet().iterator();
+        while (levelIt.hasNext()) {
+            Map.Entry<Long, ArrayDeque<Resting>> level = levelIt.next();
+            long price = level.getKey();
+            ArrayDeque<Resting> queue = level.getValue();
+            next = skipEmpty(available, next);
+            if (next == available.length || !crosses(bid, price, offers.get(next).getPriceCount()))
+                // nothing left at this price, so nothing left for the worse levels either
+                return;
+            // market volume traded at exactly this price goes first to the queue ahead of each of our orders
+            long queueTraded = 0;
+            for (Iterator<Resting> it = queue.iterator(); it.hasNext();) {
+                Resting resting = it.next();
+                // an order whose cancel has arrived is left for dropCancelled() to report
+                if (resting.cancelled <= now || resting.arrival > now)
+                    continue;
+                if (queueModel)
+                    resting.ahead = Math.max(0, resting.ahead - queueTraded);
+                while (resting.remaining > 0 && (next = skipEmpty(available, next)) < available.length
+                        && crosses(bid, price, offers.get(next).getPriceCount())) {
+                    if (queueModel && resting.ahead > 0) {
+                        if (trade && offers.get(next).getPriceCount() == price) {
+                            long traded = Math.min(available[next], resting.ahead);
+                            available[next] -= traded;
+                            resting.ahead -= traded;
+                            queueTraded += traded;
+                            continue;
+                        }
+                        // the price has moved through our level, so the queue ahead of us has gone
+                        resting.ahead = 0;
+                    }
+                    long volume = Math.min(available[next], resting.remaining);
+                    available[next] -= volume;
+                    resting.remaining -= volume;
+                    matches.add(new Match(resting.order, offers.get(next), volume, resting.remaining == 0));
+                }
+                if (resting.remaining == 0) {
+                    it.remove();
+                    levels.resting.remove(resting.order);
+                    levels.cancelling.remove(resting);
+                }
+            }
+            if (queue.isEmpty())
+                levelIt.remove();
+        }
+    }
+
+    private static void shrinkQueues(TreeMap<Long, ArrayDeque<Resting>> side, List<Offer> shown, boolean bid) {
+        if (side.isEmpty() || shown.isEmpty())
+            return;
+        Map<Long, Long> volumes = new HashMap<Long, Long>(shown.size() * 2);
+        for (Offer offer : shown)
+            volumes.put(offer.getPriceCount(), Math.abs(offer.getVolumeCount()));
+        long worstShown = shown.get(shown.size() - 1).getPriceCount();
+        for (Map.Entry<Long, ArrayDeque<Resting>> level : side.entrySet()) {
+            // below the depth of the Book we cannot tell
+            if (bid ? level.getKey() < worstShown : level.getKey() > worstShown)
+                break;
+            Long volume = volumes.get(level.getKey());
+            long shownVolume = volume == null ? 0 : volume;
+            for (Resting resting : level.getValue())
+                resting.ahead = Math.min(resting.ahead, shownVolume);
+        }
+    }
+
+    /** @return the volume shown at the price on one side of the Book, which an order joining that price queues behind */
+    private static long displayedVolume(Book book, boolean bid, long price) {
+        if (book == null)
+            return 0;
+        for (Offer offer : bid ? book.getBids() : book.getAsks()) {
+            if (offer.getPriceCount() == price)
+                return Math.abs(offer.getVolumeCount());
+            if (bid ? offer.getPriceCount() < price : offer.getPriceCount() > price)
+                break;
+        }
+        return 0;
+    }
+
+    private long arrival(Instant sent) {
+        long delay = latency;
+        if (latencyJitter > 0)
+            delay += (long) (-Math.log(1 - random.nextDouble()) * latencyJitter);
+        return (sent == null ? 0 : sent.getMillis()) + delay;
+    }
+
+    private static int skipEmpty(long[] available, int next) {
+        while (next < available.length && available[next] == 0)
+            next++;
+        return next;
+    }
+
+    private static boolean crosses(boolean bid, long levelPrice, long offerPrice) {
+        return bid ? offerPrice <= levelPrice : offerPrice >= levelPrice;
+    }
+
+    private static long levelPrice(SpecificOrder order) {
+        if (order.getLimitPrice() == null)
+            return order.isBid() ? Long.MAX_VALUE : Long.MIN_VALUE;
+        return order.getLimitPrice().getCount();
+    }
+
+    private MarketLevels levels(Market market) {
+        MarketLevels levels = markets.get(market);
+        if (levels == null) {
+            MarketLevels newLevels = new MarketLevels();
+            levels = markets.putIfAbsent(market, newLevels);
+            if (levels == null)
+                levels = newLevels;
+        }
+        return levels;
+    }
+
+    private static class Resting {
+
+        private Resting(SpecificOrder order, long price, long remaining, long arrival) {
+            this.order = order;
+            this.price = price;
+            this.remaining = remaining;
+            this.arrival = arrival;
+        }
+
+        private final SpecificOrder order;
+        private final long price;
+        private long remaining;
+        /** when the order reaches the exchange, in millis */
+        private final long arrival;
+        /** when the cancel of the order reaches the exchange, in millis */
+        private long cancelled = Long.MAX_VALUE;
+        /** the market volume queued ahead of the order at its price */
+        private long ahead;
+
+    }
+
+    private static class MarketLevels {
+        /** our bids, highest first */
+        private final TreeMap<Long, ArrayDeque<Resting>> bids = new TreeMap<Long, ArrayDeque<Resting>>(Collections.reverseOrder());
+        /** our asks, lowest first */
+        private final TreeMap<Long, ArrayDeque<Resting>> asks = new TreeMap<Long, ArrayDeque<Resting>>();
+        private final Map<SpecificOrder, Resting> resting = new HashMap<SpecificOrder, Resting>();
+        /** the resting orders whose cancels are on their way to the exchange */
+        private final Set<Resting> cancelling = new LinkedHashSet<Resting>();
+        private Book lastBook;
+    }
+
+    private final ConcurrentHashMap<Market, MarketLevels> markets = new ConcurrentHashMap<Market, MarketLevels>();
+    private final long latency;
+    private final double latencyJitter;
+    private final boolean queueModel;
+    private final Random random;
+
+}
@@ -2,10 +2,13 @@ package org.cryptocoinpartners.module;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
 
 import javax.inject.Singleton;
 
@@ -26,6 +29,7 @@ import org.cryptocoinpartners.schema.OrderUpdate;
 import org.cryptocoinpartners.schema.Portfolio;
 import org.cryptocoinpartners.schema.SpecificOrder;
 import org.cryptocoinpartners.schema.Trade;
+import org.cryptocoinpartners.util.LatencyStats;
 
 /**
  * MockOrderService simulates the Filling of Orders by looking at broadcast Book data for price and volume information.
@@ -44,6 +48,7 @@ public class MockOrderService extends BaseOrderService {
             reject(specificOrder, "Stop prices unsupported");
         specificOrder.setEntryTime(context.getTime());
 
+        LatencyStats.submitted(specificOrder);
         addOrder(specificOrder);
 
         updateOrderState(specificOrder, OrderState.PLACED, true);
@@ -86,8 +91,9 @@ public class MockOrderService extends BaseOrderService {
         //mockOrderService.submit(new updateBookRunnable(t));
     }
 
+    // matching only locks the Market being matched
     @SuppressWarnings("ConstantConditions")
-    private synchronized void updateBook(Event event) {
+    private void updateBook(Event event) {
 
         Market market = null;
         List<Offer> asks = new ArrayList<>();
@@ -115,110 +121,36 @@ public class MockOrderService extends BaseOrderService {
             }
         }
 
+        // the cancels which have reached the exchange take effect before this event can fill their orders
+        for (SpecificOrder cancelledOrder : engine.dropCancelled(market, event.getTime())) {
+            pendingOrders.remove(cancelledOrder);
+            resetParentFill(cancelledOrder);
+            updateOrderState(cancelledOrder, OrderState.CANCELLED, true);
+            log.info("Cancel reached the exchange for Specific Order:" + cancelledOrder);
+        }
+        if (b != null)
+            engine.observe(b);
         List<Fill> fills = new ArrayList<Fill>();
         List<SpecificOrder> filledOrders = new ArrayList<SpecificOrder>();
-
-        // todo multiple Orders may be filled with the same Offer.  We should deplete the Offers as we fill
-        for (SpecificOrder order : getPendingOrders()) {
-            //        Iterator<SpecificOrder> itOrder = getPendingOrders().iterator();
-            //        while (itOrder.hasNext()) {
-            //            SpecificOrder order = itOrder.next();
-
-            if (order.getUnfilledVolumeCount() == 0) {
+        for (MockMatchingEngine.Match match : engine.match(market, event.getTime(), asks, bids, t != null)) {
+            SpecificOrder order = match.order;
+            Offer offer = match.offer;
+            if (t != null)
+                log.debug("filled by a trade");
+            Fill fill;
+            // buy order, so hit ask
+            if (order.isBid())
+                fill = fillFactory.create(order, offer.getTime(), offer.getTime(), offer.getMarket(), offer.getPriceCount(), match.volumeCount,
+                        Long.toString(offer.getTime().getMillis()));
+            else
+                fill = fillFactory.create(order, context.getTime(), context.getTime(), offer.getMarket(), offer.getPriceCount(), -match.volumeCount,
+                        Long.toString(offer.getTime().getMillis()));
+            fills.add(fill);
+            logFill(order, offer, fill);
+            if (match.filled)
                 filledOrders.add(order);
-                // pendingOrders.remove(order);
-                break;
-            }
-
-            if (order.getMarket().equals(market)) {
-                // buy order, so hit ask
-                if (order.isBid()) {
-                    long remainingVolume = order.getUnfilledVolumeCount();
-                    for (Offer ask : asks) {
-                        if (order.getLimitPrice() == null)
-                            log.debug("null limit");
-                        // 
-                        if ((order.getLimitPrice() != null && order.getLimitPrice().getCount() < ask.getPriceCount()) || ask == null)
-                            //  || ask.getVolumeCount() == 0 || ask.getPriceCount() == 0)
-                            break;
-                        //  synchronized (lock) {
-                        if (t != null) {
-                            log.debug("filled by a trade");
-
-                        }
-                        long fillVolume = Math.min(Math.abs(ask.getVolumeCount()), Math.abs(remainingVolume));
-                        if (fillVolume == 0)
-                            return;
-                        Fill fill = fillFactory.create(order, ask.getTime(), ask.getTime(), ask.getMarket(), ask.getPriceCount(),
-                                Math.min(Math.abs(ask.getVolumeCount()), Math.abs(order.getUnfilledVolumeCount())), Long.toString(ask.getTime().getMillis()));
-                        if (fill.getVolume() == null || fill.getVolume().isZero())
-                            log.debug("fille zero lots" + (order.getUnfilledVolumeCount()));
-                        if (fill.getVolume().abs().compareTo(order.getVolume().abs()) > 0)
-                            log.debug("overfilled" + (order.getUnfilledVolumeCount()));
-
-                        fills.add(fill);
-                        remainingVolume -= fillVolume;
-                        logFill(order, ask, fill);
-                        if (remainingVolume == 0) {
-                            filledOrders.add(order);
-                            //pendingOrders.remove(order);
-                            break;
-                        }
-                    }
-
-                }
-
-                // i--;
-                // --removeOrder(order);
-
-                //  }
-                //   break;
-
-                // if sell order, fill if limint<=Bid
-                if (order.isAsk()) {
-                    long remainingVolume = order.getUnfilledVolumeCount(); // this will be negative
-                    // we need to thingk about maker and taker
-                    //which side of the book do we hit
-                    for (Offer bid : bids) {
-                        if (order.getLimitPrice() == null)
-                            log.debug("null limit");
-
-                        if ((order.getLimitPrice() != null && order.getLimitPrice().getCount() > bid.getPriceCount()) || bid == null)
-
-                            //|| bid.getVolumeCount() == 0 || bid.getPriceCount() == 0)
-
-                            break;
-                        // synchronized (lock) {
-                        if (t != null) {
-                            log.debug("filled by a trade");
-
-                        }
-                        long fillVolume = -Math.min(Math.abs(bid.getVolumeCount()), Math.abs(remainingVolume));
-                        if (fillVolume == 0)
-                            return;
-                        Fill fill = fillFactory.create(order, context.getTime(), context.getTime(), bid.getMarket(), bid.getPriceCount(), fillVolume,
-                                Long.toString(bid.getTime().getMillis()));
-                        if (fill.getVolume() == null || fill.getVolume().isZero())
-                            log.debug("fille zero lots" + (order.getUnfilledVolumeCount()));
-
-                        if (fill.getVolume().abs().compareTo(order.getVolume().abs()) > 0)
-                            log.debug("overfilled");
-                        fills.add(fill);
-                        remainingVolume -= fillVolume;
-                        logFill(order, bid, fill);
-                        if (remainingVolume == 0) {
-                            filledOrders.add(order);
-                            // pendingOrders.remove(order);
-                            break;
-                        }
-
-                    } //  }
-                      // break;
-
-                }
-            }
         }
-        pendingOrders.removeAll(filledOrders);
+        removeOrders(filledOrders);
 
         for (Fill fill : fills) {
 
@@ -230,17 +162,52 @@ public class MockOrderService extends BaseOrderService {
 
     }
 
-    private synchronized boolean removeOrder(Order order) {
-
+    /** takes the order off the mock book at once, for orders which have filled or will never fill */
+    private boolean removeOrder(Order order) {
+        if (order instanceof SpecificOrder)
+            engine.remove((SpecificOrder) order);
         return (pendingOrders.remove(order));
 
         // pendingOrders.remove(order);
 
     }
 
+    private boolean removeOrders(Collection<SpecificOrder> orders) {
+        for (SpecificOrder order : orders)
+            engine.remove(order);
+        return pendingOrders.removeAll(orders);
+    }
+
+    /**
+     * Sends the cancel of a pending order to the engine.  With mock.latency the cancel is in flight and the order can
+     * still fill until updateBook() finds that the engine has dropped it and reports it CANCELLED.
+     *
+     * @return true if the order was removed at once, false if its cancel is in flight
+     */
+    private boolean cancelPendingOrder(SpecificOrder order) {
+        if (!engine.cancelsAtOnce() && engine.cancel(order, context.getTime()))
+            return false;
+        return removeOrder(order);
+    }
+
+    @Override
+    protected Collection<SpecificOrder> handleCancelSpecificOrders(Collection<SpecificOrder> specificOrders) {
+        Collection<SpecificOrder> cancelledOrders = new ArrayList<SpecificOrder>(specificOrders.size());
+        for (SpecificOrder specificOrder : specificOrders) {
+            if (!pendingOrders.contains(specificOrder))
+                continue;
+            if (cancelPendingOrder(specificOrder))
+                cancelledOrders.add(specificOrder);
+            else
+                updateOrderState(specificOrder, OrderState.CANCELLING, true);
+        }
+        return cancelledOrders;
+    }
+
     protected void addOrder(SpecificOrder order) {
 
         pendingOrders.add(order);
+        engine.add(order, context.getTime());
         log.debug("Order: " + order + " added to mock order book");
 
         // mockOrderService.submit(new updateBookRunnable(quotes.getLastBook(order.getMarket())));
@@ -254,8 +221,8 @@ public class MockOrderService extends BaseOrderService {
 
         switch (orderState) {
             case CANCELLING:
-                removeOrder(order);
-                updateOrderState(order, OrderState.CANCELLED, false);
+                if (!(order instanceof SpecificOrder) || !pendingOrders.contains(order) || cancelPendingOrder((SpecificOrder) order))
+                    updateOrderState(order, OrderState.CANCELLED, false);
                 break;
             default:
                 removeOrder(order);
@@ -270,12 +237,14 @@ public class MockOrderService extends BaseOrderService {
     }
 
     // private static Object lock = new Object();
-    protected static final Collection<SpecificOrder> pendingOrders = new ArrayList<SpecificOrder>();
+    // concurrent, so the lanes of different portfolios and listings can add and remove orders in parallel
+    protected final Collection<SpecificOrder> pendingOrders = Collections.newSetFromMap(new ConcurrentHashMap<SpecificOrder, Boolean>());
+    private final MockMatchingEngine engine = new MockMatchingEngine();
 
     //private QuoteService quotes;
 
     @Override
-    public synchronized Collection<SpecificOrder> getPendingOrders(Portfolio portfolio) {
+    public Collection<SpecificOrder> getPendingOrders(Portfolio portfolio) {
         Collection<SpecificOrder> portfolioPendingOrders = new ArrayList<SpecificOrder>();
         for (SpecificOrder pendingOrder : pendingOrders) {
             if (pendingOrder.getPortfolio().equals(portfolio)) {
@@ -288,7 +257,7 @@ public class MockOrderService extends BaseOrderService {
     }
 
     @Override
-    public synchronized Collection<SpecificOrder> getPendingOpenOrders(Portfolio portfolio) {
+    public Collection<SpecificOrder> getPendingOpenOrders(Portfolio portfolio) {
         Collection<SpecificOrder> portfolioPendingOrders = new ArrayList<SpecificOrder>();
 
         for (SpecificOrder pendingOrder : pendingOrders) {
@@ -302,7 +271,7 @@ public class MockOrderService extends BaseOrderService {
     }
 
     @Override
-    public synchronized Collection<SpecificOrder> getPendingLongOpenOrders(Portfolio portfolio) {
+    public Collection<SpecificOrder> getPendingLongOpenOrders(Portfolio portfolio) {
         Collection<SpecificOrder> portfolioPendingOrders = new ArrayList<SpecificOrder>();
 
         for (SpecificOrder pendingOrder : pendingOrders) {
@@ -316,7 +285,7 @@ public class MockOrderService extends BaseOrderService {
     }
 
     @Override
-    public synchronized Collection<SpecificOrder> getPendingShortOpenOrders(Portfolio portfolio) {
+    public Collection<SpecificOrder> getPendingShortOpenOrders(Portfolio portfolio) {
         Collection<SpecificOrder> portfolioPendingOrders = new ArrayList<SpecificOrder>();
 
         for (SpecificOrder pendingOrder : pendingOrders) {
@@ -330,7 +299,7 @@ public class MockOrderService extends BaseOrderService {
     }
 
     @Override
-    public synchronized Collection<SpecificOrder> getPendingCloseOrders(Portfolio portfolio) {
+    public Collection<SpecificOrder> getPendingCloseOrders(Portfolio portfolio) {
         Collection<SpecificOrder> portfolioPendingOrders = new ArrayList<SpecificOrder>();
 
         for (SpecificOrder pendingOrder : pendingOrders) {
@@ -387,7 +356,8 @@ public class MockOrderService extends BaseOrderService {
 
     @Override
     public void getAllSpecificOrdersByParentFill(Fill parentFill, List allChildren) {
-        for (Order child : parentFill.getFillChildOrders()) {
+        Collection<Order> children = orderIndex.children(parentFill);
+        for (Order child : children.isEmpty() ? parentFill.getFillChildOrders() : children) {
             if (child instanceof SpecificOrder)
                 allChildren.add(child);
             getAllSpecificOrderByParentOrder(child, allChildren);
@@ -395,7 +365,8 @@ public class MockOrderService extends BaseOrderService {
     }
 
     void getAllSpecificOrderByParentOrder(Order paretnOrder, List allChildren) {
-        for (Order child : paretnOrder.getOrderChildren()) {
+        Collection<Order> children = orderIndex.children(paretnOrder);
+        for (Order child : children.isEmpty() ? paretnOrder.getOrderChildren() : children) {
             if (child instanceof SpecificOrder)
                 allChildren.add(child);
             getAllSpecificOrderByParentOrder(child, allChildren);
@@ -404,9 +375,13 @@ public class MockOrderService extends BaseOrderService {
 
     @Override
     public void handleCancelSpecificOrder(SpecificOrder specificOrder) throws OrderNotFoundException {
-        if (removeOrder(specificOrder)) {
-            if (specificOrder.getParentFill() != null)
-                specificOrder.getParentFill().setPositionType(specificOrder.getParentFill().getOpenVolumeCount() > 0 ? PositionType.LONG : PositionType.SHORT);
+        if (!pendingOrders.contains(specificOrder))
+            throw new OrderNotFoundException("Unable to cancelled order");
+        if (!cancelPendingOrder(specificOrder)) {
+            updateOrderState(specificOrder, OrderState.CANCELLING, false);
+            log.info("handleCancelSpecificOrder sent cancel for Specific Order:" + specificOrder);
+        } else {
+            resetParentFill(specificOrder);
             // need to remove it from any parent
             //            if (specificOrder.getParentOrder() != null && specificOrder.getParentOrder().getOrderChildren() != null
             //                    && !specificOrder.getParentOrder().getOrderChildren().isEmpty())
@@ -417,18 +392,20 @@ public class MockOrderService extends BaseOrderService {
             log.info("handleCancelSpecificOrder cancelled Specific Order:" + specificOrder);
 
         }
-
-        else
-            throw new OrderNotFoundException("Unable to cancelled order");
         //cancelledOrders.add(cancelledOrder);
-        // pendingOrders.removeAll(cancelledOrders);
+        // removeOrders(cancelledOrders);
+
+    }
 
+    private void resetParentFill(SpecificOrder specificOrder) {
+        if (specificOrder.getParentFill() != null)
+            specificOrder.getParentFill().setPositionType(specificOrder.getParentFill().getOpenVolumeCount() > 0 ? PositionType.LONG : PositionType.SHORT);
     }
 
     // }
 
     @Override
-    public synchronized void handleCancelAllShortClosingSpecificOrders(Portfolio portfolio, Market market, ExecutionInstruction execInst) {
+    public void handleCancelAllShortClosingSpecificOrders(Portfolio portfolio, Market market, ExecutionInstruction execInst) {
         Collection<SpecificOrder> cancelledOrders = new ArrayList<>();
         //   synchronized (lock) {
         for (Iterator<SpecificOrder> it = pendingOrders.iterator(); it.hasNext();) {
@@ -444,13 +421,13 @@ public class MockOrderService extends BaseOrderService {
             }
         }
 
-        if (!pendingOrders.removeAll(cancelledOrders))
+        if (cancelOrders(cancelledOrders).size() < cancelledOrders.size())
             log.info("handleCancelAllShortClosingSpecificOrders Order not found: " + cancelledOrders);
 
     }
 
     @Override
-    public synchronized void handleCancelAllLongClosingSpecificOrders(Portfolio portfolio, Market market, ExecutionInstruction execInst) {
+    public void handleCancelAllLongClosingSpecificOrders(Portfolio portfolio, Market market, ExecutionInstruction execInst) {
         Collection<SpecificOrder> cancelledOrders = new ArrayList<>();
         //   synchronized (lock) {
         for (Iterator<SpecificOrder> it = pendingOrders.iterator(); it.hasNext();) {
@@ -464,13 +441,13 @@ public class MockOrderService extends BaseOrderService {
                 log.info("handleCancelAllLongClosingSpecificOrders cancelling order : " + specificOrder);
             }
         }
-        if (!pendingOrders.removeAll(cancelledOrders))
+        if (cancelOrders(cancelledOrders).size() < cancelledOrders.size())
             log.info("handleCancelAllLongClosingSpecificOrders Order not found: " + cancelledOrders);
 
     }
 
     @Override
-    public synchronized void handleCancelAllClosingSpecificOrders(Portfolio portfolio, Market market) {
+    public void handleCancelAllClosingSpecificOrders(Portfolio portfolio, Market market) {
         Collection<SpecificOrder> cancelledOrders = new ArrayList<>();
         //   synchronized (lock) {
         for (Iterator<SpecificOrder> it = pendingOrders.iterator(); it.hasNext();) {
@@ -480,15 +457,15 @@ public class MockOrderService extends BaseOrderService {
                 cancelledOrders.add(specificOrder);
                 log.info("handleCancelAllLongClosingSpecificOrders cancelling order : " + specificOrder);
             }
-            if (!pendingOrders.removeAll(cancelledOrders))
+        }
+        if (cancelOrders(cancelledOrders).size() < cancelledOrders.size())
 
-                log.info("handleCancelAllLongClosingSpecificOrders Order not found: " + specificOrder);
+            log.info("handleCancelAllLongClosingSpecificOrders Order not found: " + cancelledOrders);
 
-        }
     }
 
     @Override
-    public synchronized void handleCancelAllLongOpeningSpecificOrders(Portfolio portfolio, Market market) {
+    public void handleCancelAllLongOpeningSpecificOrders(Portfolio portfolio, Market market) {
         Collection<SpecificOrder> cancelledOrders = new ArrayList<>();
         //  synchronized (lock) {
         for (SpecificOrder specificOrder : pendingOrders) {
@@ -498,14 +475,14 @@ public class MockOrderService extends BaseOrderService {
             }
 
         }
-        if (!pendingOrders.removeAll(cancelledOrders))
+        if (cancelOrders(cancelledOrders).size() < cancelledOrders.size())
 
             log.info("handleCancelAllLongOpeningSpecificOrders Orders not found: " + cancelledOrders);
 
     }
 
     @Override
-    public synchronized void handleCancelAllShortOpeningSpecificOrders(Portfolio portfolio, Market market) {
+    public void handleCancelAllShortOpeningSpecificOrders(Portfolio portfolio, Market market) {
         Collection<SpecificOrder> cancelledOrders = new ArrayList<>();
         //  synchronized (lock) {
         for (SpecificOrder specificOrder : pendingOrders) {
@@ -515,14 +492,14 @@ public class MockOrderService extends BaseOrderService {
             }
 
         }
-        if (!pendingOrders.removeAll(cancelledOrders))
+        if (cancelOrders(cancelledOrders).size() < cancelledOrders.size())
 
             log.info("handleCancelAllShortOpeningSpecificOrders Orders not found: " + cancelledOrders);
 
     }
 
     @Override
-    public synchronized void handleCancelAllOpeningSpecificOrders(Portfolio portfolio, Market market) {
+    public void handleCancelAllOpeningSpecificOrders(Portfolio portfolio, Market market) {
         Collection<SpecificOrder> cancelledOrders = new ArrayList<>();
         //  synchronized (lock) {
         for (SpecificOrder specificOrder : pendingOrders) {
@@ -532,14 +509,14 @@ public class MockOrderService extends BaseOrderService {
             }
 
         }
-        if (!pendingOrders.removeAll(cancelledOrders))
+        if (cancelOrders(cancelledOrders).size() < cancelledOrders.size())
 
             log.info("handleCancelAllOpeningSpecificOrders Orders not found: " + cancelledOrders);
 
     }
 
     @Override
-    public synchronized void handleCancelAllSpecificOrders(Portfolio portfolio, Market market) {
+    public void handleCancelAllSpecificOrders(Portfolio portfolio, Market market) {
         Collection<SpecificOrder> cancelledOrders = new ArrayList<>();
         // synchronized (lock) {
         for (Iterator<SpecificOrder> it = pendingOrders.iterator(); it.hasNext();) {
@@ -549,7 +526,7 @@ public class MockOrderService extends BaseOrderService {
                 log.info("handleCancelAllSpecificOrders cancelling order : " + specificOrder);
             }
         }
-        if (!pendingOrders.removeAll(cancelledOrders))
+        if (cancelOrders(cancelledOrders).size() < cancelledOrders.size())
 
             log.info("handleCancelAllSpecificOrders Orders not found: " + cancelledOrders);
 
@@ -566,7 +543,7 @@ public class MockOrderService extends BaseOrderService {
     }
 
     @Override
-    public synchronized Collection<SpecificOrder> getPendingOpenOrders(Market market, Portfolio portfolio) {
+    public Collection<SpecificOrder> getPendingOpenOrders(Market market, Portfolio portfolio) {
         Collection<SpecificOrder> portfolioPendingOrders = new ArrayList<>();
 
         for (SpecificOrder pendingOrder : pendingOrders) {
@@ -581,7 +558,7 @@ public class MockOrderService extends BaseOrderService {
     }
 
     @Override
-    public synchronized Collection<SpecificOrder> getPendingLongCloseOrders(Portfolio portfolio, ExecutionInstruction execInst) {
+    public Collection<SpecificOrder> getPendingLongCloseOrders(Portfolio portfolio, ExecutionInstruction execInst) {
         Collection<SpecificOrder> portfolioPendingOrders = new ArrayList<SpecificOrder>();
 
         for (SpecificOrder pendingOrder : pendingOrders) {
@@ -599,7 +576,7 @@ public class MockOrderService extends BaseOrderService {
     }
 
     @Override
-    public synchronized Collection<SpecificOrder> getPendingShortCloseOrders(Portfolio portfolio, ExecutionInstruction execInst) {
+    public Collection<SpecificOrder> getPendingShortCloseOrders(Portfolio portfolio, ExecutionInstruction execInst) {
         Collection<SpecificOrder> portfolioPendingOrders = new ArrayList<SpecificOrder>();
 
         for (SpecificOrder pendingOrder : pendingOrders) {
@@ -617,7 +594,7 @@ public class MockOrderService extends BaseOrderService {
     }
 
     @Override
-    public synchronized Collection<SpecificOrder> getPendingOrders(Market market, Portfolio portfolio) {
+    public Collection<SpecificOrder> getPendingOrders(Market market, Portfolio portfolio) {
         Collection<SpecificOrder> portfolioPendingOrders = new ArrayList<>();
 
         for (SpecificOrder pendingOrder : pendingOrders) {
@@ -640,12 +617,20 @@ public class MockOrderService extends BaseOrderService {
 
     @Override
     public void getAllSpecificOrdersByParentOrder(Order parentOrder, List allChildren) {
-        // TODO Auto-generated method stub
-
+        getAllSpecificOrderByParentOrder(parentOrder, allChildren);
     }
 
     @Override
-    protected synchronized void handleUpdateSpecificOrderWorkingQuantity(SpecificOrder specificOrder, DiscreteAmount quantity) {
+    protected void handleUpdateSpecificOrderWorkingQuantity(SpecificOrder specificOrder, DiscreteAmount quantity) {
+        Lock lane = lockLane(specificOrder);
+        try {
+            updateWorkingQuantity(specificOrder, quantity);
+        } finally {
+            unlockLane(lane);
+        }
+    }
+
+    private void updateWorkingQuantity(SpecificOrder specificOrder, DiscreteAmount quantity) {
         for (SpecificOrder pendingOrder : pendingOrders) {
             if (pendingOrder.equals(specificOrder)) {
                 // so we need to ensure that the unfilled wuanity is waulty to the qauntity.
@@ -657,6 +642,7 @@ public class MockOrderService extends BaseOrderService {
 
                 //&& pendingOrder.getMarket().equals(market)) {
                 pendingOrder.setVolumeCount(updatedQuantity);
+                engine.resize(pendingOrder);
 
             }
 
@@ -0,0 +1,129 @@
+package org.cryptocoinpartners.module;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import org.cryptocoinpartners.enumeration.OrderState;
+import org.cryptocoinpartners.schema.Fill;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Order;
+import org.cryptocoinpartners.schema.SpecificOrder;
+
+/**
+ * Secondary indexes over the orders tracked in an OrderService's order state map, updated whenever an order's state is
+ * recorded: orders by id and by exchange remote key, the child orders of each parent Fill and parent Order, and the open
+ * SpecificOrders of each Market and side.  They turn reconciliation with an exchange and cancel-by-parent into map
+ * lookups instead of scans of every tracked order or walks of the entity graph.
+ * <p>
+ * Like the order state map, the indexes keep closed orders; only the open order sets shrink.
+ */
+public class OrderIndex {
+
+    /** records the order's new state, indexing it on first sight and whenever its remote key or openness changes */
+    public void update(Order order, OrderState state) {
+        if (order == null)
+            return;
+        byId.put(order.getId(), order);
+        if (order.getParentFill() != null)
+            add(byParentFill, order.getParentFill(), order);
+        if (order.getParentOrder() != null)
+            add(byParentOrder, order.getParentOrder(), order);
+        if (!(order instanceof SpecificOrder))
+            return;
+        SpecificOrder specificOrder = (SpecificOrder) order;
+        if (specificOrder.getRemoteKey() != null && !specificOrder.getRemoteKey().isEmpty())
+            byRemoteKey.put(specificOrder.getRemoteKey(), specificOrder);
+        if (specificOrder.getMarket() == null)
+            return;
+        ConcurrentHashMap<Market, Set<SpecificOrder>> open = specificOrder.isBid() ? openBids : openAsks;
+        if (state != null && state.isOpen())
+            add(open, specificOrder.getMarket(), specificOrder);
+        else {
+            Set<SpecificOrder> orders = open.get(specificOrder.getMarket());
+            if (orders != null)
+                orders.remove(specificOrder);
+        }
+    }
+
+    @Nullable
+    public Order forId(UUID id) {
+        return byId.get(id);
+    }
+
+    @Nullable
+    public SpecificOrder forRemoteKey(String remoteKey) {
+        return remoteKey == null ? null : byRemoteKey.get(remoteKey);
+    }
+
+    /** @return the orders whose parent is the Fill */
+    public Collection<Order> children(Fill parentFill) {
+        return get(byParentFill, parentFill);
+    }
+
+    /** @return the orders whose parent is the Order */
+    public Collection<Order> children(Order parentOrder) {
+        return get(byParentOrder, parentOrder);
+    }
+
+    /** adds the children of the Fill, their children and so on, which are instances of the type, to descendants */
+    public <T extends Order> void descendants(Fill parentFill, Class<T> type, List<? super T> descendants) {
+        for (Order child : children(parentFill)) {
+            if (type.isInstance(child))
+                descendants.add(type.cast(child));
+            descendants(child, type, descendants);
+        }
+    }
+
+    /** adds the children of the Order, their children and so on, which are instances of the type, to descendants */
+    public <T extends Order> void descendants(Order parentOrder, Class<T> type, List<? super T> descendants) {
+        for (Order child : children(parentOrder)) {
+            if (type.isInstance(child))
+                descendants.add(type.cast(child));
+            descendants(child, type, descendants);
+        }
+    }
+
+    /** @return a copy of the open SpecificOrders on one side of the Market */
+    public List<SpecificOrder> openOrders(Market market, boolean bid) {
+        Set<SpecificOrder> orders = (bid ? openBids : openAsks).get(market);
+        return orders == null ? new ArrayList<SpecificOrder>() : new ArrayList<SpecificOrder>(orders);
+    }
+
+    /** @return a copy of the open SpecificOrders on both sides of the Market */
+    public List<SpecificOrder> openOrders(Market market) {
+        List<SpecificOrder> orders = openOrders(market, true);
+        orders.addAll(openOrders(market, false));
+        return orders;
+    }
+
+    private static <K, V> void add(ConcurrentHashMap<K, Set<V>> index, K key, V value) {
+        Set<V> values = index.get(key);
+        if (values == null) {
+            Set<V> newValues = Collections.newSetFromMap(new ConcurrentHashMap<V, Boolean>());
+            values = index.putIfAbsent(key, newValues);
+            if (values == null)
+                values = newValues;
+        }
+        values.add(value);
+    }
+
+    private static <K, V> Collection<V> get(ConcurrentHashMap<K, Set<V>> index, K key) {
+        Set<V> values = key == null ? null : index.get(key);
+        return values == null ? Collections.<V> emptySet() : values;
+    }
+
+    private final ConcurrentHashMap<UUID, Order> byId = new ConcurrentHashMap<UUID, Order>();
+    private final ConcurrentHashMap<String, SpecificOrder> byRemoteKey = new ConcurrentHashMap<String, SpecificOrder>();
+    private final ConcurrentHashMap<Fill, Set<Order>> byParentFill = new ConcurrentHashMap<Fill, Set<Order>>();
+    private final ConcurrentHashMap<Order, Set<Order>> byParentOrder = new ConcurrentHashMap<Order, Set<Order>>();
+    private final ConcurrentHashMap<Market, Set<SpecificOrder>> openBids = new ConcurrentHashMap<Market, Set<SpecificOrder>>();
+    private final ConcurrentHashMap<Market, Set<SpecificOrder>> openAsks = new ConcurrentHashMap<Market, Set<SpecificOrder>>();
+
+}
@@ -0,0 +1,70 @@
+package org.cryptocoinpartners.module;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.cryptocoinpartners.schema.GeneralOrder;
+import org.cryptocoinpartners.schema.Listing;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Order;
+import org.cryptocoinpartners.schema.Portfolio;
+import org.cryptocoinpartners.util.ConfigUtil;
+
+/**
+ * Striped locks which partition order handling into lanes, so that orders for unrelated portfolios and listings are
+ * placed and updated in parallel while each lane stays single-writer.
+ * <p>
+ * A lane is a (Portfolio, Listing) pair.  Lanes are keyed by Listing rather than Market because a GeneralOrder for a
+ * Listing may be routed to any Market of it, and the specific order must stay in its parent's lane.  The order
+ * handling of one lane is applied one operation at a time, and since the locks are fair, in the order the callers
+ * reached the lane; operations from a single thread are applied in program order.  Nothing is guaranteed about the
+ * relative order of different lanes.  Book handling for a Market is serialized separately by market(), which must be
+ * taken before any lane and never while holding one.
+ * <p>
+ * The locks are reentrant, so a lane may be re-entered by the thread holding it, but a thread holding one lane must
+ * not take another: two lanes may share a stripe, and crossing lanes could deadlock.  The number of stripes is set by
+ * order.lanes.
+ */
+public class OrderLanes {
+
+    public OrderLanes() {
+        this(ConfigUtil.combined().getInt("order.lanes", 64));
+    }
+
+    public OrderLanes(int stripes) {
+        lanes = new ReentrantLock[Math.max(1, stripes)];
+        markets = new ReentrantLock[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ReentrantLock(true);
+            markets[i] = new ReentrantLock(true);
+        }
+    }
+
+    /** @return the lock for the lane of the order */
+    public ReentrantLock lane(Order order) {
+        Market market = order.getMarket();
+        Listing listing = market != null ? market.getListing() : order instanceof GeneralOrder ? ((GeneralOrder) order).getListing() : null;
+        return lane(order.getPortfolio(), listing);
+    }
+
+    /** @return the lock for the lane of a Portfolio and Listing, either of which may be null */
+    public ReentrantLock lane(Portfolio portfolio, Listing listing) {
+        int hash = 31 * (portfolio == null ? 0 : portfolio.hashCode()) + (listing == null ? 0 : listing.hashCode());
+        return lanes[index(hash)];
+    }
+
+    /** @return the lock serializing the handling of Books for the Market */
+    public ReentrantLock market(Market market) {
+        return markets[index(market == null ? 0 : market.hashCode())];
+    }
+
+    private int index(int hash) {
+        // spread the bits, as HashMap does, before taking the stripe
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return (hash & 0x7fffffff) % lanes.length;
+    }
+
+    private final ReentrantLock[] lanes;
+    private final ReentrantLock[] markets;
+
+}
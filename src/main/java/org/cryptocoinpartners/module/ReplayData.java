@@ -1,7 +0,0 @@
-package org.cryptocoinpartners.module;
-
-
-public class ReplayData
-{
-    // todo
-}
@@ -0,0 +1,404 @@
+package org.cryptocoinpartners.module;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.configuration.Configuration;
+import org.cryptocoinpartners.enumeration.OrderState;
+import org.cryptocoinpartners.enumeration.PositionEffect;
+import org.cryptocoinpartners.schema.Amount;
+import org.cryptocoinpartners.schema.Asset;
+import org.cryptocoinpartners.schema.Fill;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Order;
+import org.cryptocoinpartners.schema.Portfolio;
+import org.cryptocoinpartners.schema.Position;
+import org.cryptocoinpartners.schema.SpecificOrder;
+import org.cryptocoinpartners.schema.Transaction;
+import org.cryptocoinpartners.util.ConfigUtil;
+import org.joda.time.Instant;
+
+/**
+ * Pre-trade risk checks which run inline in placeOrder().  Rather than rebuilding a portfolio's balances from all its
+ * positions and transactions on each order, as PortfolioService.getAvailableBalances() does, the engine keeps each
+ * portfolio's exposure up to date as events arrive: the net position and last fill price of each Market, the unfilled
+ * volume of its open orders on each side, and for each traded currency the cash, the margin held by open orders, the
+ * margin of the positions and their gross notional.  Order states, Fills and Transactions each adjust a few of these
+ * figures, so checking an order is a handful of map lookups whatever the size of the portfolio's history.
+ * <p>
+ * An order which passes check() reserves its volume and margin at once, so orders placed concurrently from different
+ * lanes are checked against each other; the reservation shrinks as the order fills and is released when it closes.
+ * Notional is |price * volume| * contract size in the traded currency, inverting the price where the traded currency
+ * is the base, and margin is the notional divided by the Market's leverage, as in FeesUtil.  Orders are valued at their
+ * limit price, or else at the price given by the OrderService, or else at the Market's last fill; an order with none of
+ * these has no notional.  Positions are valued at their Market's last fill.
+ * <p>
+ * Orders with PositionEffect.CLOSE, such as the exits placed when a stop or target triggers, only reduce the
+ * position, so they pass every check, add nothing to exposure or margin and do not count towards
+ * risk.orders.open.max; their volume is still counted on their side of the Market.
+ * <p>
+ * Limits of zero are off, and while every limit is off the engine keeps no books at all.  A portfolio is seeded from
+ * its positions and transactions the first time the engine sees it; orders which were open before then are only
+ * counted once their state next changes, and transactions no later than the latest one seeded are taken to have been
+ * counted already.  Trigger orders are not checked until they are triggered and placed as SpecificOrders.
+ */
+public class RiskEngine {
+
+    public RiskEngine() {
+        this(ConfigUtil.combined());
+    }
+
+    RiskEngine(Configuration config) {
+        maxOrderVolume = config.getDouble("risk.order.volume.max", 0);
+        maxOpenOrders = config.getInt("risk.orders.open.max", 0);
+        maxPosition = config.getDouble("risk.position.max", 0);
+        maxExposure = config.getDouble("risk.exposure.max", 0);
+        checkBalance = config.getBoolean("risk.balance.check", false);
+        // with every limit off there is nothing to check, so keep no books
+        enabled = config.getBoolean("risk.enabled", true)
+                && (maxOrderVolume > 0 || maxOpenOrders > 0 || maxPosition > 0 || maxExposure > 0 || checkBalance);
+    }
+
+    /**
+     * Checks a new order against the limits and, if it passes, reserves its volume and margin.
+     *
+     * @param price the price to value the order at when it has no limit price, or 0 for the Market's last fill
+     * @return null if the order passes, otherwise the limit it would break
+     */
+    public String check(SpecificOrder order, double price) {
+        if (!enabled || order.getPortfolio() == null || order.getMarket() == null)
+            return null;
+        return portfolio(order.getPortfolio()).check(order, price);
+    }
+
+    /** reserves for the order while it is open and releases its reservation when it closes */
+    public void update(Order order, OrderState state) {
+        if (!enabled || !(order instanceof SpecificOrder) || order.getPortfolio() == null || order.getMarket() == null || state == null)
+            return;
+        PortfolioRisk risk = portfolio(order.getPortfolio());
+        if (state.isOpen())
+            risk.reserve((SpecificOrder) order, 0);
+        else
+            risk.release((SpecificOrder) order);
+    }
+
+    /** moves the filled volume from the order's reservation to its Market's position */
+    public void fill(Fill fill) {
+        if (!enabled || fill.getPortfolio() == null || fill.getMarket() == null)
+            return;
+        portfolio(fill.getPortfolio()).fill(fill);
+    }
+
+    public void transaction(Transaction transaction) {
+        if (!enabled || transaction.getPortfolio() == null || transaction.getType() == null)
+            return;
+        portfolio(transaction.getPortfolio()).transaction(transaction);
+    }
+
+    /** @return the asset's cash less the margin held by open orders and positions */
+    public double getAvailableBalance(Portfolio portfolio, Asset asset) {
+        return portfolio(portfolio).available(asset);
+    }
+
+    private PortfolioRisk portfolio(Portfolio portfolio) {
+        PortfolioRisk risk = portfolios.get(portfolio);
+        if (risk == null) {
+            PortfolioRisk newRisk = new PortfolioRisk(portfolio);
+            risk = portfolios.putIfAbsent(portfolio, newRisk);
+            if (risk == null)
+                risk = newRisk;
+        }
+        return risk;
+    }
+
+    private static double notional(Market market, double price, double volume) {
+        if (market.getTradedCurrency() != null && market.getTradedCurrency().equals(market.getBase()) && price != 0)
+            price = 1 / price;
+        return Math.abs(price * volume) * market.getContractSize();
+    }
+
+    private static double leverage(Market market) {
+        return market.getMargin() == 0 ? 1 : market.getMargin();
+    }
+
+    private static double value(Amount amount) {
+        return amount == null ? 0 : amount.asDouble();
+    }
+
+    /** the risk figures of one portfolio, each method holding its lock for a few map operations */
+    private class PortfolioRisk {
+
+        PortfolioRisk(Portfolio portfolio) {
+            this.portfolio = portfolio;
+        }
+
+        synchronized String check(SpecificOrder order, double price) {
+            seed();
+            if (reservations.containsKey(order))
+                return null;
+            Market market = order.getMarket();
+            MarketRisk marketRisk = market(market);
+            AssetRisk assetRisk = asset(market.getTradedCurrency());
+            double volume = Math.abs(value(order.getUnfilledVolume()));
+            double orderPrice = price(order, price, marketRisk);
+            double notional = notional(market, orderPrice, volume);
+            double margin = notional / leverage(market);
+            if (closing(order)) {
+                add(new Reservation(market, order.isBid(), volume, orderPrice, true), order);
+                return null;
+            }
+            if (maxOrderVolume > 0 && volume > maxOrderVolume)
+                return "volume " + volume + " exceeds risk.order.volume.max " + maxOrderVolume;
+            if (maxOpenOrders > 0 && openOrders >= maxOpenOrders)
+                return portfolio.getName() + " already has risk.orders.open.max " + maxOpenOrders + " open orders";
+            if (maxPosition > 0) {
+                // the position if every open order on the same side filled along with this one
+                double position = order.isBid() ? marketRisk.position + marketRisk.openBuy + volume : marketRisk.position - marketRisk.openSell - volume;
+                if (Math.abs(position) > maxPosition)
+                    return "position of up to " + position + " in " + market + " exceeds risk.position.max " + maxPosition;
+            }
+            if (maxExposure > 0 && assetRisk.exposure + notional > maxExposure)
+                return "exposure of " + (assetRisk.exposure + notional) + " " + market.getTradedCurrency() + " exceeds risk.exposure.max " + maxExposure;
+            if (checkBalance && margin > 0 && assetRisk.reserve + assetRisk.margin + margin > assetRisk.cash)
+                return "margin of " + margin + " " + market.getTradedCurrency() + " exceeds the available balance of " + available(assetRisk);
+            add(new Reservation(market, order.isBid(), volume, orderPrice, false), order);
+            return null;
+        }
+
+        synchronized void reserve(SpecificOrder order, double price) {
+            seed();
+            if (reservations.containsKey(order))
+                return;
+            MarketRisk marketRisk = market(order.getMarket());
+            add(new Reservation(order.getMarket(), order.isBid(), Math.abs(value(order.getUnfilledVolume())), price(order, price, marketRisk), closing(order)),
+                    order);
+        }
+
+        synchronized void release(SpecificOrder order) {
+            seed();
+            Reservation reservation = reservations.remove(order);
+            if (reservation != null)
+                apply(reservation, -1);
+        }
+
+        synchronized void fill(Fill fill) {
+            seed();
+            double volume = value(fill.getVolume());
+            Reservation reservation = fill.getOrder() == null ? null : reservations.get(fill.getOrder());
+            if (reservation != null) {
+                apply(reservation, -1);
+                reservation.volume = Math.max(0, reservation.volume - Math.abs(volume));
+                apply(reservation, 1);
+            }
+            MarketRisk marketRisk = market(fill.getMarket());
+            marketRisk.position += volume;
+            if (fill.getPrice() != null)
+                marketRisk.mark = fill.getPrice().asDouble();
+            revalue(fill.getMarket(), marketRisk);
+        }
+
+        synchronized void transaction(Transaction transaction) {
+            seed();
+            if (seeded(transaction))
+                return;
+            apply(transaction);
+        }
+
+        /** @return true if the seeding already counted the transaction */
+        private boolean seeded(Transaction transaction) {
+            Instant time = transaction.getTime();
+            if (time == null || time.equals(seedPoint))
+                return atSeedPoint.remove(transaction);
+            if (seedPoint != null && time.isBefore(seedPoint))
+                return true;
+            // past the seed point, so the seeded transactions still to come are all older than this one
+            atSeedPoint.clear();
+            return false;
+        }
+
+        synchronized double available(Asset asset) {
+            seed();
+            return available(asset(asset));
+        }
+
+        private double available(AssetRisk assetRisk) {
+            return assetRisk.cash - assetRisk.reserve - assetRisk.margin;
+        }
+
+        /** the cash balances as PortfolioService.getCashBalances() sums them, one transaction at a time */
+        private void apply(Transaction transaction) {
+            switch (transaction.getType()) {
+                case BUY:
+                case SELL:
+                    asset(transaction.getAsset()).cash += value(transaction.getCost());
+                    break;
+                case CREDIT:
+                case DEBIT:
+                case INTREST:
+                case FEES:
+                    asset(transaction.getCurrency()).cash += value(transaction.getCost());
+                    break;
+                case REBALANCE:
+                    asset(transaction.getCurrency()).cash += value(transaction.getAmount());
+                    asset(transaction.getAsset()).cash += value(transaction.getCost());
+                    break;
+                case REALISED_PROFIT_LOSS:
+                    asset(transaction.getCurrency()).cash += value(transaction.getAmount());
+                    break;
+                default:
+                    // reservations are tracked by the engine itself
+                    break;
+            }
+        }
+
+        private void add(Reservation reservation, SpecificOrder order) {
+            reservations.put(order, reservation);
+            apply(reservation, 1);
+        }
+
+        /** adds (sign 1) or removes (sign -1) the reservation's volume, notional and margin */
+        private void apply(Reservation reservation, int sign) {
+            MarketRisk marketRisk = market(reservation.market);
+            if (reservation.bid)
+                marketRisk.openBuy += sign * reservation.volume;
+            else
+                marketRisk.openSell += sign * reservation.volume;
+            if (reservation.closing)
+                return;
+            openOrders += sign;
+            double notional = notional(reservation.market, reservation.price, reservation.volume);
+            AssetRisk assetRisk = asset(reservation.market.getTradedCurrency());
+            assetRisk.exposure += sign * notional;
+            assetRisk.reserve += sign * notional / leverage(reservation.market);
+        }
+
+        /** replaces the position's contribution to its asset's exposure and margin with its value at the current mark */
+        private void revalue(Market market, MarketRisk marketRisk) {
+            AssetRisk assetRisk = asset(market.getTradedCurrency());
+            assetRisk.exposure -= marketRisk.notional;
+            assetRisk.margin -= marketRisk.margin;
+            marketRisk.notional = notional(market, marketRisk.mark, marketRisk.position);
+            marketRisk.margin = marketRisk.notional / leverage(market);
+            assetRisk.exposure += marketRisk.notional;
+            assetRisk.margin += marketRisk.margin;
+        }
+
+        private double price(SpecificOrder order, double price, MarketRisk marketRisk) {
+            if (order.getLimitPrice() != null)
+                return order.getLimitPrice().asDouble();
+            return price != 0 ? price : marketRisk.mark;
+        }
+
+        /** the one full pass over the portfolio, the first time the engine sees it */
+        private void seed() {
+            if (seeded)
+                return;
+            seeded = true;
+            for (Position position : portfolio.getPositions()) {
+                if (position.getMarket() == null)
+                    continue;
+                MarketRisk marketRisk = market(position.getMarket());
+                marketRisk.position += value(position.getVolume());
+                if (position.getAvgPrice() != null)
+                    marketRisk.mark = position.getAvgPrice().asDouble();
+                revalue(position.getMarket(), marketRisk);
+            }
+            Collection<Transaction> transactions = portfolio.getTransactions();
+            for (Transaction transaction : transactions) {
+                if (transaction.getType() == null)
+                    continue;
+                apply(transaction);
+                if (transaction.getTime() != null && (seedPoint == null || transaction.getTime().isAfter(seedPoint)))
+                    seedPoint = transaction.getTime();
+            }
+            // the transactions already in the portfolio may still be on their way to transaction(); those before the
+            // seed point are told apart by their time, so only the ones at it are kept
+            for (Transaction transaction : transactions)
+                if (transaction.getType() != null && (transaction.getTime() == null || transaction.getTime().equals(seedPoint)))
+                    atSeedPoint.add(transaction);
+        }
+
+        private MarketRisk market(Market market) {
+            MarketRisk marketRisk = markets.get(market);
+            if (marketRisk == null) {
+                marketRisk = new MarketRisk();
+                markets.put(market, marketRisk);
+            }
+            return marketRisk;
+        }
+
+        private AssetRisk asset(Asset asset) {
+            AssetRisk assetRisk = assets.get(asset);
+            if (assetRisk == null) {
+                assetRisk = new AssetRisk();
+                assets.put(asset, assetRisk);
+            }
+            return assetRisk;
+        }
+
+        private final Portfolio portfolio;
+        private final Map<Market, MarketRisk> markets = new HashMap<Market, MarketRisk>();
+        private final Map<Asset, AssetRisk> assets = new HashMap<Asset, AssetRisk>();
+        private final Map<SpecificOrder, Reservation> reservations = new HashMap<SpecificOrder, Reservation>();
+        // the reservations which count towards risk.orders.open.max, which are those not closing a position
+        private int openOrders;
+        private boolean seeded;
+        // the time of the latest transaction counted by the seeding, and the seeded transactions at that time or
+        // without one which transaction() has yet to see
+        private Instant seedPoint;
+        private final Set<Transaction> atSeedPoint = new HashSet<Transaction>();
+    }
+
+    private static class MarketRisk {
+        private double position;
+        private double mark;
+        private double openBuy;
+        private double openSell;
+        // the position's contribution to its asset's exposure and margin
+        private double notional;
+        private double margin;
+    }
+
+    private static class AssetRisk {
+        private double cash;
+        private double reserve;
+        private double margin;
+        private double exposure;
+    }
+
+    private static boolean closing(SpecificOrder order) {
+        return order.getPositionEffect() == PositionEffect.CLOSE;
+    }
+
+    /** the unfilled volume of an open order, valued at the price it was reserved at */
+    private static class Reservation {
+
+        Reservation(Market market, boolean bid, double volume, double price, boolean closing) {
+            this.market = market;
+            this.bid = bid;
+            this.volume = volume;
+            this.price = price;
+            this.closing = closing;
+        }
+
+        private final Market market;
+        private final boolean bid;
+        private final double price;
+        // a closing order only reduces the position, so it holds no exposure or margin
+        private final boolean closing;
+        private double volume;
+    }
+
+    private final boolean enabled;
+    private final double maxOrderVolume;
+    private final int maxOpenOrders;
+    private final double maxPosition;
+    private final double maxExposure;
+    private final boolean checkBalance;
+    private final ConcurrentHashMap<Portfolio, PortfolioRisk> portfolios = new ConcurrentHashMap<Portfolio, PortfolioRisk>();
+
+}
@@ -1,9 +1,9 @@
 package org.cryptocoinpartners.module;
 
-import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.inject.Singleton;
 
@@ -11,14 +11,20 @@ import org.cryptocoinpartners.esper.annotation.When;
 import org.cryptocoinpartners.schema.Bar;
 import org.cryptocoinpartners.schema.BarFactory;
 import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.BookFactory;
 import org.cryptocoinpartners.schema.MarketData;
+import org.cryptocoinpartners.schema.MarketDataJournal;
+import org.cryptocoinpartners.schema.MarketDataPartitions;
 import org.cryptocoinpartners.schema.Trade;
+import org.cryptocoinpartners.schema.TradeFactory;
 import org.cryptocoinpartners.schema.dao.BarJpaDao;
 import org.cryptocoinpartners.schema.dao.BookJpaDao;
+import org.cryptocoinpartners.schema.dao.MarketDataBatchWriter;
 import org.cryptocoinpartners.schema.dao.MarketDataJpaDao;
 import org.cryptocoinpartners.schema.dao.TradeJpaDao;
 import org.cryptocoinpartners.util.ConfigUtil;
 import org.cryptocoinpartners.util.EM;
+import org.cryptocoinpartners.util.RecentKeyCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,18 +36,18 @@ import com.google.inject.Inject;
 @Singleton
 public class SaveMarketData {
 
-    private static ExecutorService tradeService;
-    private static ExecutorService bookService;
-    private static ExecutorService barService;
-    static Future future;
-    private static MarketData lastMktData = null;
-
     @Inject
     protected BarFactory barFactory;
 
     @Inject
     protected BookJpaDao bookDao;
 
+    @Inject
+    protected TradeFactory tradeFactory;
+
+    @Inject
+    protected BookFactory bookFactory;
+
     @Inject
     protected TradeJpaDao tradeDao;
 
@@ -50,123 +56,121 @@ public class SaveMarketData {
 
     @Inject
     protected BarJpaDao barDao;
-    static {
-        tradeService = Executors.newFixedThreadPool(ConfigUtil.combined().getInt("db.trade.writer.threads"));
-        bookService = Executors.newFixedThreadPool(ConfigUtil.combined().getInt("db.book.writer.threads"));
-
-        barService = Executors.newFixedThreadPool(ConfigUtil.combined().getInt("db.bar.writer.threads"));
-    }
-
-    //@When("select * from MarketData")
-    // @When("select * from MarketData")
-    @When("@Priority(1) select * from Book")
-    public void handleBook(Book m) {
-
-        //  if (future == null || future.isDone()) {
-        //Future future = 
-        log.trace("book recieved: " + m.getId() + " thread: " + Thread.currentThread().getName());
-        bookService.submit(new saveBookRunnable(m));
-
-    }
 
-    @When("@Priority(1) select * from Trade")
-    public void handleTrade(Trade m) {
-
-        //  if (future == null || future.isDone()) {
-        //Future future = 
-        // log.debug("trade recieved: " + m.getId() + " thread: " + Thread.currentThread().getName());
-        log.trace("Trade recieved: " + m.getId() + " thread: " + Thread.currentThread().getName());
+    private MarketDataBatchWriter<Trade> tradeWriter;
+    private MarketDataBatchWriter<Book> bookWriter;
+    private MarketDataBatchWriter<Bar> barWriter;
+    private MarketDataJournal journal;
+    private final RecentKeyCache tradeKeys = RecentKeyCache.forType(Trade.class);
+    private final RecentKeyCache barKeys = RecentKeyCache.forType(Bar.class);
 
-        tradeService.submit(new saveTradeRunnable(m));
-
-    }
-
-    @When("@Priority(1) select * from Bar")
-    public void handleBar(Bar m) {
-
-        //  if (future == null || future.isDone()) {
-        //Future future = 
-        //  log.debug("bar recieved: " + m.getId() + " thread: " + Thread.currentThread().getName());
-        log.trace("Bar recieved: " + m.getId() + " thread: " + Thread.currentThread().getName());
-
-        barService.submit(new saveBarRunnable(m));
-
-    }
-
-    public class saveTradeRunnable implements Runnable {
-        Trade trade;
-
-        @Override
-        public void run() {
-            saveData();
-
-        }
-
-        public saveTradeRunnable(Trade m) {
-            this.trade = m;
-        }
+    @Inject
+    protected void startWriters() {
+        MarketDataPartitions.addFutureToAll();
+        int batchSize = ConfigUtil.combined().getInt("db.marketdata.batch.size", 500);
+        long batchInterval = ConfigUtil.combined().getLong("db.marketdata.batch.interval", 250);
+        tradeWriter = new MarketDataBatchWriter<Trade>("trade", tradeDao, ConfigUtil.combined().getInt("db.trade.writer.threads"), batchSize,
+                batchInterval) {
+            @Override
+            protected boolean isDuplicate(Trade trade) {
+                if (trade.getRemoteKey() == null)
+                    return false;
+                switch (tradeKeys.claim(trade.getMarket(), trade.getRemoteKey() + "@" + trade.getTime().getMillis(), trade.getTime())) {
+                    case NEW:
+                        return false;
+                    case DUPLICATE:
+                        return true;
+                    default:
+                        Trade duplicate = (trade.getDao() == null) ? EM.queryZeroOne(Trade.class,
+                                "select t from Trade t where market=?1 and remoteKey=?2 and time=?3", trade.getMarket(), trade.getRemoteKey(),
+                                trade.getTime()) : trade.queryZeroOne(Trade.class, "select t from Trade t where market=?1 and remoteKey=?2 and time=?3",
+                                trade.getMarket(), trade.getRemoteKey(), trade.getTime());
+                        return duplicate != null;
+                }
+            }
 
-        public void saveData() {
-            // issues is when we have mutlipe thread persisting , we have persitance contect per thread that is not updated.
+            @Override
+            protected void unwritten(Trade trade) {
+                tradeKeys.release(trade.getMarket(), trade.getRemoteKey() + "@" + trade.getTime().getMillis());
+            }
+        };
+        bookWriter = new MarketDataBatchWriter<Book>("book", bookDao, ConfigUtil.combined().getInt("db.book.writer.threads"), batchSize, batchInterval) {
+            @Override
+            protected boolean isDuplicate(Book book) {
+                return book.getId() != null && Book.isPersisted(book);
+            }
 
-            Trade duplicate = (trade.getDao() == null) ? EM.queryZeroOne(Trade.class, "select t from Trade t where market=?1 and remoteKey=?2 and time=?3",
-                    trade.getMarket(), trade.getRemoteKey(), trade.getTime()) : trade.queryZeroOne(Trade.class,
-                    "select t from Trade t where market=?1 and remoteKey=?2 and time=?3", trade.getMarket(), trade.getRemoteKey(), trade.getTime());
+            @Override
+            protected void unwritten(Book book) {
+                Book.releasePersisted(book);
+            }
+        };
+        barWriter = new MarketDataBatchWriter<Bar>("bar", barDao, ConfigUtil.combined().getInt("db.bar.writer.threads"), batchSize, batchInterval) {
+            // the Bar written is a copy with a fresh id, so a duplicate is the same published Bar arriving again and can
+            // only be recognised by the published Bar's id
+            @Override
+            protected boolean isDuplicate(Bar rawBar) {
+                return barKeys.claim(rawBar.getMarket(), rawBar.getId().toString(), rawBar.getTime()) == RecentKeyCache.Answer.DUPLICATE;
+            }
 
-            if (duplicate == null)
-                trade.persit();
+            @Override
+            protected void unwritten(Bar rawBar) {
+                barKeys.release(rawBar.getMarket(), rawBar.getId().toString());
+            }
 
+            @Override
+            protected Bar prepare(Bar rawBar) {
+                return barFactory.create(rawBar);
+            }
+        };
+        String journalDir = ConfigUtil.combined().getString("db.journal.dir", "");
+        if (!journalDir.isEmpty()) {
+            try {
+                journal = new MarketDataJournal(new File(journalDir), ConfigUtil.combined().getInt("db.journal.segment.size", 64) * 1024 * 1024, ConfigUtil
+                        .combined().getLong("db.journal.sync.interval", 50), batchSize, tradeFactory, bookFactory, new JournalSink());
+            } catch (IOException e) {
+                log.error("Unable to open market data journal in " + journalDir + ", writing market data directly", e);
+            }
         }
     }
 
-    public class saveBookRunnable implements Runnable {
-        Book book;
+    /** saves the events drained from the journal, Trades and Books in separate batches */
+    private class JournalSink implements MarketDataJournal.Sink {
 
         @Override
-        public void run() {
-            saveData();
-
-        }
-
-        public saveBookRunnable(Book m) {
-            this.book = m;
-        }
-
-        public void saveData() {
-
-            UUID duplicate = null;
-            if (book.getId() != null)
-                duplicate = (book.getDao() == null) ? (EM.queryZeroOne(UUID.class, "select b.id from Book b where b.id=?1", book.getId())) : (book
-                        .queryZeroOne(UUID.class, "select b.id from Book b where b.id=?1", book.getId()));
-
-            if (duplicate == null) {
-                //try {
-                //      log.info("persiting book: " + book.getId());
-                book.persit();
+        public boolean write(List<MarketData> batch) {
+            List<Trade> trades = new ArrayList<>();
+            List<Book> books = new ArrayList<>();
+            for (MarketData data : batch) {
+                if (data instanceof Trade)
+                    trades.add((Trade) data);
+                else if (data instanceof Book)
+                    books.add((Book) data);
             }
+            boolean complete = trades.isEmpty() || tradeWriter.write(trades);
+            return (books.isEmpty() || bookWriter.write(books)) && complete;
         }
-    }
-
-    public class saveBarRunnable implements Runnable {
-        Bar rawBar;
 
-        @Override
-        public void run() {
-            saveData();
-
-        }
+    }
 
-        public saveBarRunnable(Bar m) {
-            this.rawBar = m;
-        }
+    @When("@Priority(1) select * from Book")
+    public void handleBook(Book m) {
+        log.trace("book recieved: " + m.getId() + " thread: " + Thread.currentThread().getName());
+        if (journal == null || !journal.append(m))
+            bookWriter.add(m);
+    }
 
-        public void saveData() {
-            Bar bar = barFactory.create(rawBar);
-            Bar duplicate = barDao.queryZeroOne(Bar.class, "select b from Bar b where b=?1", bar);
-            if (duplicate == null)
-                bar.persit();
+    @When("@Priority(1) select * from Trade")
+    public void handleTrade(Trade m) {
+        log.trace("Trade recieved: " + m.getId() + " thread: " + Thread.currentThread().getName());
+        if (journal == null || !journal.append(m))
+            tradeWriter.add(m);
+    }
 
-        }
+    @When("@Priority(1) select * from Bar")
+    public void handleBar(Bar m) {
+        log.trace("Bar recieved: " + m.getId() + " thread: " + Thread.currentThread().getName());
+        barWriter.add(m);
     }
 
     protected static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.saveMarketData");
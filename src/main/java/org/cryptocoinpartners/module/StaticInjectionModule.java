@@ -4,6 +4,7 @@ import org.cryptocoinpartners.schema.Currency;
 import org.cryptocoinpartners.schema.Exchange;
 import org.cryptocoinpartners.schema.Listing;
 import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.MarketDataExtent;
 import org.cryptocoinpartners.schema.Prompt;
 import org.cryptocoinpartners.util.EM;
 import org.cryptocoinpartners.util.IoUtil;
@@ -72,6 +73,7 @@ public class StaticInjectionModule extends AbstractModule {
         requestStaticInjection(Listing.class);
         requestStaticInjection(Prompt.class);
         requestStaticInjection(Currency.class);
+        requestStaticInjection(MarketDataExtent.class);
         // requestStaticInjection(Portfolio.class);
         //requestStaticInjection(Transaction.class);
         //requestStaticInjection(Fill.class);
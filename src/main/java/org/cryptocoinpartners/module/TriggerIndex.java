@@ -0,0 +1,301 @@
+package org.cryptocoinpartners.module;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.cryptocoinpartners.enumeration.ExecutionInstruction;
+import org.cryptocoinpartners.schema.Amount;
+import org.cryptocoinpartners.schema.Event;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Order;
+import org.cryptocoinpartners.schema.Portfolio;
+import org.cryptocoinpartners.util.Remainder;
+
+/**
+ * The resting trigger orders of an OrderService, indexed by Market and by trigger level so that a Book only visits the
+ * orders whose stop or target it has crossed.  Stop and target prices are converted to price counts once, when an order
+ * is added, and each Market keeps its levels in sorted maps: levels which trigger when the price rises to them (bid
+ * stops and ask targets) and levels which trigger when it falls to them (bid targets and ask stops), separately for
+ * orders watching the bid and orders watching the ask.  popTriggered() is then O(log n + k) for k triggered orders.
+ * <p>
+ * An order is watched against the bid if it is a MAKER bid or a TAKER ask, and against the ask otherwise, as in
+ * BaseOrderService.updateRestingOrders().  Whenever the stop or target price of an indexed order changes, the order
+ * must be add()ed again to move it to its new levels.
+ * <p>
+ * Each order is also indexed under a key, the fill or parent order it protects, which holds one trigger order at a
+ * time, and by Market and side, so that cancels and stop adjustments do not scan every trigger order.
+ * <p>
+ * Trailing stops are kept here as primitive price counts.  trail() ratchets each trailing stop of a Market towards the
+ * price and moves it to its new level in place, without touching the Order, and remembers the new stop until
+ * takeMoved() hands it to the caller to be written to the Order and persisted.
+ */
+class TriggerIndex {
+
+    /** indexes the order at its current stop and target prices, replacing any previous entry for it but keeping its key */
+    synchronized void add(Order order) {
+        Entry old = entries.get(order);
+        index(order, old == null ? null : old.key);
+    }
+
+    /**
+     * Indexes the order under the key, removing the order indexed under it before.
+     *
+     * @return the order which was removed, or null
+     */
+    synchronized Order add(Event key, Order order) {
+        Order replaced = byKey.get(key);
+        if (replaced != null && !replaced.equals(order))
+            remove(replaced);
+        else
+            replaced = null;
+        index(order, key);
+        return replaced;
+    }
+
+    private void index(Order order, Event key) {
+        unindex(order);
+        MarketLevels levels = levels(order.getMarket());
+        boolean watchesBid = order.isBid() == (order.getExecutionInstruction() == ExecutionInstruction.MAKER);
+        Entry entry = new Entry(order, key, levels, watchesBid ? levels.bid : levels.ask);
+        Long stop = count(order, order.getStopPrice());
+        Long target = count(order, order.getTargetPrice());
+        if (stop != null) {
+            entry.stop = stop;
+            entry.stopLevels = entry.isBid ? entry.side.rising : entry.side.falling;
+            put(entry.stopLevels, stop, order);
+        }
+        if (target != null) {
+            entry.target = target;
+            entry.targetLevels = entry.isBid ? entry.side.falling : entry.side.rising;
+            put(entry.targetLevels, target, order);
+        }
+        Long trail = count(order, order.getTrailingStopPrice());
+        if (trail != null) {
+            entry.trail = trail;
+            entry.trailing = levels.trailing;
+            levels.trailing.add(order);
+        }
+        (entry.isBid ? levels.bids : levels.asks).add(order);
+        if (key != null)
+            byKey.put(key, order);
+        entries.put(order, entry);
+    }
+
+    /**
+     * Removes the order, forgetting any move of its trailing stop which has not been taken, so that a cancelled order
+     * never has a stop written to it later.
+     *
+     * @return true if the order was indexed
+     */
+    synchronized boolean remove(Order order) {
+        moved.remove(order);
+        return unindex(order);
+    }
+
+    private boolean unindex(Order order) {
+        Entry entry = entries.remove(order);
+        if (entry == null)
+            return false;
+        if (entry.stopLevels != null)
+            take(entry.stopLevels, entry.stop, order);
+        if (entry.targetLevels != null)
+            take(entry.targetLevels, entry.target, order);
+        if (entry.trailing != null)
+            entry.trailing.remove(order);
+        (entry.isBid ? entry.levels.bids : entry.levels.asks).remove(order);
+        if (entry.key != null && order.equals(byKey.get(entry.key)))
+            byKey.remove(entry.key);
+        return true;
+    }
+
+    synchronized void removeAll(Collection<? extends Order> orders) {
+        for (Order order : orders)
+            remove(order);
+    }
+
+    synchronized boolean contains(Order order) {
+        return entries.containsKey(order);
+    }
+
+    /** @return the indexed order equal to the given one, or null */
+    synchronized Order get(Order order) {
+        Entry entry = entries.get(order);
+        return entry == null ? null : entry.order;
+    }
+
+    /** @return the bids or the asks indexed for the Market, or for every Market if it is null */
+    synchronized List<Order> orders(Market market, boolean bid) {
+        List<Order> orders = new ArrayList<Order>();
+        if (market != null) {
+            MarketLevels levels = byMarket.get(market);
+            if (levels != null)
+                orders.addAll(bid ? levels.bids : levels.asks);
+            return orders;
+        }
+        for (MarketLevels levels : byMarket.values())
+            orders.addAll(bid ? levels.bids : levels.asks);
+        return orders;
+    }
+
+    /** @return the indexed orders of the Portfolio */
+    synchronized List<Order> orders(Portfolio portfolio) {
+        List<Order> orders = new ArrayList<Order>();
+        for (Order order : entries.keySet())
+            if (portfolio.equals(order.getPortfolio()))
+                orders.add(order);
+        return orders;
+    }
+
+    /**
+     * Removes and returns the orders for the Market whose stop or target has been crossed by the given bid and ask
+     * price counts, in the order their levels were reached.
+     */
+    synchronized Collection<Order> popTriggered(Market market, long bidCount, long askCount) {
+        MarketLevels levels = byMarket.get(market);
+        if (levels == null)
+            return new ArrayList<Order>();
+        Set<Order> triggered = new LinkedHashSet<Order>();
+        collect(levels.bid, bidCount, triggered);
+        collect(levels.ask, askCount, triggered);
+        // their trailing stops are kept for takeMoved(), since the caller writes them to the triggered orders
+        for (Order order : triggered)
+            unindex(order);
+        return triggered;
+    }
+
+    /**
+     * Moves the trailing stops of the Market which the given bid and ask price counts have pulled tighter: a bid's stop
+     * down to its price plus the trail, and an ask's stop up to its price minus the trail.  An order with a trail but
+     * no stop yet gets its first stop here.
+     */
+    synchronized void trail(Market market, long bidCount, long askCount) {
+        MarketLevels levels = byMarket.get(market);
+        if (levels == null)
+            return;
+        for (Order order : levels.trailing) {
+            Entry entry = entries.get(order);
+            long price = entry.side == levels.bid ? bidCount : askCount;
+            long stop = entry.isBid ? price + entry.trail : price - entry.trail;
+            if (entry.stopLevels != null) {
+                if (entry.isBid ? stop >= entry.stop : stop <= entry.stop)
+                    continue;
+                take(entry.stopLevels, entry.stop, order);
+            } else
+                entry.stopLevels = entry.isBid ? entry.side.rising : entry.side.falling;
+            entry.stop = stop;
+            put(entry.stopLevels, stop, order);
+            moved.put(order, stop);
+        }
+    }
+
+    /** @return the trailing stop counts which have moved since they were last taken, and forgets them */
+    synchronized Map<Order, Long> takeMoved() {
+        Map<Order, Long> taken = moved;
+        moved = new LinkedHashMap<Order, Long>();
+        return taken;
+    }
+
+    /** @return the order's trailing stop count if it has moved since it was last taken, or null */
+    synchronized Long takeMoved(Order order) {
+        return moved.remove(order);
+    }
+
+    private static void collect(Side side, long priceCount, Set<Order> triggered) {
+        // rising levels are reached from the lowest up and falling levels from the highest down
+        drain(side.rising.headMap(priceCount, true), triggered);
+        drain(side.falling.tailMap(priceCount, true).descendingMap(), triggered);
+    }
+
+    private static void drain(NavigableMap<Long, List<Order>> crossed, Set<Order> triggered) {
+        for (List<Order> orders : crossed.values())
+            triggered.addAll(orders);
+    }
+
+    private static void put(TreeMap<Long, List<Order>> levels, long count, Order order) {
+        List<Order> orders = levels.get(count);
+        if (orders == null) {
+            orders = new ArrayList<Order>(2);
+            levels.put(count, orders);
+        }
+        orders.add(order);
+    }
+
+    private static void take(TreeMap<Long, List<Order>> levels, long count, Order order) {
+        List<Order> orders = levels.get(count);
+        if (orders == null)
+            return;
+        orders.remove(order);
+        if (orders.isEmpty())
+            levels.remove(count);
+    }
+
+    private static Long count(Order order, Amount price) {
+        if (price == null)
+            return null;
+        return price.toBasis(order.getMarket().getPriceBasis(), Remainder.ROUND_EVEN).getCount();
+    }
+
+    private MarketLevels levels(Market market) {
+        MarketLevels levels = byMarket.get(market);
+        if (levels == null) {
+            levels = new MarketLevels();
+            byMarket.put(market, levels);
+        }
+        return levels;
+    }
+
+    private static class Side {
+        /** levels triggered when the price is at or above them */
+        private final TreeMap<Long, List<Order>> rising = new TreeMap<Long, List<Order>>();
+        /** levels triggered when the price is at or below them */
+        private final TreeMap<Long, List<Order>> falling = new TreeMap<Long, List<Order>>();
+    }
+
+    private static class MarketLevels {
+        private final Side bid = new Side();
+        private final Side ask = new Side();
+        private final Set<Order> trailing = new LinkedHashSet<Order>();
+        /** the bid and ask orders of the Market, whichever quote they watch */
+        private final Set<Order> bids = new LinkedHashSet<Order>();
+        private final Set<Order> asks = new LinkedHashSet<Order>();
+    }
+
+    private static class Entry {
+
+        private Entry(Order order, Event key, MarketLevels levels, Side side) {
+            this.order = order;
+            this.key = key;
+            this.levels = levels;
+            this.isBid = order.isBid();
+            this.side = side;
+        }
+
+        private final Order order;
+        private final Event key;
+        private final MarketLevels levels;
+        private final boolean isBid;
+        /** the levels for the quote this order watches */
+        private final Side side;
+        private long stop;
+        private long target;
+        private TreeMap<Long, List<Order>> stopLevels;
+        private TreeMap<Long, List<Order>> targetLevels;
+        private long trail;
+        private Set<Order> trailing;
+
+    }
+
+    private final Map<Market, MarketLevels> byMarket = new HashMap<Market, MarketLevels>();
+    private final Map<Order, Entry> entries = new HashMap<Order, Entry>();
+    private final Map<Event, Order> byKey = new HashMap<Event, Order>();
+    private Map<Order, Long> moved = new LinkedHashMap<Order, Long>();
+
+}
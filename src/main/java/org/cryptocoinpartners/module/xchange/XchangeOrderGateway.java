@@ -0,0 +1,39 @@
+package org.cryptocoinpartners.module.xchange;
+
+import java.util.concurrent.Executors;
+
+import org.apache.commons.configuration.Configuration;
+import org.cryptocoinpartners.schema.Exchange;
+import org.cryptocoinpartners.util.ConfigUtil;
+import org.cryptocoinpartners.util.RateLimiter;
+import org.joda.time.Duration;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Sends the order requests for one exchange from a worker thread of its own, so that a slow REST call never blocks the
+ * Context.  submit() returns immediately; the requests run one at a time, in the order they were submitted, no faster
+ * than xchange.{tag}.order.rate.queries per xchange.{tag}.order.rate.period seconds, which default to the exchange's
+ * rate.queries and rate.period.  The gateway has a token bucket of its own, separate from XchangeData's, so order
+ * requests never queue behind market data polling.
+ */
+class XchangeOrderGateway {
+
+    XchangeOrderGateway(Exchange exchange) {
+        String tag = exchange.getSymbol().toLowerCase();
+        String prefix = "xchange." + tag + '.';
+        Configuration config = ConfigUtil.combined();
+        int queries = config.getInt(prefix + "order.rate.queries", config.getInt(prefix + "rate.queries", 1));
+        double period = config.getDouble(prefix + "order.rate.period", config.getDouble(prefix + "rate.period", 1)); // in seconds
+        rateLimiter = new RateLimiter(Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("order-gateway-" + tag).setDaemon(true)
+                .build()), queries, Duration.millis((long) (1000 * period)));
+    }
+
+    /** queues the request to run on the worker once the rate limit allows */
+    void submit(Runnable request) {
+        rateLimiter.execute(request);
+    }
+
+    private final RateLimiter rateLimiter;
+
+}
@@ -5,7 +5,9 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Singleton;
 import javax.persistence.Transient;
@@ -19,6 +21,7 @@ import org.cryptocoinpartners.schema.Fill;
 import org.cryptocoinpartners.schema.Market;
 import org.cryptocoinpartners.schema.Portfolio;
 import org.cryptocoinpartners.schema.SpecificOrder;
+import org.cryptocoinpartners.util.LatencyStats;
 import org.cryptocoinpartners.util.XchangeUtil;
 
 import com.google.common.collect.HashBiMap;
@@ -34,7 +37,8 @@ import com.xeiam.xchange.exceptions.NotYetImplementedForExchangeException;
 import com.xeiam.xchange.service.polling.trade.PollingTradeService;
 
 /**
- * This module routes SpecificOrders through Xchange
+ * This module routes SpecificOrders through Xchange.  Placing and cancelling orders is asynchronous: the requests are
+ * queued to an XchangeOrderGateway for the exchange, and the exchange's response is published as an OrderUpdate.
  *
  * @author Tim Olson
  */
@@ -46,42 +50,102 @@ public class XchangeOrderService extends BaseOrderService {
     protected void handleSpecificOrder(SpecificOrder specificOrder) {
         Exchange exchange = XchangeUtil.getExchangeForMarket(specificOrder.getMarket().getExchange());
         PollingTradeService tradeService = exchange.getPollingTradeService();
-        if (specificOrder.getLimitPrice() != null && specificOrder.getStopPrice() != null)
+        if (specificOrder.getLimitPrice() != null && specificOrder.getStopPrice() != null) {
             reject(specificOrder, "Stop-limit orders are not supported");
+            return;
+        }
         Order.OrderType orderType = specificOrder.isBid() ? Order.OrderType.BID : Order.OrderType.ASK;
         BigDecimal tradeableVolume = specificOrder.getVolume().abs().asBigDecimal();
         CurrencyPair currencyPair = XchangeUtil.getCurrencyPairForListing(specificOrder.getMarket().getListing());
         String id = specificOrder.getId().toString();
         Date timestamp = specificOrder.getTime().toDate();
-        if (specificOrder.getLimitPrice() != null) {
-            LimitOrder limitOrder = new LimitOrder(orderType, tradeableVolume, currencyPair, "", null, specificOrder.getLimitPrice().asBigDecimal());
-            // todo put on a queue
-            try {
-                specificOrder.setRemoteKey(tradeService.placeLimitOrder(limitOrder));
-                specificOrder.persit();
-                updateOrderState(specificOrder, OrderState.PLACED, false);
-            } catch (IOException e) {
-                log.error("Threw a Execption, full stack trace follows:", e);
+        Order xchangeOrder;
+        if (specificOrder.getLimitPrice() != null)
+            xchangeOrder = new LimitOrder(orderType, tradeableVolume, currencyPair, "", null, specificOrder.getLimitPrice().asBigDecimal());
+        else
+            xchangeOrder = new MarketOrder(orderType, tradeableVolume, currencyPair, id, timestamp);
+        // the exchange's response is published as an OrderUpdate by the gateway's worker
+        gateway(specificOrder.getMarket().getExchange()).submit(new PlaceOrderRequest(specificOrder, xchangeOrder, exchange, tradeService));
+    }
 
-                e.printStackTrace();
-                // todo retry until expiration or reject as invalid
-            }
-        } else {
-            MarketOrder marketOrder = new MarketOrder(orderType, tradeableVolume, currencyPair, id, timestamp);
-            // todo put on a queue
+    private class PlaceOrderRequest implements Runnable {
+        private final SpecificOrder specificOrder;
+        private final Order xchangeOrder;
+        private final Exchange exchange;
+        private final PollingTradeService tradeService;
+
+        public PlaceOrderRequest(SpecificOrder specificOrder, Order xchangeOrder, Exchange exchange, PollingTradeService tradeService) {
+            this.specificOrder = specificOrder;
+            this.xchangeOrder = xchangeOrder;
+            this.exchange = exchange;
+            this.tradeService = tradeService;
+        }
+
+        @Override
+        public void run() {
             try {
-                specificOrder.setRemoteKey(tradeService.placeMarketOrder(marketOrder));
+                LatencyStats.submitted(specificOrder);
+                if (xchangeOrder instanceof LimitOrder)
+                    specificOrder.setRemoteKey(tradeService.placeLimitOrder((LimitOrder) xchangeOrder));
+                else
+                    specificOrder.setRemoteKey(tradeService.placeMarketOrder((MarketOrder) xchangeOrder));
                 specificOrder.persit();
-                updateOrderState(specificOrder, OrderState.PLACED, false);
+                publishOrderUpdate(specificOrder, OrderState.PLACED);
             } catch (IOException e) {
-                // todo retry until expiration or reject as invalid
+                // not retried, since the exchange may have taken an order whose response was lost; rejecting it releases its risk and latency trace
                 log.warn("Could not place this order: " + specificOrder, e);
+                publishOrderUpdate(specificOrder, OrderState.REJECTED);
             } catch (NotYetImplementedForExchangeException e) {
                 log.warn("XChange adapter " + exchange + " does not support this order: " + specificOrder, e);
-                reject(specificOrder, "XChange adapter " + exchange + " does not support this order");
+                publishOrderUpdate(specificOrder, OrderState.REJECTED);
+            } catch (RuntimeException e) {
+                log.warn("Order " + specificOrder + " rejected by " + exchange, e);
+                publishOrderUpdate(specificOrder, OrderState.REJECTED);
+            }
+        }
+    }
+
+    private class CancelOrderRequest implements Runnable {
+        private final SpecificOrder specificOrder;
+        private final PollingTradeService tradeService;
+
+        public CancelOrderRequest(SpecificOrder specificOrder, PollingTradeService tradeService) {
+            this.specificOrder = specificOrder;
+            this.tradeService = tradeService;
+        }
+
+        @Override
+        public void run() {
+            // the place request ran before this one on the gateway's worker, so without a remote key it never reached the exchange
+            if (specificOrder.getRemoteKey() == null) {
+                log.warn("Order " + specificOrder + " was not placed, so there is nothing to cancel");
+                return;
+            }
+            try {
+                if (tradeService.cancelOrder(specificOrder.getRemoteKey()))
+                    publishOrderUpdate(specificOrder, OrderState.CANCELLED);
+                else
+                    log.error("Unable to cancel order :" + specificOrder);
+            } catch (ExchangeException e) {
+                log.error("Unable to cancel order :" + specificOrder);
+            } catch (NotAvailableFromExchangeException e) {
+                log.error("Unable to cancel order :" + specificOrder);
+            } catch (NotYetImplementedForExchangeException e) {
+                log.error("Unable to cancel order :" + specificOrder);
+            } catch (IOException e) {
+                log.error("failed to cancel order " + specificOrder + " with execption:" + e);
+                e.printStackTrace();
             }
         }
+    }
 
+    private synchronized XchangeOrderGateway gateway(org.cryptocoinpartners.schema.Exchange exchange) {
+        XchangeOrderGateway gateway = gateways.get(exchange);
+        if (gateway == null) {
+            gateway = new XchangeOrderGateway(exchange);
+            gateways.put(exchange, gateway);
+        }
+        return gateway;
     }
 
     @Override
@@ -97,26 +161,17 @@ public class XchangeOrderService extends BaseOrderService {
         }
         PollingTradeService tradeService = exchange.getPollingTradeService();
         SpecificOrder specificOrder;
-        boolean exists = false;
         //TODO: need to check prompts to ensure they have the full OKCOIN_THISWEEK:BTC.USD.THISWEEK not just OKCOIN_THISWEEK:BTC.USD
         try {
             OpenOrders openOrders = tradeService.getOpenOrders();
             for (LimitOrder xchangeOrder : openOrders.getOpenOrders()) {
-                for (org.cryptocoinpartners.schema.Order cointraderOrder : orderStateMap.keySet()) {
-                    if (cointraderOrder instanceof SpecificOrder) {
-                        specificOrder = (SpecificOrder) cointraderOrder;
-                        if (xchangeOrder.getId().equals(specificOrder.getRemoteKey()) && specificOrder.getMarket().equals(market)) {
-                            specificOrder.update(xchangeOrder);
-                            specificOrder.persit();
-                            updateOrderState(specificOrder, OrderState.PLACED, false);
-                            pendingOrders.add(specificOrder);
-                            exists = true;
-                            break;
-                        }
-                    }
-                }
-
-                if (!exists) {
+                specificOrder = orderIndex.forRemoteKey(xchangeOrder.getId());
+                if (specificOrder != null && specificOrder.getMarket().equals(market)) {
+                    specificOrder.update(xchangeOrder);
+                    specificOrder.persit();
+                    updateOrderState(specificOrder, OrderState.PLACED, false);
+                    pendingOrders.add(specificOrder);
+                } else {
                     Date time = (xchangeOrder.getTimestamp() != null) ? xchangeOrder.getTimestamp() : new Date();
                     specificOrder = new SpecificOrder(xchangeOrder, exchange, portfolio, time);
                     specificOrder.persit();
@@ -157,20 +212,7 @@ public class XchangeOrderService extends BaseOrderService {
             return;
         }
         PollingTradeService tradeService = exchange.getPollingTradeService();
-
-        try {
-            tradeService.cancelOrder(specificOrder.getRemoteKey());
-        } catch (ExchangeException e) {
-            log.error("Unable to cancel order :" + specificOrder);
-        } catch (NotAvailableFromExchangeException e) {
-            log.error("Unable to cancel order :" + specificOrder);
-        } catch (NotYetImplementedForExchangeException e) {
-            log.error("Unable to cancel order :" + specificOrder);
-        } catch (IOException e) {
-            log.error("failed to cancel order " + specificOrder + " with execption:" + e);
-            e.printStackTrace();
-        }
-
+        gateway(specificOrder.getMarket().getExchange()).submit(new CancelOrderRequest(specificOrder, tradeService));
     }
 
     @Override
@@ -199,6 +241,7 @@ public class XchangeOrderService extends BaseOrderService {
 
     protected static final Collection<SpecificOrder> pendingOrders = new ArrayList<SpecificOrder>();
     protected static final HashBiMap<SpecificOrder, com.xeiam.xchange.dto.Order> externalOrderMap = HashBiMap.create();
+    private final Map<org.cryptocoinpartners.schema.Exchange, XchangeOrderGateway> gateways = new HashMap<org.cryptocoinpartners.schema.Exchange, XchangeOrderGateway>();
 
     @Override
     public void init() {
@@ -208,8 +251,11 @@ public class XchangeOrderService extends BaseOrderService {
 
     @Override
     public Collection<SpecificOrder> getPendingOpenOrders(Market market, Portfolio portfolio) {
-        // TODO Auto-generated method stub
-        return null;
+        Collection<SpecificOrder> portfolioPendingOrders = new ArrayList<SpecificOrder>();
+        for (SpecificOrder openOrder : orderIndex.openOrders(market))
+            if (openOrder.getPortfolio().equals(portfolio))
+                portfolioPendingOrders.add(openOrder);
+        return portfolioPendingOrders;
     }
 
     @Override
@@ -250,20 +296,23 @@ public class XchangeOrderService extends BaseOrderService {
 
     @Override
     public void handleCancelSpecificOrderByParentFill(Fill parentFill) throws OrderNotFoundException {
-        // TODO Auto-generated method stub
-
+        if (parentFill == null)
+            return;
+        List<SpecificOrder> childOrders = new ArrayList<SpecificOrder>();
+        orderIndex.descendants(parentFill, SpecificOrder.class, childOrders);
+        for (SpecificOrder childOrder : childOrders)
+            if (getOrderState(childOrder).isOpen())
+                handleCancelSpecificOrder(childOrder);
     }
 
     @Override
     public void getAllSpecificOrdersByParentFill(Fill parentFill, List allChildren) {
-        // TODO Auto-generated method stub
-
+        orderIndex.descendants(parentFill, SpecificOrder.class, allChildren);
     }
 
     @Override
     public void getAllSpecificOrdersByParentOrder(org.cryptocoinpartners.schema.Order parentOrder, List allChildren) {
-        // TODO Auto-generated method stub
-
+        orderIndex.descendants(parentOrder, SpecificOrder.class, allChildren);
     }
 
     @Override
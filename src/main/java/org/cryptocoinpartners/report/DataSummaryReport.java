@@ -1,18 +1,33 @@
 package org.cryptocoinpartners.report;
 
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.MarketDataExtent;
+import org.cryptocoinpartners.schema.Trade;
+
 /**
+ * Counts from the market data catalogue once it has been backfilled by report-data -rebuild, and from the Trade and
+ * Book tables until then, since the catalogue only covers the data written after it was created.
+ *
  * @author Tim Olson
  */
 public class DataSummaryReport extends JpaReport {
 
     @Override
     protected Query getQuery() {
-        return new Query(
-                    new String[]{"Market", "Num Trades", "Num Books"},
-                    "select m, count(*) as num, (select count(*) from Book b where b.market=m) "+
+        if (!MarketDataExtent.isBackfilled(Trade.class, Book.class))
+            return new Query(
+                    new String[]{"Market", "Num Trades", "Num Books", "First", "Last"},
+                    "select m, count(*) as num, (select count(*) from Book b where b.market=m), min(t.time), max(t.time) "+
                     "from Trade t, Market m " +
                     "where t.market=m group by m order by num desc"
                 );
+        return new Query(
+                    new String[]{"Market", "Num Trades", "Num Books", "First", "Last"},
+                    "select e.market, sum(case when e.dataType='Trade' then e.rowCount else 0 end) as num, "+
+                    "sum(case when e.dataType='Book' then e.rowCount else 0 end), min(e.firstTime), max(e.lastTime) "+
+                    "from MarketDataExtent e " +
+                    "group by e.market order by num desc"
+                );
     }
 
 }
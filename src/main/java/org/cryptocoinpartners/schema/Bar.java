@@ -16,7 +16,7 @@ import com.google.inject.assistedinject.AssistedInject;
 
 @SuppressWarnings("UnusedDeclaration")
 @Entity
-@Table(indexes = { @Index(columnList = "time") })
+@Table(indexes = { @Index(columnList = "time"), @Index(columnList = "market,time") })
 public class Bar extends MarketData {
     private long timestamp;
     private Double open;
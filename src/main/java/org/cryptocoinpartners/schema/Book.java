@@ -30,6 +30,7 @@ import jline.internal.Log;
 
 import org.cryptocoinpartners.schema.dao.BookDao;
 import org.cryptocoinpartners.util.EM;
+import org.cryptocoinpartners.util.RecentKeyCache;
 import org.cryptocoinpartners.util.Visitor;
 import org.hibernate.annotations.Cache;
 import org.hibernate.annotations.CacheConcurrencyStrategy;
@@ -49,7 +50,8 @@ import com.google.inject.assistedinject.AssistedInject;
 @Entity
 @Cacheable
 @Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE, region = "book")
-@Table(indexes = { @Index(columnList = "time"), @Index(columnList = "timeReceived") })
+@Table(indexes = { @Index(columnList = "time"), @Index(columnList = "timeReceived"), @Index(columnList = "market,time"),
+        @Index(columnList = "market,timeReceived") })
 public class Book extends MarketData implements Spread {
 
     /** Books will be saved in the database as diffs against the previous Book, but a full Book will be saved if the
@@ -349,6 +351,16 @@ public class Book extends MarketData implements Spread {
         return result;
     }
 
+    /**
+     * Builds the Book without linking it into the chain of Books for its Market, so it is saved with all of its bids
+     * and asks rather than as a diff against a parent.  Unlike build(), this may be called for Books of the same Market
+     * in any order and from any thread.
+     */
+    public Book buildSnapshot() {
+        this.sortBook();
+        return this;
+    }
+
     /** Book.Builder remembers the previous Book it built, allowing for diffs to be saved in the db */
     public static class Builder {
 
@@ -587,6 +599,17 @@ public class Book extends MarketData implements Spread {
         //  if (parent != null)
         //    if (parent.find() == null)
         //      parent.persit();
+        if (parent != null && !isPersisted(parent))
+            parent.persit();
+        encodeBlobs();
+    }
+
+    /**
+     * Fills the blob columns from the bids and asks, as a diff against the parent if there is one.  JPA calls this
+     * before a Book is persisted; anything which inserts Books without the JPA callbacks, such as a StatelessSession,
+     * must call it first.
+     */
+    public void encodeBlobs() {
         if (parent == null) {
 
             //PersistUtil.insert(getMarket());
@@ -597,11 +620,6 @@ public class Book extends MarketData implements Spread {
             bidDeletionsBlob = null;
             askDeletionsBlob = null;
         } else {
-            UUID duplicate = (this.getDao() == null) ? (EM.queryZeroOne(UUID.class, "select b.id from Book b where b.id=?1", parent.getId())) : (this
-                    .queryZeroOne(UUID.class, "select b.id from Book b where b.id=?1", parent.getId()));
-
-            if (duplicate == null)
-                parent.persit();
             //PersistUtil.find(getParentBook());
             //PersistUtil.refresh(this);
             //PersistUtil.merge(this);
@@ -619,6 +637,28 @@ public class Book extends MarketData implements Spread {
         }
     }
 
+    /**
+     * Answers whether the book has already been written, asking the database only when the recent key cache cannot
+     * tell.  A false answer claims the book, so the caller is expected to persist it.
+     */
+    public static boolean isPersisted(Book book) {
+        switch (RecentKeyCache.forType(Book.class).claim(book.getMarket(), book.getId().toString(), book.getTime())) {
+            case NEW:
+                return false;
+            case DUPLICATE:
+                return true;
+            default:
+                UUID duplicate = (book.getDao() == null) ? (EM.queryZeroOne(UUID.class, "select b.id from Book b where b.id=?1", book.getId())) : (book
+                        .queryZeroOne(UUID.class, "select b.id from Book b where b.id=?1", book.getId()));
+                return duplicate != null;
+        }
+    }
+
+    /** takes back the claim made by isPersisted() for a book which could not be written */
+    public static void releasePersisted(Book book) {
+        RecentKeyCache.forType(Book.class).release(book.getMarket(), book.getId().toString());
+    }
+
     @SuppressWarnings("ConstantConditions")
     private boolean hasQuote(List<? extends Offer> list, Offer offer) {
         for (Offer item : list) {
@@ -865,6 +905,8 @@ public class Book extends MarketData implements Spread {
 
         } catch (javax.persistence.PersistenceException pex) {
             System.out.println("Unable to perist entity " + this.getClass().getSimpleName() + ": " + this.getId() + ". " + pex.getCause());
+            // the failure is swallowed here, so take back any claim isPersisted() made or a retry would be skipped
+            releasePersisted(this);
 
         } catch (Exception | Error ex) {
 
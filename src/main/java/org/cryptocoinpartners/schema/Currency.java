@@ -4,7 +4,9 @@ import java.util.List;
 
 import javax.persistence.Cacheable;
 import javax.persistence.Entity;
+import javax.persistence.NamedQuery;
 import javax.persistence.NoResultException;
+import javax.persistence.QueryHint;
 
 import org.cryptocoinpartners.schema.dao.CurrencyJpaDao;
 import org.cryptocoinpartners.util.EM;
@@ -18,6 +20,7 @@ import com.google.inject.assistedinject.AssistedInject;
  */
 @Entity
 @Cacheable
+@NamedQuery(name = "Currency.findBySymbol", query = "select c from Currency c where symbol=?1", hints = { @QueryHint(name = "org.hibernate.cacheable", value = "true"), @QueryHint(name = "org.hibernate.cacheRegion", value = "query.reference") })
 public class Currency extends Asset {
 
     /**
@@ -36,7 +39,10 @@ public class Currency extends Asset {
     }
 
     public static Currency forSymbol(String symbol) {
-        return EM.queryOne(Currency.class, "select c from Currency c where symbol=?1", symbol);
+        Currency currency = ReferenceData.forSymbol(Currency.class, symbol);
+        if (currency != null)
+            return currency;
+        return ReferenceData.register(EM.namedQueryOne(Currency.class, "Currency.findBySymbol", symbol));
     }
 
     public static List<String> allSymbols() {
@@ -63,7 +69,7 @@ public class Currency extends Asset {
             final Currency currency = new Currency(isFiat, symbol, basis);
             // final Currency currency = currencyFactory.create(isFiat, symbol, basis);
             currencyDao.persist(currency);
-            return currency;
+            return ReferenceData.register(currency);
         }
     }
 
@@ -74,7 +80,7 @@ public class Currency extends Asset {
         } catch (NoResultException e) {
             final Currency currency = new Currency(isFiat, symbol, basis, multiplier);
             EM.persist(currency);
-            return currency;
+            return ReferenceData.register(currency);
         }
     }
 
@@ -6,10 +6,14 @@ import javax.persistence.Basic;
 import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQuery;
+import javax.persistence.QueryHint;
 
 import org.cryptocoinpartners.enumeration.FeeMethod;
 import org.cryptocoinpartners.schema.dao.ExchangeJpaDao;
 import org.cryptocoinpartners.util.EM;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import com.google.inject.Inject;
 
@@ -18,6 +22,8 @@ import com.google.inject.Inject;
  */
 @Entity
 @Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "exchange")
+@NamedQuery(name = "Exchange.findBySymbol", query = "select e from Exchange e where symbol=?1", hints = { @QueryHint(name = "org.hibernate.cacheable", value = "true"), @QueryHint(name = "org.hibernate.cacheRegion", value = "query.reference") })
 public class Exchange extends EntityBase {
 
     /**
@@ -34,6 +40,7 @@ public class Exchange extends EntityBase {
         if (found == null) {
             found = new Exchange(symbol);
             exchangeDao.persist(found);
+            found = ReferenceData.register(found);
         }
         return found;
     }
@@ -43,6 +50,7 @@ public class Exchange extends EntityBase {
         if (found == null) {
             found = new Exchange(symbol, margin, feeRate, feeMethod);
             exchangeDao.persist(found);
+            found = ReferenceData.register(found);
 
         }
         return found;
@@ -53,13 +61,20 @@ public class Exchange extends EntityBase {
         if (found == null) {
             found = new Exchange(symbol, margin, feeRate, feeMethod, marginFeeRate, marginFeeMethod);
             exchangeDao.persist(found);
+            found = ReferenceData.register(found);
         }
         return found;
     }
 
     /** returns null if the symbol does not represent an existing exchange */
     public static Exchange forSymbol(String symbol) {
-        return EM.queryZeroOne(Exchange.class, "select e from Exchange e where symbol=?1", symbol);
+        Exchange exchange = ReferenceData.forSymbol(Exchange.class, symbol);
+        if (exchange != null || ReferenceData.isMissing(Exchange.class, symbol))
+            return exchange;
+        exchange = ReferenceData.register(EM.namedQueryZeroOne(Exchange.class, "Exchange.findBySymbol", symbol));
+        if (exchange == null)
+            ReferenceData.missing(Exchange.class, symbol);
+        return exchange;
     }
 
     public static List<String> allSymbols() {
@@ -177,6 +192,7 @@ public class Exchange extends EntityBase {
     @Override
     public void merge() {
         exchangeDao.merge(this);
+        ReferenceData.refresh(this);
         // TODO Auto-generated method stub
 
     }
@@ -18,6 +18,8 @@ import javax.persistence.Transient;
 import org.cryptocoinpartners.enumeration.FeeMethod;
 import org.cryptocoinpartners.schema.dao.ListingDao;
 import org.cryptocoinpartners.util.EM;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import com.google.inject.Inject;
 
@@ -27,9 +29,10 @@ import com.google.inject.Inject;
 @SuppressWarnings("UnusedDeclaration")
 @Entity
 @Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "listing")
 @NamedQueries({
-        @NamedQuery(name = "Listing.findByQuoteBase", query = "select a from Listing a where base=?1 and quote=?2 and prompt IS NULL", hints = { @QueryHint(name = "org.hibernate.cacheable", value = "true") }),
-        @NamedQuery(name = "Listing.findByQuoteBasePrompt", query = "select a from Listing a where base=?1 and quote=?2 and prompt=?3", hints = { @QueryHint(name = "org.hibernate.cacheable", value = "true") }) })
+        @NamedQuery(name = "Listing.findByQuoteBase", query = "select a from Listing a where base=?1 and quote=?2 and prompt IS NULL", hints = { @QueryHint(name = "org.hibernate.cacheable", value = "true"), @QueryHint(name = "org.hibernate.cacheRegion", value = "query.reference") }),
+        @NamedQuery(name = "Listing.findByQuoteBasePrompt", query = "select a from Listing a where base=?1 and quote=?2 and prompt=?3", hints = { @QueryHint(name = "org.hibernate.cacheable", value = "true"), @QueryHint(name = "org.hibernate.cacheRegion", value = "query.reference") }) })
 @Table(indexes = { @Index(columnList = "base"), @Index(columnList = "quote"), @Index(columnList = "prompt") })
 //@Table(name = "listing", uniqueConstraints = { @UniqueConstraint(columnNames = { "base", "quote", "prompt" }),
 //@UniqueConstraint(columnNames = { "base", "quote" }) })
@@ -66,7 +69,9 @@ public class Listing extends EntityBase {
 
     /** will create the listing if it doesn't exist */
     public static Listing forPair(Asset base, Asset quote) {
-
+        Listing registered = ReferenceData.forSymbol(Listing.class, base.getSymbol() + '.' + quote.getSymbol());
+        if (registered != null)
+            return registered;
         try {
             Listing listing = EM.namedQueryZeroOne(Listing.class, "Listing.findByQuoteBase", base, quote);
             if (listing == null) {
@@ -75,15 +80,18 @@ public class Listing extends EntityBase {
                 EM.find(quote);
                 EM.persist(listing);
             }
-            return listing;
+            return ReferenceData.register(listing);
         } catch (NoResultException e) {
             final Listing listing = new Listing(base, quote);
             EM.persist(listing);
-            return listing;
+            return ReferenceData.register(listing);
         }
     }
 
     public static Listing forPair(Asset base, Asset quote, Prompt prompt) {
+        Listing registered = ReferenceData.forSymbol(Listing.class, base.getSymbol() + '.' + quote.getSymbol() + '.' + prompt.getSymbol());
+        if (registered != null)
+            return registered;
         try {
 
             Listing listing = EM.namedQueryZeroOne(Listing.class, "Listing.findByQuoteBasePrompt", base, quote, prompt);
@@ -91,11 +99,11 @@ public class Listing extends EntityBase {
                 listing = new Listing(base, quote, prompt);
                 EM.persist(listing);
             }
-            return listing;
+            return ReferenceData.register(listing);
         } catch (NoResultException e) {
             final Listing listing = new Listing(base, quote, prompt);
             EM.persist(listing);
-            return listing;
+            return ReferenceData.register(listing);
         }
     }
 
@@ -250,6 +258,9 @@ public class Listing extends EntityBase {
 
     public static Listing forSymbol(String symbol) {
         symbol = symbol.toUpperCase();
+        Listing registered = ReferenceData.forSymbol(Listing.class, symbol);
+        if (registered != null)
+            return registered;
         final int dot = symbol.indexOf('.');
         if (dot == -1)
             throw new IllegalArgumentException("Invalid Listing symbol: \"" + symbol + "\"");
@@ -332,6 +343,7 @@ public class Listing extends EntityBase {
     @Override
     public void merge() {
         listingDao.merge(this);
+        ReferenceData.refresh(this);
         // TODO Auto-generated method stub
 
     }
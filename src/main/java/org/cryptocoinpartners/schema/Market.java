@@ -21,6 +21,8 @@ import org.cryptocoinpartners.enumeration.FeeMethod;
 import org.cryptocoinpartners.schema.dao.MarketDao;
 import org.cryptocoinpartners.util.EM;
 import org.cryptocoinpartners.util.RemainderHandler;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
@@ -33,7 +35,8 @@ import com.google.inject.assistedinject.AssistedInject;
  */
 @Entity
 @Cacheable
-@NamedQuery(name = "Market.findByMarket", query = "select m from Market m where exchange=?1 and listing=?2", hints = { @QueryHint(name = "org.hibernate.cacheable", value = "true") })
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "market")
+@NamedQuery(name = "Market.findByMarket", query = "select m from Market m where exchange=?1 and listing=?2", hints = { @QueryHint(name = "org.hibernate.cacheable", value = "true"), @QueryHint(name = "org.hibernate.cacheRegion", value = "query.reference") })
 @Table(indexes = { @Index(columnList = "exchange"), @Index(columnList = "listing"), @Index(columnList = "active") })
 public class Market extends EntityBase {
     @Inject
@@ -60,15 +63,18 @@ public class Market extends EntityBase {
 
     public static Market findOrCreate(Exchange exchange, Listing listing, double quoteBasis, double volumeBasis) {
         // final String queryStr = "select m from Market m where exchange=?1 and listing=?2";
+        Market registered = ReferenceData.forSymbol(Market.class, exchange.getSymbol() + ':' + listing.getSymbol());
+        if (registered != null)
+            return registered;
         try {
-            return EM.namedQueryOne(Market.class, "Market.findByMarket", exchange, listing);
+            return ReferenceData.register(EM.namedQueryOne(Market.class, "Market.findByMarket", exchange, listing));
         } catch (NoResultException e) {
 
             Market ml = marketFactory.create(exchange, listing, quoteBasis, volumeBasis);
             //  Market ml = new Market(exchange, listing, quoteBasis, volumeBasis);
             ml.persit();
             // marketDao.persist(ml);
-            return ml;
+            return ReferenceData.register(ml);
         }
     }
 
@@ -198,11 +204,14 @@ public class Market extends EntityBase {
     }
 
     public static Market forSymbol(String marketSymbol) {
-
+        Market registered = ReferenceData.forSymbol(Market.class, marketSymbol);
+        if (registered != null || ReferenceData.isMissing(Market.class, marketSymbol))
+            return registered;
         for (Market market : findAll()) {
             if (market.getSymbol().equalsIgnoreCase(marketSymbol))
-                return market;
+                return ReferenceData.register(market);
         }
+        ReferenceData.missing(Market.class, marketSymbol);
         return null;
     }
 
@@ -305,6 +314,7 @@ public class Market extends EntityBase {
     @Override
     public void merge() {
         marketDao.merge(this);
+        ReferenceData.refresh(this);
 
     }
 }
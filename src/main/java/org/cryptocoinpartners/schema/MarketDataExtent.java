@@ -0,0 +1,420 @@
+package org.cryptocoinpartners.schema;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+
+import org.cryptocoinpartners.schema.dao.MarketDataExtentJpaDao;
+import org.cryptocoinpartners.util.ConfigUtil;
+import org.cryptocoinpartners.util.EM;
+import org.hibernate.annotations.Type;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+
+/**
+ * MarketDataExtent is one row of the market data catalogue: the first and last times and the number of rows of one
+ * type of MarketData (Trade, Book, Bar) for one Market on one UTC day.  The writers call record() for every row they
+ * save and the catalogue is brought up to date in the database every db.extent.flush.interval seconds, so the bounds
+ * and counts of the multi-million row market data tables can be read from a table with one row per market per day.
+ * Use rebuild() to backfill the catalogue from data which was written before the catalogue existed; the rows it writes
+ * are marked backfilled, and until a type has such a row its bounds are read from its data table instead.  Writers
+ * hold recording() from inserting rows until they have recorded them, so that rebuild() counts each row once.
+ */
+@Entity
+@Table(indexes = { @Index(columnList = "market,dataType,day", unique = true), @Index(columnList = "dataType") })
+public class MarketDataExtent extends EntityBase {
+
+    @Inject
+    protected static MarketDataExtentJpaDao marketDataExtentDao;
+
+    /** adds a saved row to the pending catalogue changes, which are written by the next flush() */
+    public static void record(MarketData data) {
+        if (data.getMarket() == null || data.getTime() == null)
+            return;
+        Instant timeReceived = data.getTimeReceived() == null ? data.getTime() : data.getTimeReceived();
+        Key key = new Key(data.getMarket(), data.getClass().getSimpleName(), dayOf(data.getTime()));
+        synchronized (lock) {
+            MarketDataExtent extent = pending.get(key);
+            if (extent == null)
+                pending.put(key, new MarketDataExtent(key.market, key.dataType, key.day, data.getTime(), timeReceived, 1));
+            else
+                extent.extend(data.getTime(), data.getTime(), timeReceived, timeReceived, 1);
+            if (flusher == null)
+                startFlusher();
+        }
+    }
+
+    /**
+     * The lock writers hold from inserting rows until they have passed them to record().  rebuild() waits for the
+     * writers holding it and keeps new ones out, so each row is either in the tables it scans or in the changes
+     * recorded after it, never both.
+     */
+    public static Lock recording() {
+        return rebuilding.readLock();
+    }
+
+    /** writes all pending catalogue changes to the database */
+    public static void flush() {
+        // the changes are taken under flushLock, so that none taken before a rebuild() are written after it
+        synchronized (flushLock) {
+            Map<Key, MarketDataExtent> changes;
+            synchronized (lock) {
+                if (pending.isEmpty())
+                    return;
+                changes = pending;
+                pending = new HashMap<>();
+            }
+            for (MarketDataExtent change : changes.values()) {
+                try {
+                    MarketDataExtent existing = EM.queryZeroOne(MarketDataExtent.class,
+                            "select e from MarketDataExtent e where e.market=?1 and e.dataType=?2 and e.day=?3", change.market, change.dataType, change.day);
+                    if (existing == null)
+                        change.persit();
+                    else {
+                        existing.extend(change.firstTime, change.lastTime, change.firstTimeReceived, change.lastTimeReceived, change.rowCount);
+                        existing.merge();
+                    }
+                } catch (Exception | Error e) {
+                    log.error("Unable to update market data catalogue for " + change, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards the catalogue and recreates it from the Trade, Book and Bar tables.  This scans the whole of each
+     * table, so only run it once to backfill, or to repair the catalogue after data was written around the writers.
+     * The writers wait until it has finished.
+     */
+    public static void rebuild() {
+        rebuilding.writeLock().lock();
+        try {
+            rebuildCatalogue();
+        } finally {
+            rebuilding.writeLock().unlock();
+        }
+    }
+
+    private static void rebuildCatalogue() {
+        synchronized (flushLock) {
+            // every row recorded so far has been inserted, so the scan counts it
+            synchronized (lock) {
+                pending.clear();
+            }
+            for (MarketDataExtent extent : EM.queryList(MarketDataExtent.class, "select e from MarketDataExtent e"))
+                marketDataExtentDao.remove(extent);
+            for (Class<? extends MarketData> type : catalogued) {
+                String name = type.getSimpleName();
+                List<MarketDataExtent> extents = new ArrayList<>();
+                for (Object[] row : EM.queryList(Object[].class, "select d.market, floor(d.timestamp / " + DateTimeConstants.MILLIS_PER_DAY
+                        + "), min(d.time), max(d.time), min(d.timeReceived), max(d.timeReceived), count(d) from " + name
+                        + " d group by d.market, floor(d.timestamp / " + DateTimeConstants.MILLIS_PER_DAY + ")")) {
+                    Instant day = new Instant(((Number) row[1]).longValue() * DateTimeConstants.MILLIS_PER_DAY);
+                    MarketDataExtent extent = new MarketDataExtent((Market) row[0], name, day, (Instant) row[2], (Instant) row[4],
+                            ((Number) row[6]).longValue());
+                    extent.extend((Instant) row[2], (Instant) row[3], (Instant) row[4], (Instant) row[5], 0);
+                    extent.backfilled = true;
+                    extents.add(extent);
+                }
+                for (MarketDataExtent extent : extents)
+                    extent.persit();
+                log.info("rebuilt market data catalogue for " + name + ": " + extents.size() + " market days");
+            }
+        }
+    }
+
+    /** removes the catalogue rows of the given type, e.g. Trade, for the days before the given time */
+    public static void forget(String dataType, Instant before) {
+        flush();
+        synchronized (flushLock) {
+            for (MarketDataExtent extent : EM.queryList(MarketDataExtent.class, "select e from MarketDataExtent e where e.dataType=?1 and e.day<?2",
+                    dataType, before))
+                marketDataExtentDao.remove(extent);
+        }
+    }
+
+    /**
+     * @return the earliest time of any data of the given types, or null if there is none.  Until rebuild() has
+     *         backfilled the catalogue it may be missing older data, so the data tables are queried instead.
+     */
+    @Nullable
+    public static Instant getStart(boolean orderByTimeReceived, Class<?>... types) {
+        if (!isBackfilled(types))
+            return tableBound(true, orderByTimeReceived, types);
+        String field = orderByTimeReceived ? "firstTimeReceived" : "firstTime";
+        return EM.queryOne(Instant.class, "select min(e." + field + ") from MarketDataExtent e where e.dataType in (?1)", typeNames(types));
+    }
+
+    /**
+     * @return the latest time of any data of the given types, or null if there is none.  Until rebuild() has
+     *         backfilled the catalogue it may be missing older data, so the data tables are queried instead.
+     */
+    @Nullable
+    public static Instant getEnd(boolean orderByTimeReceived, Class<?>... types) {
+        if (!isBackfilled(types))
+            return tableBound(false, orderByTimeReceived, types);
+        String field = orderByTimeReceived ? "lastTimeReceived" : "lastTime";
+        return EM.queryOne(Instant.class, "select max(e." + field + ") from MarketDataExtent e where e.dataType in (?1)", typeNames(types));
+    }
+
+    /** @return true if rebuild() has backfilled the catalogue of each type, so it covers data written before it existed */
+    public static boolean isBackfilled(Class<?>... types) {
+        for (Class<?> type : types) {
+            Long rows = EM.queryOne(Long.class, "select count(e) from MarketDataExtent e where e.dataType=?1 and e.backfilled=true", type.getSimpleName());
+            if (rows == null || rows == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public static long count(Market market, Class<?> type) {
+        Long count = EM.queryOne(Long.class, "select sum(e.rowCount) from MarketDataExtent e where e.market=?1 and e.dataType=?2", market,
+                type.getSimpleName());
+        return count == null ? 0 : count;
+    }
+
+    private static Instant tableBound(boolean earliest, boolean orderByTimeReceived, Class<?>... types) {
+        String field = orderByTimeReceived ? "timeReceived" : "time";
+        Instant bound = null;
+        for (Class<?> type : types) {
+            Instant time = EM.queryOne(Instant.class, "select " + (earliest ? "min" : "max") + "(d." + field + ") from " + type.getSimpleName() + " d");
+            if (time != null && (bound == null || (earliest ? time.isBefore(bound) : time.isAfter(bound))))
+                bound = time;
+        }
+        return bound;
+    }
+
+    private static List<String> typeNames(Class<?>... types) {
+        List<String> names = new ArrayList<>();
+        for (Class<?> type : types)
+            names.add(type.getSimpleName());
+        return names;
+    }
+
+    private static Instant dayOf(Instant time) {
+        long millis = time.getMillis();
+        long sinceMidnight = ((millis % DateTimeConstants.MILLIS_PER_DAY) + DateTimeConstants.MILLIS_PER_DAY) % DateTimeConstants.MILLIS_PER_DAY;
+        return new Instant(millis - sinceMidnight);
+    }
+
+    private static void startFlusher() {
+        long interval = ConfigUtil.combined().getLong("db.extent.flush.interval", 10);
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }));
+    }
+
+    @ManyToOne(optional = false)
+    public Market getMarket() {
+        return market;
+    }
+
+    /** simple class name of the MarketData subclass, e.g. Trade */
+    @Basic(optional = false)
+    public String getDataType() {
+        return dataType;
+    }
+
+    /** midnight UTC at the start of the day this extent covers */
+    @Type(type = "org.jadira.usertype.dateandtime.joda.PersistentInstantAsMillisLong")
+    @Basic(optional = false)
+    public Instant getDay() {
+        return day;
+    }
+
+    @Type(type = "org.jadira.usertype.dateandtime.joda.PersistentInstantAsMillisLong")
+    @Basic(optional = false)
+    public Instant getFirstTime() {
+        return firstTime;
+    }
+
+    @Type(type = "org.jadira.usertype.dateandtime.joda.PersistentInstantAsMillisLong")
+    @Basic(optional = false)
+    public Instant getLastTime() {
+        return lastTime;
+    }
+
+    @Type(type = "org.jadira.usertype.dateandtime.joda.PersistentInstantAsMillisLong")
+    @Basic(optional = false)
+    public Instant getFirstTimeReceived() {
+        return firstTimeReceived;
+    }
+
+    @Type(type = "org.jadira.usertype.dateandtime.joda.PersistentInstantAsMillisLong")
+    @Basic(optional = false)
+    public Instant getLastTimeReceived() {
+        return lastTimeReceived;
+    }
+
+    @Basic(optional = false)
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /** true for rows written by rebuild(), which mark the catalogue of their type as covering all earlier data */
+    @Basic(optional = false)
+    public boolean isBackfilled() {
+        return backfilled;
+    }
+
+    @Override
+    public String toString() {
+        return market + " " + dataType + " " + day + ": " + rowCount + " rows " + firstTime + " to " + lastTime;
+    }
+
+    @Override
+    public void persit() {
+        marketDataExtentDao.persist(this);
+    }
+
+    @Override
+    public void detach() {
+        marketDataExtentDao.detach(this);
+    }
+
+    @Override
+    public void merge() {
+        marketDataExtentDao.merge(this);
+    }
+
+    private void extend(Instant first, Instant last, Instant firstReceived, Instant lastReceived, long rows) {
+        if (first.isBefore(firstTime))
+            firstTime = first;
+        if (last.isAfter(lastTime))
+            lastTime = last;
+        if (firstReceived.isBefore(firstTimeReceived))
+            firstTimeReceived = firstReceived;
+        if (lastReceived.isAfter(lastTimeReceived))
+            lastTimeReceived = lastReceived;
+        rowCount += rows;
+    }
+
+    private MarketDataExtent(Market market, String dataType, Instant day, Instant time, Instant timeReceived, long rowCount) {
+        this.market = market;
+        this.dataType = dataType;
+        this.day = day;
+        this.firstTime = time;
+        this.lastTime = time;
+        this.firstTimeReceived = timeReceived;
+        this.lastTimeReceived = timeReceived;
+        this.rowCount = rowCount;
+    }
+
+    // JPA
+    protected MarketDataExtent() {
+    }
+
+    protected void setMarket(Market market) {
+        this.market = market;
+    }
+
+    protected void setDataType(String dataType) {
+        this.dataType = dataType;
+    }
+
+    protected void setDay(Instant day) {
+        this.day = day;
+    }
+
+    protected void setFirstTime(Instant firstTime) {
+        this.firstTime = firstTime;
+    }
+
+    protected void setLastTime(Instant lastTime) {
+        this.lastTime = lastTime;
+    }
+
+    protected void setFirstTimeReceived(Instant firstTimeReceived) {
+        this.firstTimeReceived = firstTimeReceived;
+    }
+
+    protected void setLastTimeReceived(Instant lastTimeReceived) {
+        this.lastTimeReceived = lastTimeReceived;
+    }
+
+    protected void setRowCount(long rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    protected void setBackfilled(boolean backfilled) {
+        this.backfilled = backfilled;
+    }
+
+    private static class Key {
+
+        private final Market market;
+        private final String dataType;
+        private final Instant day;
+
+        private Key(Market market, String dataType, Instant day) {
+            this.market = market;
+            this.dataType = dataType;
+            this.day = day;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key that = (Key) o;
+            return market.equals(that.market) && dataType.equals(that.dataType) && day.equals(that.day);
+        }
+
+        @Override
+        public int hashCode() {
+            return (market.hashCode() * 31 + dataType.hashCode()) * 31 + day.hashCode();
+        }
+
+    }
+
+    private static final List<Class<? extends MarketData>> catalogued = new ArrayList<Class<? extends MarketData>>();
+    static {
+        catalogued.add(Trade.class);
+        catalogued.add(Book.class);
+        catalogued.add(Bar.class);
+    }
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.persist");
+    private static final Object lock = new Object();
+    private static final Object flushLock = new Object();
+    private static final ReentrantReadWriteLock rebuilding = new ReentrantReadWriteLock();
+    private static Map<Key, MarketDataExtent> pending = new HashMap<>();
+    private static ScheduledExecutorService flusher;
+
+    private Market market;
+    private String dataType;
+    private Instant day;
+    private Instant firstTime;
+    private Instant lastTime;
+    private Instant firstTimeReceived;
+    private Instant lastTimeReceived;
+    private long rowCount;
+    private boolean backfilled;
+
+}
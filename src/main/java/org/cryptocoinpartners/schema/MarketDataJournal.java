@@ -0,0 +1,481 @@
+package org.cryptocoinpartners.schema;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * An append-only journal of incoming Trades and Books, so that taking market data never waits on the database and
+ * nothing taken is lost if the process dies before it is saved.  append() writes each event into a memory-mapped
+ * segment file, and the segment is forced to disk every syncInterval milliseconds and by close(), which a shutdown hook
+ * calls.  A drainer thread reads the journal behind the writer, rebuilds the events (keeping their ids and Book
+ * parents) and hands them in batches to a Sink.  Once the Sink has saved a batch the drainer writes its position to the checkpoint file and deletes the
+ * segments it has finished.  On startup draining resumes from the checkpoint, and appending starts a new segment.
+ * <p>
+ * Each record is an int length followed by the record kind and its fields.  The length is written last, so a record
+ * torn by a crash reads as the end of the segment.  Markets are written once per segment, as a MARKET record giving the
+ * id used by the records which follow.
+ * <pre>
+ * MARKET: int id, UTF exchange symbol, UTF listing symbol
+ * TRADE:  long id msb, long id lsb, int market id, long time, long timeReceived, boolean hasRemoteKey, [UTF remoteKey],
+ *         long priceCount, long volumeCount
+ * BOOK:   long id msb, long id lsb, int market id, long time, long timeReceived, boolean hasRemoteKey, [UTF remoteKey],
+ *         boolean hasParent, [long parent msb, long parent lsb],
+ *         int bid count, (long priceCount, long volumeCount)*, int ask count, (long priceCount, long volumeCount)*
+ * </pre>
+ */
+public class MarketDataJournal implements Closeable {
+
+    public interface Sink {
+
+        /** @return true once every event has been saved, false to have the same batch offered again later */
+        boolean write(List<MarketData> batch);
+
+    }
+
+    public MarketDataJournal(File directory, int segmentSize, long syncInterval, int drainBatchSize, TradeFactory tradeFactory, BookFactory bookFactory,
+            Sink sink) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.drainBatchSize = Math.max(1, drainBatchSize);
+        this.syncInterval = Math.max(1, syncInterval);
+        this.tradeFactory = tradeFactory;
+        this.bookFactory = bookFactory;
+        this.sink = sink;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create journal directory " + directory);
+
+        long[] segments = segments();
+        long[] checkpoint = readCheckpoint();
+        if (checkpoint != null)
+            drained = new Position(checkpoint[0], (int) checkpoint[1]);
+        else if (segments.length > 0)
+            drained = new Position(segments[0], 0);
+        long appendSegment = segments.length == 0 ? drained.segment : Math.max(drained.segment, segments[segments.length - 1] + 1);
+        if (segments.length > 0)
+            log.info("resuming market data journal at segment " + drained.segment + " position " + drained.position + " of " + segments.length + " segments");
+        openAppendSegment(appendSegment);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("journal sync").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, this.syncInterval, this.syncInterval, TimeUnit.MILLISECONDS);
+        drainer = new Thread(new DrainRunnable(), "journal drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        // the sync thread is a daemon, so force whatever was appended since its last run on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    close();
+                } catch (IOException e) {
+                    log.error("Could not close market data journal in " + MarketDataJournal.this.directory, e);
+                }
+            }
+        }, "journal close"));
+    }
+
+    /** writes a Trade or Book to the journal, @return false for any other kind of event or once the journal is closed */
+    public boolean append(MarketData data) {
+        if (!(data instanceof Trade) && !(data instanceof Book))
+            return false;
+        synchronized (lock) {
+            if (closed)
+                return false;
+            try {
+                int marketId = marketId(data.getMarket());
+                record.reset();
+                if (data instanceof Trade) {
+                    Trade trade = (Trade) data;
+                    recordOut.writeByte(TRADE);
+                    writeHeader(marketId, trade);
+                    recordOut.writeLong(trade.getPriceCount());
+                    recordOut.writeLong(trade.getVolumeCount());
+                } else {
+                    Book book = (Book) data;
+                    recordOut.writeByte(BOOK);
+                    writeHeader(marketId, book);
+                    recordOut.writeBoolean(book.getParent() != null);
+                    if (book.getParent() != null)
+                        writeUuid(book.getParent().getId());
+                    writeOffers(book.getBids());
+                    writeOffers(book.getAsks());
+                }
+                recordOut.flush();
+                if (!put(record)) {
+                    // roll over to a new segment, where the market ids start again
+                    openAppendSegment(appendSegmentNumber + 1);
+                    return append(data);
+                }
+                return true;
+            } catch (IOException e) {
+                throw new RuntimeException("Could not append to market data journal in " + directory, e);
+            }
+        }
+    }
+
+    /** forces appended records to disk */
+    public void sync() {
+        synchronized (lock) {
+            if (dirty && appendBuffer != null && !closed) {
+                appendBuffer.force();
+                dirty = false;
+            }
+        }
+    }
+
+    /** bytes appended but not yet drained, counting whole segments */
+    public long getBacklog() {
+        Position appended = published;
+        Position drainedTo = drained;
+        return (appended.segment - drainedTo.segment) * (long) segmentSize + appended.position - drainedTo.position;
+    }
+
+    /** forces the appended records to disk and stops the journal; it may be called more than once */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        drainer.interrupt();
+        scheduler.shutdown();
+        synchronized (lock) {
+            if (closed)
+                return;
+            sync();
+            closed = true;
+            appendChannel.close();
+        }
+    }
+
+    private int marketId(Market market) throws IOException {
+        Integer id = marketIds.get(market);
+        if (id == null) {
+            id = marketIds.size();
+            record.reset();
+            recordOut.writeByte(MARKET);
+            recordOut.writeInt(id);
+            recordOut.writeUTF(market.getExchange().getSymbol());
+            recordOut.writeUTF(market.getListing().getSymbol());
+            recordOut.flush();
+            if (!put(record)) {
+                openAppendSegment(appendSegmentNumber + 1);
+                return marketId(market);
+            }
+            marketIds.put(market, id);
+        }
+        return id;
+    }
+
+    private void writeHeader(int marketId, MarketData data) throws IOException {
+        writeUuid(data.getId());
+        recordOut.writeInt(marketId);
+        recordOut.writeLong(data.getTime().getMillis());
+        recordOut.writeLong(data.getTimeReceived().getMillis());
+        recordOut.writeBoolean(data.getRemoteKey() != null);
+        if (data.getRemoteKey() != null)
+            recordOut.writeUTF(data.getRemoteKey());
+    }
+
+    private void writeUuid(UUID id) throws IOException {
+        recordOut.writeLong(id.getMostSignificantBits());
+        recordOut.writeLong(id.getLeastSignificantBits());
+    }
+
+    private void writeOffers(List<? extends Offer> offers) throws IOException {
+        recordOut.writeInt(offers.size());
+        for (Offer offer : offers) {
+            recordOut.writeLong(offer.getPriceCount());
+            recordOut.writeLong(offer.getVolumeCount());
+        }
+    }
+
+    /** copies the encoded record into the segment, @return false if the segment is full */
+    private boolean put(ByteArrayOutputStream encoded) {
+        int length = encoded.size();
+        int position = appendBuffer.position();
+        if (position + 4 + length + 4 > segmentSize) {
+            if (position == 0)
+                throw new IllegalStateException("Journal record of " + length + " bytes is larger than db.journal.segment.size");
+            return false;
+        }
+        appendBuffer.position(position + 4);
+        appendBuffer.put(encoded.toByteArray());
+        appendBuffer.putInt(position, length);
+        dirty = true;
+        published = new Position(appendSegmentNumber, appendBuffer.position());
+        return true;
+    }
+
+    private void openAppendSegment(long segment) throws IOException {
+        if (appendChannel != null) {
+            appendBuffer.force();
+            appendChannel.close();
+        }
+        appendChannel = new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+        appendBuffer = appendChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        appendSegmentNumber = segment;
+        marketIds.clear();
+        published = new Position(segment, 0);
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%012d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private long[] segments() {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        long[] segments = new long[names == null ? 0 : names.length];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = Long.parseLong(names[i].substring(0, names[i].length() - SEGMENT_SUFFIX.length()));
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT);
+        if (!file.exists())
+            return null;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return new long[] { in.readLong(), in.readInt() };
+        }
+    }
+
+    private void writeCheckpoint(long segment, int position) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(new File(directory, CHECKPOINT), "rw")) {
+            out.seek(0);
+            out.writeLong(segment);
+            out.writeInt(position);
+            out.getFD().sync();
+        }
+    }
+
+    /** the drainer's view of one segment */
+    private class SegmentReader {
+
+        private SegmentReader(long segment, int startPosition) throws IOException {
+            this.segment = segment;
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "r")) {
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(segmentSize, file.length()));
+            }
+            // the market ids used after the checkpoint were defined before it
+            while (buffer.position() < startPosition)
+                read();
+        }
+
+        /** @return the next record, or null at the end of what has been appended */
+        private MarketData read() {
+            Position limit = published;
+            int position = buffer.position();
+            if (limit.segment == segment && position >= limit.position)
+                return null;
+            if (position + 4 > buffer.limit())
+                return null;
+            int length = buffer.getInt(position);
+            if (length == 0)
+                return null;
+            buffer.position(position + 4);
+            byte kind = buffer.get();
+            switch (kind) {
+                case MARKET:
+                    int id = buffer.getInt();
+                    Exchange exchange = Exchange.forSymbolOrCreate(readUtf());
+                    Listing listing = Listing.forSymbol(readUtf());
+                    markets.put(id, Market.findOrCreate(exchange, listing));
+                    return read();
+                case TRADE: {
+                    UUID tradeId = readUuid();
+                    Market market = markets.get(buffer.getInt());
+                    Instant time = new Instant(buffer.getLong());
+                    Instant timeReceived = new Instant(buffer.getLong());
+                    String remoteKey = buffer.get() != 0 ? readUtf() : null;
+                    Trade trade = tradeFactory.create(market, time, timeReceived, remoteKey, buffer.getLong(), buffer.getLong());
+                    trade.setId(tradeId);
+                    return trade;
+                }
+                case BOOK: {
+                    UUID bookId = readUuid();
+                    Market market = markets.get(buffer.getInt());
+                    Instant time = new Instant(buffer.getLong());
+                    Instant timeReceived = new Instant(buffer.getLong());
+                    String remoteKey = buffer.get() != 0 ? readUtf() : null;
+                    UUID parentId = buffer.get() != 0 ? readUuid() : null;
+                    Book book = bookFactory.create(time, timeReceived, remoteKey, market);
+                    book.setId(bookId);
+                    for (int i = buffer.getInt(); i > 0; i--)
+                        book.addBid(new DiscreteAmount(buffer.getLong(), market.getPriceBasis()).asBigDecimal(),
+                                new DiscreteAmount(buffer.getLong(), market.getVolumeBasis()).asBigDecimal());
+                    for (int i = buffer.getInt(); i > 0; i--)
+                        book.addAsk(new DiscreteAmount(buffer.getLong(), market.getPriceBasis()).asBigDecimal(),
+                                new DiscreteAmount(buffer.getLong(), market.getVolumeBasis()).asBigDecimal());
+                    // a parent which was drained before a restart is written without the diff against it
+                    if (parentId != null)
+                        book.setParent(recentBooks.get(parentId));
+                    recentBooks.put(bookId, book);
+                    return book;
+                }
+                default:
+                    throw new IllegalStateException("Unknown record type " + kind + " in journal segment " + segment + " at " + position);
+            }
+        }
+
+        /** true once the writer has moved on to a later segment and this one has been read to its end */
+        private boolean isFinished() {
+            int position = buffer.position();
+            return published.segment > segment && (position + 4 > buffer.limit() || buffer.getInt(position) == 0);
+        }
+
+        private String readUtf() {
+            byte[] bytes = new byte[buffer.getShort() & 0xffff];
+            buffer.get(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        private UUID readUuid() {
+            return new UUID(buffer.getLong(), buffer.getLong());
+        }
+
+        private final long segment;
+        private final MappedByteBuffer buffer;
+        private final Map<Integer, Market> markets = new HashMap<>();
+
+    }
+
+    private class DrainRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            long backoff = syncInterval;
+            List<MarketData> batch = new ArrayList<>(drainBatchSize);
+            SegmentReader reader = null;
+            int batchEnd = drained.position;
+            while (running) {
+                try {
+                    if (batch.isEmpty()) {
+                        if (reader == null)
+                            reader = new SegmentReader(drained.segment, drained.position);
+                        MarketData data;
+                        while (batch.size() < drainBatchSize && (data = reader.read()) != null)
+                            batch.add(data);
+                        batchEnd = reader.buffer.position();
+                    }
+                    if (batch.isEmpty()) {
+                        if (reader.isFinished()) {
+                            long finished = drained.segment;
+                            drained = new Position(finished + 1, 0);
+                            writeCheckpoint(drained.segment, drained.position);
+                            if (!segmentFile(finished).delete())
+                                log.warn("Could not delete drained journal segment " + segmentFile(finished));
+                            reader = null;
+                        } else
+                            Thread.sleep(syncInterval);
+                        continue;
+                    }
+                    if (!sink.write(batch)) {
+                        log.warn("Unable to save " + batch.size() + " journalled events, retrying in " + backoff + " ms");
+                        Thread.sleep(backoff);
+                        backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                        continue;
+                    }
+                    backoff = syncInterval;
+                    batch.clear();
+                    drained = new Position(drained.segment, batchEnd);
+                    writeCheckpoint(drained.segment, drained.position);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception | Error e) {
+                    log.error("Market data journal drainer failed at segment " + drained.segment + " position " + drained.position, e);
+                    try {
+                        Thread.sleep(MAX_BACKOFF);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+
+    }
+
+    private static class Position {
+
+        private Position(long segment, int position) {
+            this.segment = segment;
+            this.position = position;
+        }
+
+        private final long segment;
+        private final int position;
+
+    }
+
+    private static final byte MARKET = 1;
+    private static final byte TRADE = 2;
+    private static final byte BOOK = 3;
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final long MAX_BACKOFF = 30000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.persist");
+
+    private final File directory;
+    private final int segmentSize;
+    private final int drainBatchSize;
+    private final long syncInterval;
+    private final TradeFactory tradeFactory;
+    private final BookFactory bookFactory;
+    private final Sink sink;
+    private final ScheduledExecutorService scheduler;
+    private final Thread drainer;
+    private final Object lock = new Object();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final Map<Market, Integer> marketIds = new HashMap<>();
+    private final Map<UUID, Book> recentBooks = new LinkedHashMap<UUID, Book>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Book> eldest) {
+            return size() > RECENT_BOOKS;
+        }
+    };
+    private static final int RECENT_BOOKS = 1000;
+    private FileChannel appendChannel;
+    private MappedByteBuffer appendBuffer;
+    private long appendSegmentNumber;
+    private boolean dirty;
+    private volatile Position published;
+    private volatile boolean running = true;
+    // segment and position are replaced together, so getBacklog() never sees one without the other
+    private volatile Position drained = new Position(0, 0);
+    private boolean closed;
+
+}
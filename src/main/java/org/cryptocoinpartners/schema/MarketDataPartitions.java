@@ -0,0 +1,226 @@
+package org.cryptocoinpartners.schema;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cryptocoinpartners.util.ConfigUtil;
+import org.cryptocoinpartners.util.EM;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Monthly MySQL range partitioning of the market data tables on their time column, so that queries for a Market over a
+ * time range only read the partitions for those months.  Partition pYYYYMM holds the rows timed in that month (UTC) and
+ * pfuture catches anything later than the last monthly partition.
+ * <p>
+ * Partitioning is optional and done by partition() from the partitions console command.  MySQL requires the partition
+ * column in every unique key and does not allow foreign keys on partitioned tables, nor foreign keys in other tables
+ * which reference them, so partition() drops the table's own foreign keys and those pointing at it (for book, the
+ * foreign key from tick.lastBook) and makes (id, time) the primary key.  The referencing columns are kept, but the
+ * database no longer checks them.  Hibernate's schema update will log that it cannot add the foreign keys back; this is
+ * expected.  Once a table is partitioned, addFuture() keeps db.partition.ahead months of empty
+ * partitions ready, and old months can be dropped, or archived to tables of their own, without touching the rest.
+ */
+public class MarketDataPartitions {
+
+    public static final List<String> tables = Arrays.asList("trade", "book", "bar");
+
+    /** @return true if the table is range partitioned */
+    public static boolean isPartitioned(String table) {
+        for (Partition partition : partitions(table))
+            if (partition.name != null)
+                return true;
+        return false;
+    }
+
+    /** @return the table's partitions in order, or a single unnamed partition if the table is not partitioned */
+    public static List<Partition> partitions(String table) {
+        List<Partition> partitions = new ArrayList<>();
+        for (Object row : EM.nativeQueryList("select partition_name, partition_description, table_rows from information_schema.partitions "
+                + "where table_schema = database() and table_name = ?1 order by partition_ordinal_position", table)) {
+            Object[] columns = (Object[]) row;
+            partitions.add(new Partition(table, (String) columns[0], (String) columns[1], columns[2] == null ? 0 : ((Number) columns[2]).longValue()));
+        }
+        return partitions;
+    }
+
+    /** partitions the table by month, from the month of its earliest row to db.partition.ahead months from now */
+    public static void partition(String table) {
+        if (isPartitioned(table))
+            throw new IllegalStateException(table + " is already partitioned");
+        Object min = EM.nativeQueryList("select min(time) from " + table).get(0);
+        DateTime first = month(min == null ? System.currentTimeMillis() : ((Number) min).longValue());
+        // both the table's own foreign keys and the ones in other tables which reference it
+        for (Object row : EM.nativeQueryList("select table_name, constraint_name from information_schema.referential_constraints "
+                + "where constraint_schema = database() and (table_name = ?1 or referenced_table_name = ?2)", table, table)) {
+            Object[] columns = (Object[]) row;
+            log.info("Dropping foreign key " + columns[1] + " from " + columns[0]);
+            EM.nativeUpdate("alter table " + columns[0] + " drop foreign key " + columns[1]);
+        }
+        EM.nativeUpdate("alter table " + table + " drop primary key, add primary key (id, time)");
+        log.info("Partitioning " + table + " by month from " + first.toString(monthFormat));
+        EM.nativeUpdate("alter table " + table + " partition by range (time) (" + definitions(first, horizon()) + ")");
+    }
+
+    /**
+     * Splits pfuture so that there is a monthly partition up to db.partition.ahead months from now.
+     *
+     * @return the number of partitions added
+     */
+    public static int addFuture(String table) {
+        DateTime next = null;
+        for (Partition partition : partitions(table))
+            if (partition.getMonth() != null)
+                next = partition.getMonth().plusMonths(1);
+        if (next == null)
+            return 0;
+        DateTime horizon = horizon();
+        if (!next.isBefore(horizon))
+            return 0;
+        int added = 0;
+        for (DateTime month = next; month.isBefore(horizon); month = month.plusMonths(1))
+            added++;
+        log.info("Adding " + added + " partitions to " + table + " from " + next.toString(monthFormat));
+        EM.nativeUpdate("alter table " + table + " reorganize partition " + FUTURE + " into (" + definitions(next, horizon) + ")");
+        return added;
+    }
+
+    /** adds future partitions to every partitioned market data table, for use at startup */
+    public static void addFutureToAll() {
+        for (String table : tables) {
+            try {
+                if (isPartitioned(table))
+                    addFuture(table);
+            } catch (Exception e) {
+                log.warn("Could not add partitions to " + table, e);
+            }
+        }
+    }
+
+    /**
+     * Drops the monthly partitions before the given month, deleting their rows.
+     *
+     * @return the names of the dropped partitions
+     */
+    public static List<String> dropBefore(String table, DateTime month) {
+        List<String> dropped = new ArrayList<>();
+        for (Partition partition : before(table, month)) {
+            EM.nativeUpdate("alter table " + table + " drop partition " + partition.name);
+            dropped.add(partition.name);
+        }
+        if (!dropped.isEmpty()) {
+            MarketDataExtent.forget(dataType(table), month.toInstant());
+            log.info("Dropped partitions " + dropped + " from " + table);
+        }
+        return dropped;
+    }
+
+    /**
+     * Moves each monthly partition before the given month into its own unpartitioned table, named TABLE_pYYYYMM, and
+     * drops the emptied partition.
+     *
+     * @return the names of the archive tables
+     */
+    public static List<String> archiveBefore(String table, DateTime month) {
+        List<String> archives = new ArrayList<>();
+        for (Partition partition : before(table, month)) {
+            String archive = table + "_" + partition.name;
+            EM.nativeUpdate("create table " + archive + " like " + table);
+            EM.nativeUpdate("alter table " + archive + " remove partitioning");
+            EM.nativeUpdate("alter table " + table + " exchange partition " + partition.name + " with table " + archive);
+            EM.nativeUpdate("alter table " + table + " drop partition " + partition.name);
+            archives.add(archive);
+        }
+        if (!archives.isEmpty()) {
+            MarketDataExtent.forget(dataType(table), month.toInstant());
+            log.info("Archived " + table + " partitions to " + archives);
+        }
+        return archives;
+    }
+
+    public static DateTime parseMonth(String month) {
+        return monthFormat.parseDateTime(month);
+    }
+
+    public static class Partition {
+
+        private Partition(String table, String name, String description, long rows) {
+            this.table = table;
+            this.name = name;
+            this.description = description;
+            this.rows = rows;
+        }
+
+        /** @return the month this partition holds, or null for pfuture or an unpartitioned table */
+        public DateTime getMonth() {
+            if (name == null || FUTURE.equals(name))
+                return null;
+            return partitionNameFormat.parseDateTime(name.substring(1));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        @Override
+        public String toString() {
+            if (name == null)
+                return String.format("%s: not partitioned, about %d rows", table, rows);
+            return String.format("%s.%s: about %d rows, before %s", table, name, rows, "MAXVALUE".equals(description) ? "MAXVALUE" : new DateTime(
+                    new BigInteger(description).longValue(), DateTimeZone.UTC));
+        }
+
+        private final String table;
+        private final String name;
+        private final String description;
+        private final long rows;
+
+    }
+
+    private static List<Partition> before(String table, DateTime month) {
+        List<Partition> before = new ArrayList<>();
+        for (Partition partition : partitions(table))
+            if (partition.getMonth() != null && partition.getMonth().isBefore(month))
+                before.add(partition);
+        return before;
+    }
+
+    /** the MarketData class name for a table, as used by the market data catalogue */
+    private static String dataType(String table) {
+        return Character.toUpperCase(table.charAt(0)) + table.substring(1);
+    }
+
+    /** the first month which should not have a partition yet */
+    private static DateTime horizon() {
+        return month(System.currentTimeMillis()).plusMonths(ConfigUtil.combined().getInt("db.partition.ahead", 3) + 1);
+    }
+
+    private static DateTime month(long millis) {
+        return new DateTime(millis, DateTimeZone.UTC).withDayOfMonth(1).withTimeAtStartOfDay();
+    }
+
+    /** monthly partitions from first up to, not including, end, followed by pfuture */
+    private static String definitions(DateTime first, DateTime end) {
+        StringBuilder definitions = new StringBuilder();
+        for (DateTime month = first; month.isBefore(end); month = month.plusMonths(1))
+            definitions.append("partition p").append(month.toString(partitionNameFormat)).append(" values less than (")
+                    .append(month.plusMonths(1).getMillis()).append("), ");
+        return definitions.append("partition ").append(FUTURE).append(" values less than maxvalue").toString();
+    }
+
+    private static final String FUTURE = "pfuture";
+    private static final DateTimeFormatter monthFormat = DateTimeFormat.forPattern("yyyy-MM").withZoneUTC();
+    private static final DateTimeFormatter partitionNameFormat = DateTimeFormat.forPattern("yyyyMM").withZoneUTC();
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.persist");
+
+}
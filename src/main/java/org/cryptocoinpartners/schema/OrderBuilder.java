@@ -7,6 +7,7 @@ import org.cryptocoinpartners.enumeration.ExecutionInstruction;
 import org.cryptocoinpartners.enumeration.FillType;
 import org.cryptocoinpartners.enumeration.PositionEffect;
 import org.cryptocoinpartners.service.OrderService;
+import org.cryptocoinpartners.util.LatencyStats;
 import org.joda.time.Instant;
 
 /**
@@ -110,6 +111,7 @@ public class OrderBuilder {
             if (orderService == null)
                 throw new IllegalStateException("You must construct Order.Builder with an OrderService to use the place() method.");
             Order order = getOrder();
+            LatencyStats.decided(order);
             orderService.placeOrder(order);
             return order;
         }
@@ -22,9 +22,11 @@ import javax.persistence.ManyToOne;
 import javax.persistence.NamedAttributeNode;
 import javax.persistence.NamedEntityGraph;
 import javax.persistence.NamedEntityGraphs;
+import javax.persistence.NamedQuery;
 import javax.persistence.NamedSubgraph;
 import javax.persistence.OneToMany;
 import javax.persistence.OrderBy;
+import javax.persistence.QueryHint;
 import javax.persistence.Transient;
 
 import org.apache.commons.lang.NotImplementedException;
@@ -37,6 +39,8 @@ import org.cryptocoinpartners.service.OrderService;
 import org.cryptocoinpartners.service.PortfolioService;
 import org.cryptocoinpartners.util.EM;
 import org.cryptocoinpartners.util.Remainder;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +52,8 @@ import org.slf4j.LoggerFactory;
  */
 @Entity
 @Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "portfolio")
+@NamedQuery(name = "Portfolio.findIdByName", query = "select p.id from Portfolio p where name=?1", hints = { @QueryHint(name = "org.hibernate.cacheable", value = "true"), @QueryHint(name = "org.hibernate.cacheRegion", value = "query.portfolio") })
 //@NamedEntityGraph(name = "graph.Position.fills", attributeNodes = @NamedAttributeNode(value = "fills", subgraph = "fills"), subgraphs = @NamedSubgraph(name = "fills", attributeNodes = @NamedAttributeNode("order")))
 //@NamedEntityGraph(name = "graph.Portfolio.positions", attributeNodes = @NamedAttributeNode(value = "positions", subgraph = "positions"), subgraphs = @NamedSubgraph(name = "positions", attributeNodes = @NamedAttributeNode("portfolio")))
 //@NamedEntityGraph(name = "graph.Portfolio.positions", attributeNodes = @NamedAttributeNode("positions"))
@@ -1365,10 +1371,9 @@ public class Portfolio extends EntityBase {
     }
 
     public static Portfolio findOrCreate(String portfolioName) {
-        final String queryStr = "select p.id from Portfolio p where name=?1";
         try {
             Map hints = new HashMap();
-            UUID portfolioID = EM.queryOne(UUID.class, queryStr, portfolioName);
+            UUID portfolioID = EM.namedQueryOne(UUID.class, "Portfolio.findIdByName", portfolioName);
             hints.put("javax.persistence.fetchgraph", "graph.Portfolio.positions");
             return EM.find(Portfolio.class, portfolioID, hints);
 
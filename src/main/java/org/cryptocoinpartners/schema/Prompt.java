@@ -6,12 +6,16 @@ import javax.persistence.Basic;
 import javax.persistence.Cacheable;
 import javax.persistence.Entity;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQuery;
 import javax.persistence.NoResultException;
+import javax.persistence.QueryHint;
 import javax.persistence.Transient;
 
 import org.cryptocoinpartners.enumeration.FeeMethod;
 import org.cryptocoinpartners.schema.dao.PromptJpaDao;
 import org.cryptocoinpartners.util.EM;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import com.google.inject.Inject;
 
@@ -20,12 +24,17 @@ import com.google.inject.Inject;
  */
 @Entity
 @Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "prompt")
+@NamedQuery(name = "Prompt.findBySymbol", query = "select p from Prompt p where symbol=?1", hints = { @QueryHint(name = "org.hibernate.cacheable", value = "true"), @QueryHint(name = "org.hibernate.cacheRegion", value = "query.reference") })
 public class Prompt extends EntityBase {
     @Inject
     protected static PromptJpaDao promptDao;
 
     public static Prompt forSymbol(String symbol) {
-        return EM.queryOne(Prompt.class, "select c from Prompt c where symbol=?1", symbol);
+        Prompt prompt = ReferenceData.forSymbol(Prompt.class, symbol);
+        if (prompt != null)
+            return prompt;
+        return ReferenceData.register(EM.namedQueryOne(Prompt.class, "Prompt.findBySymbol", symbol));
     }
 
     public static List<String> allSymbols() {
@@ -162,7 +171,7 @@ public class Prompt extends EntityBase {
             final Prompt prompt = new Prompt(symbol, tickValue, tickSize, tradedCurrency, volumeBasis, margin, marginMethod, feeRate, feeMethod,
                     marginFeeMethod);
             promptDao.persist(prompt);
-            return prompt;
+            return ReferenceData.register(prompt);
         }
     }
 
@@ -218,6 +227,7 @@ public class Prompt extends EntityBase {
     @Override
     public void merge() {
         promptDao.merge(this);
+        ReferenceData.refresh(this);
 
     }
 
@@ -0,0 +1,156 @@
+package org.cryptocoinpartners.schema;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import org.cryptocoinpartners.util.EM;
+
+/**
+ * The process-wide registry of reference data: Currencies, Prompts, Exchanges, Listings and Markets.  The first lookup
+ * of a type loads every row of that type once, and after that lookups by symbol or id are served from memory.  Symbols
+ * are matched case-insensitively.  The forSymbol() and findOrCreate() methods of the entities register anything they
+ * create or load, so the registry always holds one canonical instance per row and lookups on hot paths never reach the
+ * database.  A symbol which is not registered falls back to the entity's database query, and a symbol that query
+ * does not find either is remembered as missing until something with that symbol is registered, so repeated lookups
+ * of an unknown symbol do not query again.  The entities' merge() methods call refresh(), so the registry holds the
+ * instance which was last written.
+ */
+public class ReferenceData {
+
+    /** @return the registered entity with the given symbol, or null */
+    @Nullable
+    public static <T extends EntityBase> T forSymbol(Class<T> type, String symbol) {
+        return type.cast(registry(type).bySymbol.get(symbol.toUpperCase()));
+    }
+
+    /** @return the registered entity with the given id, or null */
+    @Nullable
+    public static <T extends EntityBase> T forId(Class<T> type, UUID id) {
+        return type.cast(registry(type).byId.get(id));
+    }
+
+    /** @return every registered entity of the type */
+    public static <T extends EntityBase> Collection<T> all(Class<T> type) {
+        @SuppressWarnings("unchecked")
+        Collection<T> all = (Collection<T>) Collections.unmodifiableCollection(registry(type).byId.values());
+        return all;
+    }
+
+    /**
+     * Adds the entity to the registry.
+     *
+     * @return the canonical instance, which is the given entity unless one with the same symbol was already registered
+     */
+    public static <T extends EntityBase> T register(T entity) {
+        if (entity == null)
+            return null;
+        return type(entity).cast(registry(type(entity)).add(entity));
+    }
+
+    /**
+     * Replaces the registered instance of the entity's row with the given one, after it has been updated or merged.
+     *
+     * @return the given entity
+     */
+    public static <T extends EntityBase> T refresh(T entity) {
+        if (entity == null)
+            return null;
+        registry(type(entity)).replace(entity);
+        return entity;
+    }
+
+    /** @return true if a lookup of the symbol has already missed both the registry and the database */
+    public static boolean isMissing(Class<? extends EntityBase> type, String symbol) {
+        return registry(type).missing.contains(symbol.toUpperCase());
+    }
+
+    /** remembers that neither the registry nor the database has an entity with the symbol */
+    public static void missing(Class<? extends EntityBase> type, String symbol) {
+        Registry registry = registry(type);
+        String key = symbol.toUpperCase();
+        registry.missing.add(key);
+        // in case it was registered while we were looking
+        if (registry.bySymbol.containsKey(key))
+            registry.missing.remove(key);
+    }
+
+    /** forgets everything, so the next lookups load from the database again */
+    public static void clear() {
+        registries.clear();
+    }
+
+    private static Registry registry(Class<?> type) {
+        Registry registry = registries.get(type);
+        if (registry == null) {
+            Registry newRegistry = new Registry();
+            registry = registries.putIfAbsent(type, newRegistry);
+            if (registry == null) {
+                registry = newRegistry;
+                registry.load(type);
+            }
+        }
+        return registry;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends EntityBase> Class<T> type(T entity) {
+        for (Class<?> type : types)
+            if (type.isInstance(entity))
+                return (Class<T>) type;
+        throw new IllegalArgumentException(entity.getClass().getSimpleName() + " is not reference data");
+    }
+
+    private static String symbolOf(EntityBase entity) {
+        if (entity instanceof Asset)
+            return ((Asset) entity).getSymbol();
+        if (entity instanceof Prompt)
+            return ((Prompt) entity).getSymbol();
+        if (entity instanceof Exchange)
+            return ((Exchange) entity).getSymbol();
+        if (entity instanceof Listing)
+            return ((Listing) entity).getSymbol();
+        return ((Market) entity).getSymbol();
+    }
+
+    private static class Registry {
+
+        private void load(Class<?> type) {
+            for (Object entity : EM.queryList(type, "select x from " + type.getSimpleName() + " x"))
+                add((EntityBase) entity);
+        }
+
+        private EntityBase add(EntityBase entity) {
+            String symbol = symbolOf(entity).toUpperCase();
+            EntityBase existing = bySymbol.putIfAbsent(symbol, entity);
+            if (existing != null)
+                return existing;
+            byId.put(entity.getId(), entity);
+            missing.remove(symbol);
+            return entity;
+        }
+
+        private void replace(EntityBase entity) {
+            String symbol = symbolOf(entity).toUpperCase();
+            EntityBase previous = byId.put(entity.getId(), entity);
+            if (previous != null && previous != entity)
+                bySymbol.remove(symbolOf(previous).toUpperCase(), previous);
+            bySymbol.put(symbol, entity);
+            missing.remove(symbol);
+        }
+
+        private final ConcurrentHashMap<String, EntityBase> bySymbol = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<UUID, EntityBase> byId = new ConcurrentHashMap<>();
+        private final Set<String> missing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    }
+
+    // Currency is the only kind of Asset
+    private static final Class<?>[] types = { Currency.class, Prompt.class, Exchange.class, Listing.class, Market.class };
+    private static final ConcurrentHashMap<Class<?>, Registry> registries = new ConcurrentHashMap<>();
+
+}
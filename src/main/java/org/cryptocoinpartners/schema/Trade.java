@@ -30,7 +30,7 @@ import com.google.inject.assistedinject.AssistedInject;
 @Entity
 @Cacheable
 @Table(indexes = { @Index(columnList = "time"), @Index(columnList = "timeReceived"), @Index(columnList = "market"), @Index(columnList = "market,time"),
-        @Index(columnList = "market,remoteKey") })
+        @Index(columnList = "market,timeReceived"), @Index(columnList = "market,remoteKey") })
 public class Trade extends PriceData {
 
     @Inject
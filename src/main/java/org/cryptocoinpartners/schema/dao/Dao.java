@@ -2,11 +2,11 @@ package org.cryptocoinpartners.schema.dao;
 
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
 
 import javax.persistence.NoResultException;
 
 import org.cryptocoinpartners.schema.EntityBase;
+import org.cryptocoinpartners.util.PersistenceQueue;
 import org.cryptocoinpartners.util.Visitor;
 
 public interface Dao {
@@ -18,12 +18,16 @@ public interface Dao {
 
     void merge(EntityBase... entities);
 
-    BlockingQueue<EntityBase[]> getInsertQueue();
+    PersistenceQueue<EntityBase[]> getInsertQueue();
 
-    BlockingQueue<EntityBase[]> getMergeQueue();
+    PersistenceQueue<EntityBase[]> getMergeQueue();
 
     void persistEntities(EntityBase... entities);
 
+    void insertBatch(List<? extends EntityBase> entities);
+
+    void mergeBatch(List<? extends EntityBase> entities);
+
     void mergeEntities(EntityBase... entities);
 
     <T> T find(Class<T> resultType, UUID id);
@@ -2,8 +2,6 @@ package org.cryptocoinpartners.schema.dao;
 
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
@@ -14,6 +12,8 @@ import javax.persistence.TypedQuery;
 
 import org.cryptocoinpartners.schema.EntityBase;
 import org.cryptocoinpartners.util.ConfigUtil;
+import org.cryptocoinpartners.util.PersistenceQueue;
+import org.cryptocoinpartners.util.QueryScroller;
 import org.cryptocoinpartners.util.Visitor;
 import org.hibernate.PersistentObjectException;
 import org.hibernate.StaleObjectStateException;
@@ -31,12 +31,14 @@ import com.google.inject.persist.UnitOfWork;
 public abstract class DaoJpa implements Dao {
     protected Class entityClass;
     protected static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.persist");
-    private static final int defaultBatchSize = 20;
     private static int retry;
-    private static final BlockingQueue<EntityBase[]> insertQueue = new LinkedBlockingQueue<EntityBase[]>();
-    private static final BlockingQueue<EntityBase[]> mergeQueue = new LinkedBlockingQueue<EntityBase[]>();
+    private static final PersistenceQueue<EntityBase[]> insertQueue = PersistenceQueue.create("dao.insert");
+    private static final PersistenceQueue<EntityBase[]> mergeQueue = PersistenceQueue.create("dao.merge");
+    private static final GroupCommitter groupCommitter;
     static {
         retry = ConfigUtil.combined().getInt("db.persist.retry");
+        long groupInterval = ConfigUtil.combined().getLong("db.group.commit.interval", 0);
+        groupCommitter = groupInterval > 0 ? new GroupCommitter(groupInterval, ConfigUtil.combined().getInt("db.group.commit.size", 200)) : null;
     }
     @Inject
     protected Provider<EntityManager> entityManager;
@@ -54,7 +56,7 @@ public abstract class DaoJpa implements Dao {
     @Override
     public void queryEach(Visitor<Object[]> handler, String queryStr, Object... params) {
         try {
-            queryEach(handler, defaultBatchSize, queryStr, params);
+            queryEach(handler, ConfigUtil.combined().getInt("db.query.fetch.size", 1000), queryStr, params);
         } catch (Exception | Error ex) {
 
             log.error("Unable to perform request in " + this.getClass().getSimpleName() + ":queryEach, full stack trace follows:", ex);
@@ -65,6 +67,7 @@ public abstract class DaoJpa implements Dao {
     @Override
     @Transactional
     public void queryEach(Visitor<Object[]> handler, int batchSize, String queryStr, Object... params) {
+        GroupCommitter.enterTransaction();
         try {
             Query query = entityManager.get().createQuery(queryStr);
             if (params != null) {
@@ -73,18 +76,7 @@ public abstract class DaoJpa implements Dao {
                     query.setParameter(i + 1, param); // JPA uses 1-based indexes
                 }
             }
-            query.setMaxResults(batchSize);
-            for (int start = 0;; start += batchSize) {
-                query.setFirstResult(start);
-                List list = query.getResultList();
-                if (list.isEmpty())
-                    return;
-                for (Object row : list) {
-                    if (row.getClass().isArray() && !handler.handleItem((Object[]) row) || !row.getClass().isArray()
-                            && !handler.handleItem(new Object[] { row }))
-                        return;
-                }
-            }
+            QueryScroller.eachRow(entityManager.get(), query, batchSize, handler);
         } catch (Exception | Error ex) {
             log.error("Unable to perform request in " + this.getClass().getSimpleName() + ":queryEach, full stack trace follows:", ex);
 
@@ -93,17 +85,20 @@ public abstract class DaoJpa implements Dao {
             // log.error("Unable to perform request in " + this.getClass().getSimpleName() + ":queryEach, full stack trace follows:", ex);
             // ex.printStackTrace();
 
+        } finally {
+            GroupCommitter.leaveTransaction();
         }
     }
 
     @Override
     public <T> void queryEach(Class<T> resultType, Visitor<T> handler, String queryStr, Object... params) {
-        queryEach(resultType, handler, defaultBatchSize, queryStr, params);
+        queryEach(resultType, handler, ConfigUtil.combined().getInt("db.query.fetch.size", 1000), queryStr, params);
     }
 
     @Override
     @Transactional
     public <T> void queryEach(Class<T> resultType, Visitor<T> handler, int batchSize, String queryStr, Object... params) {
+        GroupCommitter.enterTransaction();
         try {
             TypedQuery<T> query = entityManager.get().createQuery(queryStr, resultType);
             if (params != null) {
@@ -112,22 +107,14 @@ public abstract class DaoJpa implements Dao {
                     query.setParameter(i + 1, param); // JPA uses 1-based indexes
                 }
             }
-            query.setMaxResults(batchSize);
-            for (int start = 0;; start += batchSize) {
-                query.setFirstResult(start);
-                List<T> list = query.getResultList();
-                if (list.isEmpty())
-                    return;
-                for (T row : list) {
-                    if (!handler.handleItem(row))
-                        return;
-                }
-            }
+            QueryScroller.each(entityManager.get(), query, resultType, batchSize, handler);
         } catch (Exception | Error ex) {
 
             log.error("Unable to perform request in " + this.getClass().getSimpleName() + ":queryEach, full stack trace follows:", ex);
             throw ex;
 
+        } finally {
+            GroupCommitter.leaveTransaction();
         }
     }
 
@@ -297,6 +284,10 @@ public abstract class DaoJpa implements Dao {
     //  @Inject
     @Override
     public void persist(EntityBase... entities) {
+        if (isGrouped()) {
+            groupCommitter.submit(this, false, entities);
+            return;
+        }
         int attempt = 0;
         // EntityManager em = entityManager.get();
         // thisEntity=EntityBase
@@ -409,17 +400,19 @@ public abstract class DaoJpa implements Dao {
 
     @Override
     public void persistEntities(EntityBase... entities) {
+        insertQueue.put(entities);
+    }
 
-        try {
-            insertQueue.put(entities);
-        } catch (InterruptedException e) {
-            log.error("Unable to resubmit insert request in " + this.getClass().getSimpleName() + "insert, full stack trace follows:", e);
-            e.printStackTrace();
-
-        } finally {
-
-        }
-
+    /** puts a failed queued request back after a backoff, until it has failed db.persist.retry times */
+    private void resubmit(PersistenceQueue<EntityBase[]> queue, EntityBase[] entities, Throwable cause) {
+        EntityBase first = entities[0];
+        if (first.getRetryCount() < retry) {
+            for (EntityBase entity : entities)
+                entity.incermentRetryCount();
+            queue.retry(entities, first.getRetryCount());
+        } else
+            log.error("Unable to save " + first.getClass().getSimpleName() + ": " + first.getId() + " after " + first.getRetryCount() + " attempts.",
+                    cause);
     }
 
     public class persistRunnable implements Runnable {
@@ -429,7 +422,11 @@ public abstract class DaoJpa implements Dao {
             while (true) {
                 try {
                     EntityBase[] entities = insertQueue.take();
-                    persistEntities(entities);
+                    try {
+                        persist(entities);
+                    } catch (Exception | Error e) {
+                        resubmit(insertQueue, entities, e);
+                    }
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     return; // supposing there is no cleanup or other stuff to be done
@@ -452,7 +449,11 @@ public abstract class DaoJpa implements Dao {
             while (true) {
                 try {
                     EntityBase[] entities = mergeQueue.take();
-                    mergeEntities(entities);
+                    try {
+                        merge(entities);
+                    } catch (Exception | Error e) {
+                        resubmit(mergeQueue, entities, e);
+                    }
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     return; // supposing there is no cleanup or other stuff to be done
@@ -474,40 +475,116 @@ public abstract class DaoJpa implements Dao {
     //cascade = { CascadeType.ALL })
     // @JoinColumn(name = "position")
     @Override
-    public BlockingQueue<EntityBase[]> getInsertQueue() {
+    public PersistenceQueue<EntityBase[]> getInsertQueue() {
 
         return insertQueue;
     }
 
     @Override
-    public BlockingQueue<EntityBase[]> getMergeQueue() {
+    public PersistenceQueue<EntityBase[]> getMergeQueue() {
 
         return mergeQueue;
     }
 
     @Override
     public void mergeEntities(EntityBase... entities) {
+        mergeQueue.put(entities);
 
+    }
+
+    /**
+     * Inserts all the entities in one transaction, flushing and clearing the session every db.jdbc.batch.size
+     * entities so the inserts reach the database as JDBC batches and the persistence context stays small.  If any
+     * insert fails the whole batch is rolled back and the exception is thrown to the caller.
+     */
+    @Override
+    @Transactional
+    public void insertBatch(List<? extends EntityBase> entities) {
+        EntityManager em = entityManager.get();
+        GroupCommitter.enterTransaction();
         try {
-            mergeQueue.put(entities);
-        } catch (InterruptedException e) {
-            log.error("Unable to resubmit merge request in " + this.getClass().getSimpleName() + " merge, full stack trace follows:", e);
-            e.printStackTrace();
+            int jdbcBatchSize = ConfigUtil.combined().getInt("db.jdbc.batch.size", 50);
+            int count = 0;
+            for (EntityBase entity : entities) {
+                em.persist(entity);
+                if (++count % jdbcBatchSize == 0) {
+                    em.flush();
+                    em.clear();
+                }
+            }
+            em.flush();
+            em.clear();
+        } finally {
+            GroupCommitter.leaveTransaction();
+        }
+    }
 
+    /**
+     * Merges all the entities in one transaction, flushing and clearing the session every db.jdbc.batch.size
+     * entities.  If any merge fails the whole batch is rolled back and the exception is thrown to the caller.
+     */
+    @Override
+    @Transactional
+    public void mergeBatch(List<? extends EntityBase> entities) {
+        EntityManager em = entityManager.get();
+        GroupCommitter.enterTransaction();
+        try {
+            int jdbcBatchSize = ConfigUtil.combined().getInt("db.jdbc.batch.size", 50);
+            int count = 0;
+            for (EntityBase entity : entities) {
+                em.merge(entity);
+                if (++count % jdbcBatchSize == 0) {
+                    em.flush();
+                    em.clear();
+                }
+            }
+            em.flush();
         } finally {
+            GroupCommitter.leaveTransaction();
+        }
+    }
 
+    /** writes the requests gathered by the GroupCommitter in one transaction */
+    @Transactional
+    public void commitGroup(List<GroupCommitter.Request> group) {
+        EntityManager em = entityManager.get();
+        try {
+            for (GroupCommitter.Request request : group)
+                for (EntityBase entity : request.entities) {
+                    if (request.merge)
+                        em.merge(entity);
+                    else
+                        em.persist(entity);
+                }
+            em.flush();
+        } catch (Exception | Error e) {
+            // the requests are retried one by one in this session, so forget the half written group
+            em.clear();
+            throw e;
         }
+    }
 
+    /**
+     * Requests are grouped when db.group.commit.interval is set, except on the committer itself and inside a DaoJpa
+     * transaction, e.g. from a JPA callback or a queryEach visitor, which must see its own writes.  This is decided
+     * from GroupCommitter's thread-local flag rather than the EntityManager, since asking the EntityManager provider
+     * on a thread with no unit of work would start one which nothing ends.
+     */
+    private boolean isGrouped() {
+        return groupCommitter != null && !GroupCommitter.isDirect();
     }
 
     @Transactional
     public void insert(EntityBase entity) {
+        GroupCommitter.enterTransaction();
         try {
             entityManager.get().persist(entity);
         } catch (Error | Exception ex) {
             //   log.error("Unable to perform request in " + this.getClass().getSimpleName() + ":getReference, full stack trace follows:", ex);
 
             throw ex;
+        } finally {
+            GroupCommitter.leaveTransaction();
         }
 
         // entityManager.get().getTransaction().commit();
@@ -519,7 +596,12 @@ public abstract class DaoJpa implements Dao {
     @Transactional
     public void update(EntityBase entity) {
         //  try {
-        entityManager.get().merge(entity);
+        GroupCommitter.enterTransaction();
+        try {
+            entityManager.get().merge(entity);
+        } finally {
+            GroupCommitter.leaveTransaction();
+        }
         //} catch (Error | Exception ex) {
         //  throw ex;
         // }
@@ -548,6 +630,10 @@ public abstract class DaoJpa implements Dao {
     // @Inject
     @Override
     public void merge(EntityBase... entities) {
+        if (isGrouped()) {
+            groupCommitter.submit(this, true, entities);
+            return;
+        }
         //  unitOfWork.end();
         //        try {
         //            unitOfWork.begin();
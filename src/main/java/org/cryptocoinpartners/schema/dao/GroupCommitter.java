@@ -0,0 +1,155 @@
+package org.cryptocoinpartners.schema.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.PersistenceException;
+
+import org.cryptocoinpartners.schema.EntityBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces persist and merge requests from many threads into shared transactions.  A request waits on the
+ * committer thread, which gathers whatever other requests arrive within the group interval (up to maxGroupSize) and
+ * writes them all with DaoJpa.commitGroup() in one transaction.  If the shared transaction fails, each request is
+ * written again in its own transaction so that one bad entity only fails its own caller.  Callers block until their
+ * request has been committed and see the same exceptions as an ungrouped persist or merge.
+ */
+class GroupCommitter {
+
+    /**
+     * true on the committer thread and inside a DaoJpa transaction, where requests must be written directly rather
+     * than queued
+     */
+    static boolean isDirect() {
+        return depth.get()[0] > 0;
+    }
+
+    /** marks the calling thread as inside a DaoJpa transaction until the matching leaveTransaction() */
+    static void enterTransaction() {
+        depth.get()[0]++;
+    }
+
+    static void leaveTransaction() {
+        depth.get()[0]--;
+    }
+
+    GroupCommitter(long interval, int maxGroupSize) {
+        this.interval = interval;
+        this.maxGroupSize = Math.max(1, maxGroupSize);
+        Thread thread = new Thread(new CommitterRunnable(), "group committer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void submit(DaoJpa dao, boolean merge, EntityBase... entities) {
+        Request request = new Request(dao, merge, entities);
+        queue.add(request);
+        try {
+            request.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted waiting for group commit", e);
+        }
+        if (request.failure instanceof RuntimeException)
+            throw (RuntimeException) request.failure;
+        if (request.failure instanceof Error)
+            throw (Error) request.failure;
+        if (request.failure != null)
+            throw new PersistenceException(request.failure);
+    }
+
+    private List<Request> nextGroup() throws InterruptedException {
+        List<Request> group = new ArrayList<>();
+        group.add(queue.take());
+        long deadline = System.currentTimeMillis() + interval;
+        while (group.size() < maxGroupSize) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                break;
+            Request next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+            if (next == null)
+                break;
+            group.add(next);
+        }
+        queue.drainTo(group, maxGroupSize - group.size());
+        return group;
+    }
+
+    private void commit(List<Request> group) {
+        if (group.size() > 1) {
+            try {
+                group.get(0).dao.commitGroup(group);
+                for (Request request : group)
+                    request.done.countDown();
+                log.trace("group committed " + group.size() + " requests");
+                return;
+            } catch (Exception | Error e) {
+                log.debug("group commit of " + group.size() + " requests failed, committing individually", e);
+            }
+        }
+        for (Request request : group) {
+            try {
+                if (request.merge)
+                    request.dao.merge(request.entities);
+                else
+                    request.dao.persist(request.entities);
+            } catch (Exception | Error e) {
+                request.failure = e;
+            }
+            request.done.countDown();
+        }
+    }
+
+    static class Request {
+
+        private Request(DaoJpa dao, boolean merge, EntityBase[] entities) {
+            this.dao = dao;
+            this.merge = merge;
+            this.entities = entities;
+        }
+
+        final DaoJpa dao;
+        final boolean merge;
+        final EntityBase[] entities;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable failure;
+
+    }
+
+    private class CommitterRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            enterTransaction();
+            while (true) {
+                try {
+                    commit(nextGroup());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+    }
+
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.persist");
+    // how many DaoJpa transactions the thread is inside; the committer thread counts as always inside one
+    private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private final long interval;
+    private final int maxGroupSize;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+}
@@ -0,0 +1,169 @@
+package org.cryptocoinpartners.schema.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.cryptocoinpartners.schema.MarketData;
+import org.cryptocoinpartners.schema.MarketDataExtent;
+import org.cryptocoinpartners.util.PersistenceQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes one type of MarketData in batches.  Rows handed to add() are queued on the PersistenceQueue
+ * marketdata.NAME, and each writer thread takes up to batchSize rows, or whatever has arrived within maxDelay
+ * milliseconds of the first one, and inserts them with Dao.insertBatch() in a single transaction.  If a batch fails it is retried row by row through the entity's own
+ * persit(), so one bad row only costs its own insert.
+ * <p>
+ * Subclasses may override isDuplicate() to skip rows which are already in the database and prepare() to transform a
+ * row before it is written.
+ */
+public class MarketDataBatchWriter<T extends MarketData> {
+
+    public MarketDataBatchWriter(String name, Dao dao, int threads, int batchSize, long maxDelay) {
+        this.name = name;
+        this.dao = dao;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxDelay = maxDelay;
+        this.queue = PersistenceQueue.create("marketdata." + name);
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread thread = new Thread(new WriterRunnable(), name + " writer " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void add(T data) {
+        queue.put(data);
+    }
+
+    /** rows queued but not yet taken by a writer thread */
+    public long getQueueSize() {
+        return queue.getDepth();
+    }
+
+    /** @return the row to write, or null to drop this row */
+    protected T prepare(T data) {
+        return data;
+    }
+
+    protected boolean isDuplicate(T data) {
+        return false;
+    }
+
+    /**
+     * called for a row which isDuplicate() passed, or which failed in isDuplicate() or prepare(), but which was not
+     * written, so that any claim isDuplicate() made on it can be taken back
+     */
+    protected void unwritten(T data) {
+    }
+
+    private List<T> nextBatch() throws InterruptedException {
+        List<T> batch = new ArrayList<>(batchSize);
+        batch.add(queue.take());
+        long deadline = System.currentTimeMillis() + maxDelay;
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.currentTimeMillis();
+            if (batch.size() >= batchSize || remaining <= 0)
+                break;
+            T next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+            if (next == null)
+                break;
+            batch.add(next);
+        }
+        return batch;
+    }
+
+    /**
+     * Writes the rows in the calling thread.
+     *
+     * @return true if every row which was not a duplicate was written
+     */
+    public boolean write(List<T> batch) {
+        List<T> sources = new ArrayList<>(batch.size());
+        List<T> rows = new ArrayList<>(batch.size());
+        T current = null;
+        try {
+            for (T data : batch) {
+                current = data;
+                if (isDuplicate(data))
+                    continue;
+                T row = prepare(data);
+                if (row == null) {
+                    unwritten(data);
+                    continue;
+                }
+                sources.add(data);
+                rows.add(row);
+            }
+        } catch (Exception | Error e) {
+            // nothing from this batch will be written, so take back the claims made so far
+            for (T data : sources)
+                unwritten(data);
+            if (current != null && !sources.contains(current))
+                unwritten(current);
+            throw e;
+        }
+        if (rows.isEmpty())
+            return true;
+        boolean complete = true;
+        Lock recording = MarketDataExtent.recording();
+        recording.lock();
+        try {
+            try {
+                dao.insertBatch(rows);
+                log.trace(name + " wrote batch of " + rows.size());
+            } catch (Exception | Error e) {
+                log.warn(name + " batch of " + rows.size() + " failed, writing rows individually", e);
+                List<T> written = new ArrayList<>(rows.size());
+                for (int i = 0; i < rows.size(); i++) {
+                    T row = rows.get(i);
+                    try {
+                        row.persit();
+                        written.add(row);
+                    } catch (Exception | Error ex) {
+                        log.error(name + " unable to write " + row, ex);
+                        unwritten(sources.get(i));
+                        complete = false;
+                    }
+                }
+                rows = written;
+            }
+            for (T row : rows)
+                MarketDataExtent.record(row);
+        } finally {
+            recording.unlock();
+        }
+        return complete;
+    }
+
+    private class WriterRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    write(nextBatch());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception | Error e) {
+                    log.error(name + " writer failed", e);
+                }
+            }
+        }
+
+    }
+
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.persist");
+
+    private final String name;
+    private final Dao dao;
+    private final int batchSize;
+    private final long maxDelay;
+    private final PersistenceQueue<T> queue;
+
+}
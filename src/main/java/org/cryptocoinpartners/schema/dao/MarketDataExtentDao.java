@@ -0,0 +1,6 @@
+package org.cryptocoinpartners.schema.dao;
+
+
+public interface MarketDataExtentDao extends Dao {
+
+}
@@ -0,0 +1,6 @@
+package org.cryptocoinpartners.schema.dao;
+
+
+public class MarketDataExtentJpaDao extends DaoJpa implements MarketDataExtentDao {
+
+}
@@ -81,6 +81,18 @@ public interface OrderService {
 
     void cancelOrder(Order order);
 
+    /**
+     * Cancels the open orders among those given in one batch: the affected orders are pulled from their markets in as
+     * few requests as the venue allows, and their state changes are applied in one pass and persisted in one transaction.
+     *
+     * @return the orders which were cancelled at once.  Working orders on an asynchronous venue are confirmed later by
+     *         OrderUpdates.
+     */
+    Collection<Order> cancelOrders(Collection<? extends Order> orders);
+
+    /** cancels the orders as cancelOrders() does, then places the replacements */
+    Collection<Order> cancelReplaceOrders(Collection<? extends Order> orders, Collection<? extends Order> replacements);
+
     Collection<SpecificOrder> getPendingOrders();
 
     void handleCancelAllOpeningSpecificOrders(Portfolio portfolio, Market market);
@@ -0,0 +1,28 @@
+package org.cryptocoinpartners.util;
+
+/**
+ Constants for the binary event file format read by BinaryEventSource and written by BinaryEventWriter.  A file is a
+ header (MAGIC, VERSION, boolean orderByTimeReceived) followed by records, each starting with one of the record kinds below.  Markets are written
+ once, as a MARKET record giving the id used by the Trade and Book records which follow.  All prices and volumes are
+ stored as counts of the market's price and volume basis.  orderByTimeReceived records whether the records are in
+ order of timeReceived or of time.
+ <pre>
+ MARKET: int id, UTF exchange symbol, UTF listing symbol
+ TRADE:  int market id, long time, long timeReceived, boolean hasRemoteKey, [UTF remoteKey], long priceCount, long volumeCount
+ BOOK:   int market id, long time, long timeReceived, boolean hasRemoteKey, [UTF remoteKey],
+         int bid count, (long priceCount, long volumeCount)*, int ask count, (long priceCount, long volumeCount)*
+ </pre>
+ */
+class BinaryEventFile {
+
+    static final int MAGIC = 0x43544556; // "CTEV"
+    static final int VERSION = 2;
+
+    static final byte MARKET = 1;
+    static final byte TRADE = 2;
+    static final byte BOOK = 3;
+
+    private BinaryEventFile() {
+    }
+
+}
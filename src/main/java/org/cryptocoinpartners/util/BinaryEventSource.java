@@ -0,0 +1,153 @@
+package org.cryptocoinpartners.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.BookFactory;
+import org.cryptocoinpartners.schema.DiscreteAmount;
+import org.cryptocoinpartners.schema.Exchange;
+import org.cryptocoinpartners.schema.Listing;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.RemoteEvent;
+import org.cryptocoinpartners.schema.TradeFactory;
+import org.joda.time.Instant;
+
+/**
+ Reads Trades and Books from a binary event file written by BinaryEventWriter.  This is much faster than querying the
+ database, and lets heavy backtests run from a copy of the data instead of the production database.  seek() scans
+ forward from the start of the file, comparing timeReceived or time according to the order the file was written in.
+ @see BinaryEventFile
+ */
+public class BinaryEventSource implements EventSource {
+
+    public BinaryEventSource(String filename, TradeFactory tradeFactory, BookFactory bookFactory) throws IOException {
+        this.filename = filename;
+        this.tradeFactory = tradeFactory;
+        this.bookFactory = bookFactory;
+        open();
+    }
+
+    @Override
+    public void seek(Instant time) {
+        try {
+            close();
+            open();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not reopen " + filename, e);
+        }
+        while (hasNext() && (orderByTimeReceived ? nextEvent.getTimeReceived() : nextEvent.getTime()).isBefore(time))
+            nextEvent = null;
+    }
+
+    /** @return true if the events are in order of timeReceived, false if they are in order of time */
+    public boolean isOrderedByTimeReceived() {
+        return orderByTimeReceived;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextEvent == null)
+            nextEvent = readEvent();
+        return nextEvent != null;
+    }
+
+    @Override
+    public RemoteEvent next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        RemoteEvent event = nextEvent;
+        nextEvent = null;
+        return event;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void release(RemoteEvent event) {
+    }
+
+    @Override
+    public void close() throws IOException {
+        nextEvent = null;
+        if (in != null)
+            in.close();
+        in = null;
+    }
+
+    private void open() throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+        if (in.readInt() != BinaryEventFile.MAGIC)
+            throw new IOException(filename + " is not a binary event file");
+        int version = in.readInt();
+        if (version != BinaryEventFile.VERSION)
+            throw new IOException(filename + " has unsupported version " + version);
+        orderByTimeReceived = in.readBoolean();
+    }
+
+    private RemoteEvent readEvent() {
+        if (in == null)
+            return null;
+        try {
+            while (true) {
+                byte kind;
+                try {
+                    kind = in.readByte();
+                } catch (EOFException e) {
+                    return null;
+                }
+                switch (kind) {
+                    case BinaryEventFile.MARKET:
+                        int id = in.readInt();
+                        Exchange exchange = Exchange.forSymbolOrCreate(in.readUTF());
+                        Listing listing = Listing.forSymbol(in.readUTF());
+                        markets.put(id, Market.findOrCreate(exchange, listing));
+                        break;
+                    case BinaryEventFile.TRADE: {
+                        Market market = markets.get(in.readInt());
+                        Instant time = new Instant(in.readLong());
+                        Instant timeReceived = new Instant(in.readLong());
+                        String remoteKey = in.readBoolean() ? in.readUTF() : null;
+                        return tradeFactory.create(market, time, timeReceived, remoteKey, in.readLong(), in.readLong());
+                    }
+                    case BinaryEventFile.BOOK: {
+                        Market market = markets.get(in.readInt());
+                        Instant time = new Instant(in.readLong());
+                        Instant timeReceived = new Instant(in.readLong());
+                        String remoteKey = in.readBoolean() ? in.readUTF() : null;
+                        Book book = bookFactory.create(time, timeReceived, remoteKey, market);
+                        for (int i = in.readInt(); i > 0; i--)
+                            book.addBid(new DiscreteAmount(in.readLong(), market.getPriceBasis()).asBigDecimal(),
+                                    new DiscreteAmount(in.readLong(), market.getVolumeBasis()).asBigDecimal());
+                        for (int i = in.readInt(); i > 0; i--)
+                            book.addAsk(new DiscreteAmount(in.readLong(), market.getPriceBasis()).asBigDecimal(),
+                                    new DiscreteAmount(in.readLong(), market.getVolumeBasis()).asBigDecimal());
+                        return book.build();
+                    }
+                    default:
+                        throw new IOException("Unknown record type " + kind + " in " + filename);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + filename, e);
+        }
+    }
+
+    private final String filename;
+    private final TradeFactory tradeFactory;
+    private final BookFactory bookFactory;
+    private final Map<Integer, Market> markets = new HashMap<>();
+    private DataInputStream in;
+    private boolean orderByTimeReceived;
+    private RemoteEvent nextEvent;
+
+}
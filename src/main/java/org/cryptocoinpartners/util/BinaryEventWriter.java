@@ -0,0 +1,93 @@
+package org.cryptocoinpartners.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Offer;
+import org.cryptocoinpartners.schema.RemoteEvent;
+import org.cryptocoinpartners.schema.Trade;
+
+/**
+ Writes Trades and Books to a binary event file which can be replayed with BinaryEventSource.  Events are written in
+ the order they are given, so write them in order of timeReceived or of time, as given to the constructor.
+ @see BinaryEventFile
+ */
+public class BinaryEventWriter implements Closeable {
+
+    public BinaryEventWriter(String filename, boolean orderByTimeReceived) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+        out.writeInt(BinaryEventFile.MAGIC);
+        out.writeInt(BinaryEventFile.VERSION);
+        out.writeBoolean(orderByTimeReceived);
+    }
+
+    /** @return true if the event was written, false if it is not a Trade or a Book */
+    public boolean write(RemoteEvent event) throws IOException {
+        if (event instanceof Trade) {
+            Trade trade = (Trade) event;
+            int marketId = marketId(trade.getMarket());
+            out.writeByte(BinaryEventFile.TRADE);
+            writeHeader(marketId, event);
+            out.writeLong(trade.getPrice().getCount());
+            out.writeLong(trade.getVolume().getCount());
+            return true;
+        }
+        if (event instanceof Book) {
+            Book book = (Book) event;
+            int marketId = marketId(book.getMarket());
+            out.writeByte(BinaryEventFile.BOOK);
+            writeHeader(marketId, event);
+            writeOffers(book.getBids());
+            writeOffers(book.getAsks());
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private int marketId(Market market) throws IOException {
+        Integer id = marketIds.get(market);
+        if (id == null) {
+            id = marketIds.size();
+            marketIds.put(market, id);
+            out.writeByte(BinaryEventFile.MARKET);
+            out.writeInt(id);
+            out.writeUTF(market.getExchange().getSymbol());
+            out.writeUTF(market.getListing().getSymbol());
+        }
+        return id;
+    }
+
+    private void writeHeader(int marketId, RemoteEvent event) throws IOException {
+        out.writeInt(marketId);
+        out.writeLong(event.getTime().getMillis());
+        out.writeLong(event.getTimeReceived().getMillis());
+        out.writeBoolean(event.getRemoteKey() != null);
+        if (event.getRemoteKey() != null)
+            out.writeUTF(event.getRemoteKey());
+    }
+
+    private void writeOffers(List<Offer> offers) throws IOException {
+        out.writeInt(offers.size());
+        for (Offer offer : offers) {
+            out.writeLong(offer.getPrice().getCount());
+            out.writeLong(offer.getVolume().getCount());
+        }
+    }
+
+    private final DataOutputStream out;
+    private final Map<Market, Integer> marketIds = new HashMap<>();
+
+}
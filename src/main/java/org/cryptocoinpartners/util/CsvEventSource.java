@@ -0,0 +1,136 @@
+package org.cryptocoinpartners.util;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.BookFactory;
+import org.cryptocoinpartners.schema.Exchange;
+import org.cryptocoinpartners.schema.Listing;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.RemoteEvent;
+import org.cryptocoinpartners.schema.Trade;
+import org.cryptocoinpartners.schema.TradeFactory;
+import org.joda.time.Instant;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ Reads ticks from a CSV file with the columns listing, exchange, base, quote, prompt, time, last, vol, bidprice1,
+ bidvol1, askprice1, askvol1, where time is in epoch milliseconds.  Every row produces a Book with the top of the book
+ followed by a Trade at the last price.  The rows must already be in time order.
+ */
+public class CsvEventSource implements EventSource {
+
+    public CsvEventSource(String filename, TradeFactory tradeFactory, BookFactory bookFactory) throws IOException {
+        this.filename = filename;
+        this.tradeFactory = tradeFactory;
+        this.bookFactory = bookFactory;
+        open();
+    }
+
+    @Override
+    public void seek(Instant time) {
+        try {
+            close();
+            open();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not reopen " + filename, e);
+        }
+        while (hasNext() && pending.peekFirst().getTime().isBefore(time))
+            pending.removeFirst();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (pending.isEmpty())
+            readRow();
+        return !pending.isEmpty();
+    }
+
+    @Override
+    public RemoteEvent next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return pending.removeFirst();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void release(RemoteEvent event) {
+    }
+
+    @Override
+    public void close() throws IOException {
+        pending.clear();
+        if (reader != null)
+            reader.close();
+        reader = null;
+    }
+
+    private void open() throws IOException {
+        reader = new CSVReader(new FileReader(filename), ',', '\"', 1);
+    }
+
+    private void readRow() {
+        if (reader == null)
+            return;
+        String[] row;
+        try {
+            row = reader.readNext();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + filename, e);
+        }
+        if (row == null)
+            return;
+        if (market == null || !isMarket(market, row))
+            market = marketFor(row);
+        Book book = bookFor(row, market, bookFactory).build();
+        pending.addLast(book);
+        pending.addLast(tradeFor(row, market, tradeFactory));
+    }
+
+    static boolean isMarket(Market market, String[] row) {
+        return market.getExchange().getSymbol().equals(row[1]) && market.getListing().getSymbol().equals(listingSymbol(row));
+    }
+
+    static Market marketFor(String[] row) {
+        return Market.findOrCreate(Exchange.forSymbolOrCreate(row[1]), Listing.forSymbol(listingSymbol(row)));
+    }
+
+    /** @return the row's Book, which has not been built yet */
+    static Book bookFor(String[] row, Market market, BookFactory bookFactory) {
+        Instant time = new Instant(Long.parseLong(row[5]));
+        Book book = bookFactory.create(time, time, row[5], market);
+        if (row.length > 11) {
+            book.addBid(new BigDecimal(row[8]), new BigDecimal(row[9]));
+            book.addAsk(new BigDecimal(row[10]), new BigDecimal(row[11]));
+        }
+        return book;
+    }
+
+    static Trade tradeFor(String[] row, Market market, TradeFactory tradeFactory) {
+        Instant time = new Instant(Long.parseLong(row[5]));
+        return tradeFactory.fromDoubles(market, time, time, row[5], Double.parseDouble(row[6]), Double.parseDouble(row[7]));
+    }
+
+    private static String listingSymbol(String[] row) {
+        return row[4].isEmpty() ? row[2] + "." + row[3] : row[2] + "." + row[3] + "." + row[4];
+    }
+
+    private final String filename;
+    private final TradeFactory tradeFactory;
+    private final BookFactory bookFactory;
+    private final Deque<RemoteEvent> pending = new ArrayDeque<>();
+    private CSVReader reader;
+    private Market market;
+
+}
@@ -11,10 +11,14 @@ import javax.persistence.EntityGraph;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.OptimisticLockException;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 
 import org.cryptocoinpartners.schema.EntityBase;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.TransientObjectException;
+import org.hibernate.stat.Statistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,7 +40,6 @@ public class EM {
     @Inject
     // @PersistenceContext
     static Provider<EntityManager> entityManagerProvider;
-    private static final int defaultBatchSize = 20;
     protected static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.staticEntityManager");
     @Inject
     protected static UnitOfWork unitOfWork;
@@ -54,6 +57,16 @@ public class EM {
         }
     }
 
+    /** a session without a persistence context or JPA callbacks for bulk inserts.  The caller must close it. */
+    public static StatelessSession openStatelessSession() {
+        return getEnityManager().getEntityManagerFactory().unwrap(SessionFactory.class).openStatelessSession();
+    }
+
+    /** second-level and query cache counts, which are collected while db.cache.statistics is true */
+    public static Statistics getStatistics() {
+        return getEnityManager().getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    }
+
     // @Transactional
     public static <T> T namedQueryZeroOne(Class<T> resultType, String namedQuery, Object... params) {
         try {
@@ -344,6 +357,45 @@ public class EM {
         }
     }
 
+    /** runs a native SQL query, returning a List of Object[] rows, or of values when a single column is selected */
+    public static List<?> nativeQueryList(String sql, Object... params) {
+        try {
+            beginUnitOfWork();
+            Query query = em().createNativeQuery(sql);
+            if (params != null) {
+                for (int i = 0; i < params.length; i++)
+                    query.setParameter(i + 1, params[i]);
+            }
+            return query.getResultList();
+        } finally {
+            unitOfWork.end();
+        }
+    }
+
+    /** runs a native SQL statement, such as DDL, in its own transaction */
+    public static int nativeUpdate(String sql, Object... params) {
+        try {
+            beginUnitOfWork();
+            EntityManager em = em();
+            em.getTransaction().begin();
+            try {
+                Query query = em.createNativeQuery(sql);
+                if (params != null) {
+                    for (int i = 0; i < params.length; i++)
+                        query.setParameter(i + 1, params[i]);
+                }
+                int count = query.executeUpdate();
+                em.getTransaction().commit();
+                return count;
+            } finally {
+                if (em.getTransaction().isActive())
+                    em.getTransaction().rollback();
+            }
+        } finally {
+            unitOfWork.end();
+        }
+    }
+
     public static <T> List<T> queryList(Class<T> resultType, String queryStr, Map<String, String> properties, Object... params) {
         //  EntityManager em = em();
         try {
@@ -509,7 +561,7 @@ public class EM {
 
     //   @Transactional
     public static <T> void queryEach(Class<T> resultType, Visitor<T> handler, String queryStr, Object... params) {
-        queryEach(resultType, handler, defaultBatchSize, queryStr, params);
+        queryEach(resultType, handler, ConfigUtil.combined().getInt("db.query.fetch.size", 1000), queryStr, params);
     }
 
     // @Transactional
@@ -562,17 +614,7 @@ public class EM {
                     query.setParameter(i + 1, param); // JPA uses 1-based indexes
                 }
             }
-            query.setMaxResults(batchSize);
-            for (int start = 0;; start += batchSize) {
-                query.setFirstResult(start);
-                final List<T> list = query.getResultList();
-                if (list.isEmpty())
-                    return;
-                for (T row : list) {
-                    if (!handler.handleItem(row))
-                        return;
-                }
-            }
+            QueryScroller.each(em(), query, resultType, batchSize, handler);
         } finally {
             unitOfWork.end();
             // if (em() != null)
@@ -0,0 +1,22 @@
+package org.cryptocoinpartners.util;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import org.cryptocoinpartners.schema.RemoteEvent;
+import org.joda.time.Instant;
+
+/**
+ An EventSource supplies RemoteEvents in time order, either by time or by timeReceived depending on how the source was
+ created.  Replay reads all of its events through an EventSource, so the same time management, read-ahead and metrics
+ apply whether the events come from the database, a CSV file or a binary event file.
+ */
+public interface EventSource extends Iterator<RemoteEvent>, Closeable {
+
+    /** Positions the source so the next event returned by next() is the first one at or after the given time */
+    void seek(Instant time);
+
+    /** Called once an event returned by next() has been published, so the source may release any resources it holds */
+    void release(RemoteEvent event);
+
+}
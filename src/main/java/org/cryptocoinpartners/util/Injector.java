@@ -105,6 +105,11 @@ public class Injector {
         properties.put("hibernate.connection.password", ConfigUtil.combined().getString("db.password"));
         properties.put("hibernate.ejb.naming_strategy", "org.hibernate.cfg.ImprovedNamingStrategy");
 
+        // let batched inserts of market data go to the database as JDBC batches
+        properties.put("hibernate.jdbc.batch_size", ConfigUtil.combined().getString("db.jdbc.batch.size", "50"));
+        properties.put("hibernate.order_inserts", "true");
+        properties.put("hibernate.jdbc.batch_versioned_data", "true");
+
         properties.put("hibernate.connection.autocommit", "true");
         properties.put("org.hibernate.flushMode", "COMMIT");
         properties.put("hibernate.connection.release_mode", "auto");
@@ -116,6 +121,8 @@ public class Injector {
         properties.put("hibernate.cache.use_query_cache", "true");
         properties.put("hibernate.cache.use_structured_entries ", "true");
         properties.put("net.sf.ehcache.configurationResourceName", "META-INF/ehcache.xml");
+        // hit and miss counts for the cache console command
+        properties.put("hibernate.generate_statistics", ConfigUtil.combined().getString("db.cache.statistics", "false"));
 
         properties.put("hibernate.c3p0.min_size", "10");
         properties.put("hibernate.c3p0.max_size", ConfigUtil.combined().getString("db.pool.size"));
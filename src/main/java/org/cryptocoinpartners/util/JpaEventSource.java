@@ -0,0 +1,145 @@
+package org.cryptocoinpartners.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.RemoteEvent;
+import org.cryptocoinpartners.schema.Trade;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+/**
+ Reads Trades and Books from the database one time window at a time.  Up to readerThreads windows ahead of the one
+ being consumed are queried in parallel, and each window is sorted by time (or timeReceived) before it is returned.
+ */
+public class JpaEventSource implements EventSource {
+
+    public JpaEventSource(boolean orderByTimeReceived, Collection<Market> markets, boolean trades, boolean books, Instant end, int readerThreads) {
+        this.orderByTimeReceived = orderByTimeReceived;
+        this.markets = new ArrayList<>(markets);
+        this.trades = trades;
+        this.books = books;
+        this.end = end;
+        this.readerThreads = Math.max(1, readerThreads);
+        this.service = Executors.newFixedThreadPool(this.readerThreads);
+    }
+
+    @Override
+    public void seek(Instant time) {
+        for (Future<List<RemoteEvent>> window : windows)
+            window.cancel(true);
+        windows.clear();
+        current = Collections.<RemoteEvent> emptyList().iterator();
+        nextWindowStart = time.isAfter(end) ? null : time;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            fillWindows();
+            if (windows.isEmpty())
+                return false;
+            try {
+                current = windows.removeFirst().get().iterator();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Could not read market data from the database", e.getCause());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public RemoteEvent next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void release(RemoteEvent event) {
+        EM.detach(event);
+    }
+
+    @Override
+    public void close() {
+        service.shutdownNow();
+    }
+
+    private void fillWindows() {
+        while (windows.size() < readerThreads && nextWindowStart != null) {
+            final Instant windowStart = nextWindowStart;
+            final Instant windowEnd = windowStart.plus(timeStep);
+            windows.addLast(service.submit(new Callable<List<RemoteEvent>>() {
+                @Override
+                public List<RemoteEvent> call() {
+                    return queryEvents(windowStart, windowEnd.isAfter(end) ? end : windowEnd, !windowEnd.isBefore(end));
+                }
+            }));
+            nextWindowStart = windowEnd.isBefore(end) ? windowEnd : null;
+        }
+    }
+
+    /** the window is [start,stop), or [start,stop] for the last window so the final event is included */
+    private List<RemoteEvent> queryEvents(Instant start, Instant stop, boolean last) {
+        final String timeField = orderByTimeReceived ? "timeReceived" : "time";
+        final String range = " and " + timeField + " >= ?2 and " + timeField + (last ? " <= ?3" : " < ?3");
+        final List<RemoteEvent> events = new ArrayList<>();
+        if (markets.isEmpty())
+            return events;
+        if (trades)
+            events.addAll(EM.queryList(Trade.class, "select t from Trade t where market in (?1)" + range, markets, start, stop));
+        if (books)
+            events.addAll(EM.queryList(Book.class, "select b from Book b where market in (?1)" + range, markets, start, stop));
+        Collections.sort(events, orderByTimeReceived ? timeReceivedComparator : timeHappenedComparator);
+        return events;
+    }
+
+    private static final Comparator<RemoteEvent> timeReceivedComparator = new Comparator<RemoteEvent>() {
+        @Override
+        public int compare(RemoteEvent event, RemoteEvent event2) {
+            return event.getTimeReceived().compareTo(event2.getTimeReceived());
+        }
+    };
+
+    private static final Comparator<RemoteEvent> timeHappenedComparator = new Comparator<RemoteEvent>() {
+        @Override
+        public int compare(RemoteEvent event, RemoteEvent event2) {
+            return event.getTime().compareTo(event2.getTime());
+        }
+    };
+
+    private static final Duration timeStep = Duration.standardDays(1); // how many rows from the DB to gather in one batch
+    private final boolean orderByTimeReceived;
+    private final List<Market> markets;
+    private final boolean trades;
+    private final boolean books;
+    private final Instant end;
+    private final int readerThreads;
+    private final ExecutorService service;
+    private final Deque<Future<List<RemoteEvent>>> windows = new ArrayDeque<>();
+    private Iterator<RemoteEvent> current = Collections.<RemoteEvent> emptyList().iterator();
+    private Instant nextWindowStart;
+
+}
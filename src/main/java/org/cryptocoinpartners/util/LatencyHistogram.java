@@ -0,0 +1,93 @@
+package org.cryptocoinpartners.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of nanosecond latencies with log-linear buckets: values below 32 have a bucket each, and above
+ * that every power of two is split into 32 buckets, so any recorded value is reported within 1/32 (about 3%) of its
+ * true value from 1ns up to Long.MAX_VALUE in a fixed 15KB of counters.  The maximum is kept exactly.
+ * <p>
+ * Recording is a few atomic increments and may run concurrently with reading and with reset(); a reading taken while
+ * values are being recorded may miss the newest of them.
+ */
+public class LatencyHistogram {
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos))
+            ;
+    }
+
+    /** @return the number of values recorded since the last reset */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentiles each between 0 and 100
+     * @return for each percentile, the least value which at least that percentage of the recorded values do not exceed,
+     *         or 0 if nothing has been recorded
+     */
+    public long[] getPercentiles(double... percentiles) {
+        long[] snapshot = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        long[] values = new long[percentiles.length];
+        if (count == 0)
+            return values;
+        long max = this.max.get();
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * count));
+            long seen = 0;
+            int i = 0;
+            while (i < snapshot.length - 1 && (seen += snapshot[i]) < rank)
+                i++;
+            values[p] = Math.min(highestEquivalent(i), max);
+        }
+        return values;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        max.set(0);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /** @return the largest value which falls in the bucket */
+    private static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+        // the top bucket overflows to Long.MIN_VALUE, and so to Long.MAX_VALUE
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+}
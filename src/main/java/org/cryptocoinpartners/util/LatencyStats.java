@@ -0,0 +1,159 @@
+package org.cryptocoinpartners.util;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cryptocoinpartners.enumeration.OrderState;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Order;
+
+/**
+ * Tick-to-trade latency along the order path, aggregated into a LatencyHistogram per Market and Stage.  The Context
+ * stamps the arrival of each Book, OrderBuilder.place() stamps the strategy's decision, and the OrderService stamps
+ * placeOrder() entry, the submission to the exchange and the order's acknowledgement as PLACED, all with
+ * System.nanoTime().  When an order is acknowledged, every stage it has both ends of is recorded in the histograms of
+ * its Market.
+ * <p>
+ * The Book an order is measured from is the latest Book for its Market when the order is first stamped.  A
+ * SpecificOrder routed from a GeneralOrder during the GeneralOrder's placement inherits the GeneralOrder's stamps, so
+ * its tick-to-trade covers the routing; one placed later, e.g. by a trigger, is measured from its own placement.
+ * Orders built with OrderBuilder.build() and placed directly have no decision stamp.  The stamps of an order are
+ * dropped when it is acknowledged or closes, and those of a GeneralOrder when its placement returns.
+ */
+public class LatencyStats {
+
+    public enum Stage {
+        BOOK_TO_DECISION("book to decision"), DECISION_TO_PLACE("decision to placeOrder"), PLACE_TO_SUBMIT("placeOrder to submit"), SUBMIT_TO_PLACED(
+                "submit to placed"), TICK_TO_TRADE("book to placed");
+
+        Stage(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        private final String description;
+    }
+
+    public static void bookReceived(Market market) {
+        if (market != null)
+            lastBooks.put(market, System.nanoTime());
+    }
+
+    /** called when a strategy has decided on the order */
+    public static void decided(Order order) {
+        trace(order).decision = System.nanoTime();
+    }
+
+    /** called on entry to OrderService.placeOrder() */
+    public static void placing(Order order) {
+        Trace trace = traces.get(order);
+        if (trace == null && order.getParentOrder() != null) {
+            Trace parentTrace = traces.get(order.getParentOrder());
+            if (parentTrace != null) {
+                trace = trace(order);
+                trace.book = parentTrace.book;
+                trace.decision = parentTrace.decision;
+            }
+        }
+        if (trace == null)
+            trace = trace(order);
+        if (trace.book == 0)
+            trace.book = lastBook(order.getMarket());
+        trace.place = System.nanoTime();
+    }
+
+    /** called just before the order is sent to its exchange */
+    public static void submitted(Order order) {
+        Trace trace = traces.get(order);
+        if (trace != null)
+            trace.submit = System.nanoTime();
+    }
+
+    /** called when the order moves to a new state, recording its stages when it is acknowledged as PLACED */
+    public static void stateChanged(Order order, OrderState state) {
+        if (state != OrderState.PLACED && state.isOpen())
+            return;
+        Trace trace = traces.remove(order);
+        if (trace == null || state != OrderState.PLACED || order.getMarket() == null)
+            return;
+        long placed = System.nanoTime();
+        Map<Stage, LatencyHistogram> histograms = histograms(order.getMarket());
+        record(histograms, Stage.BOOK_TO_DECISION, trace.book, trace.decision);
+        record(histograms, Stage.DECISION_TO_PLACE, trace.decision, trace.place);
+        record(histograms, Stage.PLACE_TO_SUBMIT, trace.place, trace.submit);
+        record(histograms, Stage.SUBMIT_TO_PLACED, trace.submit, placed);
+        record(histograms, Stage.TICK_TO_TRADE, trace.book, placed);
+    }
+
+    /** forgets the order's stamps without recording them */
+    public static void discard(Order order) {
+        traces.remove(order);
+    }
+
+    /** @return the histograms of each Market with a recorded order */
+    public static Map<Market, Map<Stage, LatencyHistogram>> getHistograms() {
+        return Collections.unmodifiableMap(byMarket);
+    }
+
+    public static void reset() {
+        for (Map<Stage, LatencyHistogram> histograms : byMarket.values())
+            for (LatencyHistogram histogram : histograms.values())
+                histogram.reset();
+    }
+
+    private static void record(Map<Stage, LatencyHistogram> histograms, Stage stage, long start, long end) {
+        // a stage is only recorded when both its ends were stamped, in order
+        if (start != 0 && end != 0 && end >= start)
+            histograms.get(stage).record(end - start);
+    }
+
+    private static long lastBook(Market market) {
+        Long time = market == null ? null : lastBooks.get(market);
+        return time == null ? 0 : time;
+    }
+
+    private static Trace trace(Order order) {
+        Trace trace = traces.get(order);
+        if (trace == null) {
+            Trace newTrace = new Trace();
+            trace = traces.putIfAbsent(order, newTrace);
+            if (trace == null) {
+                trace = newTrace;
+                trace.book = lastBook(order.getMarket());
+            }
+        }
+        return trace;
+    }
+
+    private static Map<Stage, LatencyHistogram> histograms(Market market) {
+        Map<Stage, LatencyHistogram> histograms = byMarket.get(market);
+        if (histograms == null) {
+            Map<Stage, LatencyHistogram> newHistograms = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+            for (Stage stage : Stage.values())
+                newHistograms.put(stage, new LatencyHistogram());
+            histograms = byMarket.putIfAbsent(market, newHistograms);
+            if (histograms == null)
+                histograms = newHistograms;
+        }
+        return histograms;
+    }
+
+    /** the nanoTime stamps of one order, 0 where not stamped */
+    private static class Trace {
+        private volatile long book;
+        private volatile long decision;
+        private volatile long place;
+        private volatile long submit;
+    }
+
+    private static final ConcurrentMap<Market, Long> lastBooks = new ConcurrentHashMap<Market, Long>();
+    private static final ConcurrentMap<Order, Trace> traces = new ConcurrentHashMap<Order, Trace>();
+    private static final ConcurrentMap<Market, Map<Stage, LatencyHistogram>> byMarket = new ConcurrentHashMap<Market, Map<Stage, LatencyHistogram>>();
+
+}
@@ -4,11 +4,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -48,8 +46,8 @@ public class PersistUtil {
 
     // private static final BlockingQueue<EntityBase> insertQueue = new DelayQueue();
     // private static final BlockingQueue<EntityBase> mergeQueue = new DelayQueue();
-    private static final BlockingQueue<EntityBase[]> insertQueue = new LinkedBlockingQueue<EntityBase[]>();
-    private static final BlockingQueue<EntityBase[]> mergeQueue = new LinkedBlockingQueue<EntityBase[]>();
+    private static final PersistenceQueue<EntityBase[]> insertQueue = PersistenceQueue.create("persist.insert");
+    private static final PersistenceQueue<EntityBase[]> mergeQueue = PersistenceQueue.create("persist.merge");
 
     private static boolean running = false;
     private static boolean shutdown = false;
@@ -58,29 +56,13 @@ public class PersistUtil {
 
     public static void insert(EntityBase... entities) {
 
-        try {
-            insertQueue.put(entities);
-        } catch (InterruptedException e) {
-            log.error("Unable to resubmit insert request in org.cryptocoinpartners.util.persistUtil::insert, full stack trace follows:", e);
-            e.printStackTrace();
-
-        } finally {
-
-        }
+        insertQueue.put(entities);
 
     }
 
     private static void merge(EntityBase... entities) {
 
-        try {
-            mergeQueue.put(entities);
-        } catch (InterruptedException e) {
-            log.error("Unable to resubmit insert request in org.cryptocoinpartners.util.persistUtil::insert, full stack trace follows:", e);
-            e.printStackTrace();
-
-        } finally {
-
-        }
+        mergeQueue.put(entities);
 
     }
 
@@ -94,6 +76,9 @@ public class PersistUtil {
             PersistUtilHelper.beginTransaction();
 
             try {
+                // entities written per flush within the single transaction
+                int flushSize = ConfigUtil.combined().getInt("db.jdbc.batch.size", 50);
+                int count = 0;
                 for (EntityBase entity : entities) {
                     // em.lock(entity, LockModeType.PESSIMISTIC_WRITE);
                     // em.refresh(entity);
@@ -101,9 +86,12 @@ public class PersistUtil {
                     //em.merge(entity);
                     // else
                     em.persist(entity);
-                    PersistUtilHelper.commit();
-
+                    if (++count % flushSize == 0) {
+                        em.flush();
+                        em.clear();
+                    }
                 }
+                PersistUtilHelper.commit();
 
             } catch (OptimisticLockException ole) {
                 persited = false;
@@ -114,25 +102,22 @@ public class PersistUtil {
                     em = null;
                 }
 
+                boolean resubmit = false;
                 for (EntityBase entity : entities) {
                     if (entity.getRetryCount() <= retryCount) {
                         entity.incermentRetryCount();
-                        try {
-                            mergeQueue.put(entities);
-                        } catch (InterruptedException e) {
-                            log.error("Unable to resubmit insert request in org.cryptocoinpartners.util.persistUtil::insert, full stack trace follows:", e);
-                            e.printStackTrace();
-
-                        } finally {
-                            log.error(entity.getClass().getSimpleName() + ": Later verion of " + entity.getId().toString()
-                                    + " already persisted to database, entity was not inserted to database after " + entity.getRetryCount() + " attempts.");
-                        }
+                        resubmit = true;
+                        log.error(entity.getClass().getSimpleName() + ": Later verion of " + entity.getId().toString()
+                                + " already persisted to database, entity was not inserted to database after " + entity.getRetryCount() + " attempts.");
                     } else {
                         log.error("Unable to save " + entity.getClass().getSimpleName() + ": " + entity.getId().toString() + " after " + entity.getRetryCount()
                                 + " attempts.", ole);
 
                     }
                 }
+                // resubmit the request once, not once per entity, after a backoff
+                if (resubmit)
+                    mergeQueue.retry(entities, entities[0].getRetryCount());
 
             } catch (IllegalStateException ise) {
                 if (TransientPropertyValueException.class.isInstance(ise.getCause()))
@@ -146,25 +131,22 @@ public class PersistUtil {
                         em = null;
                     }
 
+                    boolean resubmit = false;
                     for (EntityBase entity : entities) {
                         if (entity.getRetryCount() <= retryCount) {
                             entity.incermentRetryCount();
-                            try {
-                                insertQueue.put(entities);
-                            } catch (InterruptedException e) {
-                                log.error("Unable to resubmit insert request in org.cryptocoinpartners.util.persistUtil::insert, full stack trace follows:", e);
-                                e.printStackTrace();
-
-                            } finally {
-                                log.error(entity.getClass().getSimpleName() + ": " + entity.getId().toString()
-                                        + " had unsaved transient values. Resubmitting insert request.", ise);
-                            }
+                            resubmit = true;
+                            log.error(entity.getClass().getSimpleName() + ": " + entity.getId().toString()
+                                    + " had unsaved transient values. Resubmitting insert request.", ise);
                         } else {
                             log.error(
                                     "Unable to save " + entity.getClass().getSimpleName() + ": " + entity.getId().toString() + " after "
                                             + entity.getRetryCount() + " attempts.", ise);
                         }
                     }
+                    // resubmit the request once, not once per entity, after a backoff
+                    if (resubmit)
+                        insertQueue.retry(entities, entities[0].getRetryCount());
                 }
 
             } catch (PersistenceException pe) {
@@ -178,27 +160,23 @@ public class PersistUtil {
                     em = null;
                 }
 
+                boolean resubmit = false;
                 for (EntityBase entity : entities) {
 
                     if (entity.getRetryCount() <= retryCount) {
                         entity.incermentRetryCount();
                         //  em.refresh(entity);
 
-                        try {
-                            mergeQueue.put(entities);
-                        } catch (InterruptedException e) {
-                            log.error("Unable to resubmit insert request in org.cryptocoinpartners.util.persistUtil::insert, full stack trace follows:", e);
-                            e.printStackTrace();
-
-                        } finally {
-                            log.error(entity.getClass().getSimpleName() + ":" + entity.getId().toString() + " already exists, we need to merge records.");
-
-                        }
+                        resubmit = true;
+                        log.error(entity.getClass().getSimpleName() + ":" + entity.getId().toString() + " already exists, we need to merge records.");
                     } else {
                         log.error("Unable to save " + entity.getClass().getSimpleName() + ": " + entity.getId().toString() + " after " + entity.getRetryCount()
                                 + " attempts.", pe);
                     }
                 }
+                // resubmit the request once, not once per entity, after a backoff
+                if (resubmit)
+                    mergeQueue.retry(entities, entities[0].getRetryCount());
 
             } catch (Exception | Error e) {
                 persited = false;
@@ -261,15 +239,21 @@ public class PersistUtil {
             PersistUtilHelper.beginTransaction();
 
             try {
+                // entities written per flush within the single transaction
+                int flushSize = ConfigUtil.combined().getInt("db.jdbc.batch.size", 50);
+                int count = 0;
                 for (EntityBase entity : entities) {
                     // em.lock(entity, LockModeType.PESSIMISTIC_WRITE);
                     //  em.find(entity.getClass(), entity.getId());
                     //  em.refresh(entity.getId());
 
                     em.merge(entity);
-                    PersistUtilHelper.commit();
-
+                    if (++count % flushSize == 0) {
+                        em.flush();
+                        em.clear();
+                    }
                 }
+                PersistUtilHelper.commit();
 
             } catch (EntityNotFoundException enf) {
                 persited = false;
@@ -280,26 +264,23 @@ public class PersistUtil {
                     em = null;
                 }
 
+                boolean resubmit = false;
                 for (EntityBase entity : entities) {
                     if (entity.getRetryCount() <= retryCount) {
                         entity.incermentRetryCount();
 
-                        try {
-                            insertQueue.put(entities);
-                        } catch (InterruptedException e) {
-                            log.error("Unable to resubmit merge request in org.cryptocoinpartners.util.persistUtil::merge, full stack trace follows:", e);
-                            e.printStackTrace();
-
-                        } finally {
-                            log.error(entity.getClass().getSimpleName() + ": Entity " + entity.getId().toString()
-                                    + " was not already persisted to database, entity was not merged to database after " + entity.getRetryCount()
-                                    + " attempts.");
-                        }
+                        resubmit = true;
+                        log.error(entity.getClass().getSimpleName() + ": Entity " + entity.getId().toString()
+                                + " was not already persisted to database, entity was not merged to database after " + entity.getRetryCount()
+                                + " attempts.");
                     } else {
                         log.error("Unable to save " + entity.getClass().getSimpleName() + ": " + entity.getId().toString() + " after " + entity.getRetryCount()
                                 + " attempts.", enf);
                     }
                 }
+                // resubmit the request once, not once per entity, after a backoff
+                if (resubmit)
+                    insertQueue.retry(entities, entities[0].getRetryCount());
 
             } catch (OptimisticLockException ole) {
 
@@ -311,25 +292,22 @@ public class PersistUtil {
                     em = null;
                 }
                 //
+                boolean resubmit = false;
                 for (EntityBase entity : entities) {
                     if (entity.getRetryCount() <= retryCount) {
                         entity.incermentRetryCount();
                         entity.setVersion(entity.getVersion() + 1);
-                        try {
-                            mergeQueue.put(entities);
-                        } catch (Exception | Error e) {
-                            log.error("Unable to resubmit merge request in org.cryptocoinpartners.util.persistUtil::merge, full stack trace follows:", e);
-                            e.printStackTrace();
-
-                        } finally {
-                            log.error(entity.getClass().getSimpleName() + ": Later verion of " + entity.getId().toString()
-                                    + " already persisted to database, entity was not merged to database after " + entity.getRetryCount() + " attempts.");
-                        }
+                        resubmit = true;
+                        log.error(entity.getClass().getSimpleName() + ": Later verion of " + entity.getId().toString()
+                                + " already persisted to database, entity was not merged to database after " + entity.getRetryCount() + " attempts.");
                     } else {
                         log.error("Unable to save " + entity.getClass().getSimpleName() + ": " + entity.getId().toString() + " after " + entity.getRetryCount()
                                 + " attempts. stack trade", ole);
                     }
                 }
+                // resubmit the request once, not once per entity, after a backoff
+                if (resubmit)
+                    mergeQueue.retry(entities, entities[0].getRetryCount());
             }
 
             //                  PersistUtilHelper.beginTransaction();
@@ -493,7 +471,7 @@ public class PersistUtil {
      * once for each row with an Object[] of column values
      */
     public static void queryEach(Visitor<Object[]> handler, String queryStr, Object... params) {
-        queryEach(handler, defaultBatchSize, queryStr, params);
+        queryEach(handler, ConfigUtil.combined().getInt("db.query.fetch.size", 1000), queryStr, params);
     }
 
     /**
@@ -512,18 +490,7 @@ public class PersistUtil {
                     query.setParameter(i + 1, param); // JPA uses 1-based indexes
                 }
             }
-            query.setMaxResults(batchSize);
-            for (int start = 0;; start += batchSize) {
-                query.setFirstResult(start);
-                List list = query.getResultList();
-                if (list.isEmpty())
-                    return;
-                for (Object row : list) {
-                    if (row.getClass().isArray() && !handler.handleItem((Object[]) row) || !row.getClass().isArray()
-                            && !handler.handleItem(new Object[] { row }))
-                        return;
-                }
-            }
+            QueryScroller.eachRow(em, query, batchSize, handler);
         } finally {
             if (em != null)
                 PersistUtilHelper.closeEntityManager();
@@ -531,7 +498,7 @@ public class PersistUtil {
     }
 
     public static <T> void queryEach(Class<T> resultType, Visitor<T> handler, String queryStr, Object... params) {
-        queryEach(resultType, handler, defaultBatchSize, queryStr, params);
+        queryEach(resultType, handler, ConfigUtil.combined().getInt("db.query.fetch.size", 1000), queryStr, params);
     }
 
     public static <T> void queryEach(Class<T> resultType, Visitor<T> handler, int batchSize, String queryStr, Object... params) {
@@ -545,17 +512,7 @@ public class PersistUtil {
                     query.setParameter(i + 1, param); // JPA uses 1-based indexes
                 }
             }
-            query.setMaxResults(batchSize);
-            for (int start = 0;; start += batchSize) {
-                query.setFirstResult(start);
-                final List<T> list = query.getResultList();
-                if (list.isEmpty())
-                    return;
-                for (T row : list) {
-                    if (!handler.handleItem(row))
-                        return;
-                }
-            }
+            QueryScroller.each(em, query, resultType, batchSize, handler);
         } finally {
             if (em != null)
                 PersistUtilHelper.closeEntityManager();
@@ -829,6 +786,5 @@ public class PersistUtil {
 
     }
 
-    private static final int defaultBatchSize = 20;
     private static int retryCount = 2;
 }
@@ -0,0 +1,340 @@
+package org.cryptocoinpartners.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded queue of work waiting to be written to the database.  When the queue is full, put() follows the queue's
+ * Policy:
+ * <ul>
+ * <li>BLOCK waits for room</li>
+ * <li>DROP_OLDEST discards the oldest waiting item, which suits market data that is only worth saving while fresh</li>
+ * <li>SPILL serializes the item to a file in db.queue.spill.dir and reads it back once the queue has drained.  Items
+ * which cannot be spilled wait, as with BLOCK, until everything already spilled has been read back, so the queue
+ * stays in order.</li>
+ * </ul>
+ * retry() puts an item back after an exponential backoff of db.queue.retry.delay * 2^attempt milliseconds, capped at
+ * db.queue.retry.max.delay, instead of straight away, and backs off again rather than waiting if the queue is full.  Every queue counts its depth, drops, spills, retries and the
+ * time items wait, and all queues are listed by getAll() for the console.
+ * <p>
+ * Each queue reads db.queue.NAME.capacity and db.queue.NAME.policy, falling back to db.queue.capacity and
+ * db.queue.policy.
+ */
+public class PersistenceQueue<E extends Serializable> {
+
+    public enum Policy {
+        BLOCK, DROP_OLDEST, SPILL
+    }
+
+    public static List<PersistenceQueue<?>> getAll() {
+        return Collections.unmodifiableList(all);
+    }
+
+    public static List<String> describeAll() {
+        List<String> descriptions = new ArrayList<>();
+        for (PersistenceQueue<?> queue : all)
+            descriptions.add(queue.toString());
+        return descriptions;
+    }
+
+    /** a queue configured from db.queue.NAME.* */
+    public static <E extends Serializable> PersistenceQueue<E> create(String name) {
+        int capacity = ConfigUtil.combined().getInt("db.queue." + name + ".capacity", ConfigUtil.combined().getInt("db.queue.capacity", 10000));
+        String policy = ConfigUtil.combined().getString("db.queue." + name + ".policy", ConfigUtil.combined().getString("db.queue.policy", "block"));
+        return new PersistenceQueue<E>(name, capacity, Policy.valueOf(policy.toUpperCase()));
+    }
+
+    public PersistenceQueue(String name, int capacity, Policy policy) {
+        this.name = name;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<>(this.capacity);
+        all.add(this);
+    }
+
+    public void put(E item) {
+        enqueued.incrementAndGet();
+        try {
+            enqueue(new Entry<E>(item), true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted putting to " + name + " queue, item was not queued", e);
+        }
+        recordDepth();
+    }
+
+    /**
+     * puts the item back on the queue after the backoff for the given attempt.  The retry thread is shared by every
+     * queue, so it never waits for room: if the item does not fit it is rescheduled with the next attempt's backoff.
+     */
+    public void retry(final E item, final int attempt) {
+        retries.incrementAndGet();
+        long retryDelay = ConfigUtil.combined().getLong("db.queue.retry.delay", 100);
+        long maxRetryDelay = ConfigUtil.combined().getLong("db.queue.retry.max.delay", 30000);
+        long delay = Math.min(retryDelay << Math.min(Math.max(attempt, 0), 20), maxRetryDelay);
+        retryScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                boolean queued;
+                try {
+                    queued = enqueue(new Entry<E>(item), false);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    queued = false;
+                }
+                if (queued) {
+                    enqueued.incrementAndGet();
+                    recordDepth();
+                } else
+                    retry(item, attempt + 1);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param wait whether to wait for room, as put() does, or give up when the policy would have to wait
+     * @return false if the item was not queued because there was no room and wait was false
+     */
+    private boolean enqueue(Entry<E> entry, boolean wait) throws InterruptedException {
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(entry)) {
+                    if (queue.poll() != null && dropped.incrementAndGet() % 1000 == 1)
+                        log.warn(name + " queue full at " + capacity + ", dropped " + dropped.get() + " items so far");
+                }
+                return true;
+            case SPILL:
+                synchronized (spillLock) {
+                    // once anything has spilled, later items spill behind it to keep the queue in order.  If the spill
+                    // file cannot be written, wait for the spilled items to be read back before queueing in memory.
+                    while (true) {
+                        if (spilled == 0 && queue.offer(entry))
+                            return true;
+                        if (spill(entry.item))
+                            return true;
+                        if (!wait)
+                            return false;
+                        if (spilled == 0)
+                            break;
+                        spillLock.wait();
+                    }
+                    // nothing is spilled and only this lock can spill more, so queueing here keeps the order
+                    queue.put(entry);
+                    return true;
+                }
+            default:
+                if (!wait)
+                    return queue.offer(entry);
+                queue.put(entry);
+                return true;
+        }
+    }
+
+    public E take() throws InterruptedException {
+        return taken(queue.take());
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Entry<E> entry = queue.poll(timeout, unit);
+        return entry == null ? null : taken(entry);
+    }
+
+    public int drainTo(Collection<? super E> items, int maxItems) {
+        List<Entry<E>> entries = new ArrayList<>();
+        queue.drainTo(entries, maxItems);
+        for (Entry<E> entry : entries)
+            items.add(taken(entry));
+        return entries.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** items waiting in memory and in the spill file */
+    public long getDepth() {
+        return queue.size() + spilled;
+    }
+
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSpilled() {
+        return totalSpilled.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /** mean milliseconds from put() to take() */
+    public double getMeanLatency() {
+        long count = taken.get();
+        return count == 0 ? 0 : waitNanos.get() / 1000000d / count;
+    }
+
+    public double getMaxLatency() {
+        return maxWaitNanos.get() / 1000000d;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s): depth=%d/%d max=%d enqueued=%d dropped=%d spilled=%d retries=%d latency=%.1fms max=%.1fms", name, policy
+                .name().toLowerCase(), getDepth(), capacity, getMaxDepth(), getEnqueued(), getDropped(), getSpilled(), getRetries(), getMeanLatency(),
+                getMaxLatency());
+    }
+
+    private E taken(Entry<E> entry) {
+        long wait = System.nanoTime() - entry.enqueuedNanos;
+        taken.incrementAndGet();
+        waitNanos.addAndGet(wait);
+        long max;
+        while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait))
+            ;
+        if (spilled > 0)
+            unspill();
+        return entry.item;
+    }
+
+    private void recordDepth() {
+        long depth = getDepth();
+        long max;
+        while (depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth))
+            ;
+    }
+
+    /** @return false if the item could not be written to the spill file */
+    private boolean spill(E item) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(item);
+            }
+            if (spillFile == null) {
+                File directory = new File(ConfigUtil.combined().getString("db.queue.spill.dir", "spill"));
+                if (!directory.isDirectory() && !directory.mkdirs())
+                    throw new IOException("Could not create spill directory " + directory);
+                spillFile = new RandomAccessFile(new File(directory, name + ".spill"), "rw");
+                spillFile.setLength(0);
+                spillReadPosition = 0;
+            }
+            spillFile.seek(spillFile.length());
+            spillFile.writeInt(bytes.size());
+            spillFile.write(bytes.toByteArray());
+            spilled++;
+            if (totalSpilled.incrementAndGet() % 1000 == 1)
+                log.warn(name + " queue full at " + capacity + ", spilled " + totalSpilled.get() + " items so far");
+            return true;
+        } catch (IOException e) {
+            log.warn(name + " could not spill " + item + ", waiting for room instead", e);
+            return false;
+        }
+    }
+
+    /** moves spilled items back into the queue while there is room */
+    @SuppressWarnings("unchecked")
+    private void unspill() {
+        synchronized (spillLock) {
+            try {
+                while (spilled > 0 && queue.remainingCapacity() > 0) {
+                    spillFile.seek(spillReadPosition);
+                    byte[] bytes = new byte[spillFile.readInt()];
+                    spillFile.readFully(bytes);
+                    spillReadPosition = spillFile.getFilePointer();
+                    spilled--;
+                    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                        queue.offer(new Entry<E>((E) in.readObject()));
+                    } catch (ClassNotFoundException e) {
+                        log.error(name + " could not read back a spilled item", e);
+                    }
+                }
+                if (spilled == 0) {
+                    spillFile.setLength(0);
+                    spillReadPosition = 0;
+                }
+            } catch (IOException e) {
+                log.error(name + " could not read spill file, " + spilled + " spilled items were lost", e);
+                spilled = 0;
+                spillReadPosition = 0;
+            }
+            spillLock.notifyAll();
+        }
+    }
+
+    private static class Entry<E> {
+
+        private Entry(E item) {
+            this.item = item;
+        }
+
+        private final E item;
+        private final long enqueuedNanos = System.nanoTime();
+
+    }
+
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.persist");
+    private static final List<PersistenceQueue<?>> all = new CopyOnWriteArrayList<>();
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "persistence retry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String name;
+    private final int capacity;
+    private final Policy policy;
+    private final ArrayBlockingQueue<Entry<E>> queue;
+    private final Object spillLock = new Object();
+    private RandomAccessFile spillFile;
+    private long spillReadPosition;
+    private volatile long spilled;
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong totalSpilled = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong taken = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong maxDepth = new AtomicLong();
+
+}
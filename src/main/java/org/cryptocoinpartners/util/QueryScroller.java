@@ -0,0 +1,72 @@
+package org.cryptocoinpartners.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.cryptocoinpartners.schema.EntityBase;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+
+/**
+ * Visits the results of a query through one forward-only Hibernate cursor instead of LIMIT/OFFSET pages, so that a
+ * whole table is read in linear time.  Rows are fetched batchSize at a time, the entities are loaded read-only and
+ * bypass the second-level cache, and the entities of each batchSize rows are detached once the batch has been visited,
+ * so memory stays constant however many rows are visited.  Only the scrolled entities are detached, not the whole
+ * persistence context, so entities the caller loaded earlier in the same transaction stay managed.  Entities related
+ * to the scrolled ones, such as their Markets, stay managed as well.
+ * <p>
+ * MySQL only fetches a cursor in batches when the connection has useCursorFetch=true, as in the default db.url;
+ * without it the driver reads the whole result set into memory before the first row is visited.
+ */
+public class QueryScroller {
+
+    /**
+     * Visits each result of a query with one selected item, or each row as an Object[] when resultType is an array
+     * type.
+     */
+    public static <T> void each(EntityManager em, Query query, Class<T> resultType, int batchSize, Visitor<T> handler) {
+        ScrollableResults results = scroll(query, batchSize);
+        List<EntityBase> batch = new ArrayList<>(batchSize);
+        try {
+            while (results.next()) {
+                Object[] row = results.get();
+                for (Object column : row)
+                    if (column instanceof EntityBase)
+                        batch.add((EntityBase) column);
+                T item = resultType.isArray() ? resultType.cast(row) : resultType.cast(row[0]);
+                if (!handler.handleItem(item))
+                    return;
+                if (batch.size() >= batchSize)
+                    detach(em, batch);
+            }
+        } finally {
+            results.close();
+        }
+    }
+
+    /** visits each row of a query as an Object[] of column values */
+    public static void eachRow(EntityManager em, Query query, int batchSize, Visitor<Object[]> handler) {
+        each(em, query, Object[].class, batchSize, handler);
+    }
+
+    private static ScrollableResults scroll(Query query, int batchSize) {
+        org.hibernate.Query hibernateQuery = query.unwrap(org.hibernate.Query.class);
+        hibernateQuery.setReadOnly(true);
+        hibernateQuery.setCacheMode(CacheMode.IGNORE);
+        hibernateQuery.setFetchSize(batchSize);
+        return hibernateQuery.scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    /** detaches the entities of a batch, which were loaded read-only and so have no changes to lose */
+    private static void detach(EntityManager em, List<EntityBase> batch) {
+        for (EntityBase entity : batch)
+            if (em.contains(entity))
+                em.detach(entity);
+        batch.clear();
+    }
+
+}
@@ -0,0 +1,160 @@
+package org.cryptocoinpartners.util;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.Instant;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Remembers which keys of one type of row (e.g. Trade remote keys) have already been written, so the writers can
+ * tell a new row from a duplicate without a SELECT.  For each market the most recent db.dedup.window keys are held
+ * exactly, and older keys fall into a pair of Bloom filters of db.dedup.bloom.size keys each.  When the older filter is
+ * discarded, the newest time it held becomes the market's horizon.
+ * <p>
+ * claim() answers NEW when the key is certainly not written, DUPLICATE when it certainly was, and MAYBE when only the
+ * database can tell: the key hit a Bloom filter, or its time is before the horizon or before this process started, so
+ * an earlier run or a discarded filter may have written it.
+ */
+public class RecentKeyCache {
+
+    public enum Answer {
+        NEW, DUPLICATE, MAYBE
+    }
+
+    /** the shared cache for rows of the given type */
+    public static RecentKeyCache forType(Class<?> type) {
+        RecentKeyCache cache = caches.get(type);
+        if (cache == null) {
+            RecentKeyCache newCache = new RecentKeyCache(type.getSimpleName(), ConfigUtil.combined().getInt("db.dedup.window", 10000), ConfigUtil
+                    .combined().getInt("db.dedup.bloom.size", 1000000), Instant.now().minus(
+                    ConfigUtil.combined().getLong("db.dedup.horizon.margin", 60) * 1000));
+            cache = caches.putIfAbsent(type, newCache);
+            if (cache == null)
+                cache = newCache;
+        }
+        return cache;
+    }
+
+    public RecentKeyCache(String name, int windowSize, int bloomSize, Instant horizon) {
+        this.name = name;
+        this.windowSize = Math.max(1, windowSize);
+        this.bloomSize = Math.max(1, bloomSize);
+        this.horizon = horizon.getMillis();
+    }
+
+    /**
+     * Checks a key and, unless it is a certain duplicate, records it as written.  Callers which get MAYBE must check
+     * the database before writing, and callers which then fail to write the row must release() the key, or a retry
+     * of the row would be answered DUPLICATE and lost.
+     */
+    public Answer claim(Object market, String key, Instant time) {
+        Scope scope = scopeFor(market);
+        synchronized (scope) {
+            if (scope.window.containsKey(key)) {
+                duplicates.incrementAndGet();
+                return Answer.DUPLICATE;
+            }
+            boolean maybe = time.getMillis() <= Math.max(horizon, scope.horizon) || scope.current.mightContain(key)
+                    || (scope.previous != null && scope.previous.mightContain(key));
+            scope.add(key, time.getMillis());
+            if (maybe) {
+                maybes.incrementAndGet();
+                return Answer.MAYBE;
+            }
+            misses.incrementAndGet();
+            return Answer.NEW;
+        }
+    }
+
+    /** takes back a claim on a key which could not be written, if the key is still in the exact window */
+    public void release(Object market, String key) {
+        Scope scope = scopeFor(market);
+        synchronized (scope) {
+            scope.window.remove(key);
+        }
+    }
+
+    /** records a key as written without checking it */
+    public void add(Object market, String key, Instant time) {
+        Scope scope = scopeFor(market);
+        synchronized (scope) {
+            scope.add(key, time.getMillis());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: markets=%d new=%d duplicate=%d maybe=%d", name, scopes.size(), misses.get(), duplicates.get(), maybes.get());
+    }
+
+    private Scope scopeFor(Object market) {
+        Scope scope = scopes.get(market);
+        if (scope == null) {
+            Scope newScope = new Scope();
+            scope = scopes.putIfAbsent(market, newScope);
+            if (scope == null)
+                scope = newScope;
+        }
+        return scope;
+    }
+
+    private class Scope {
+
+        private void add(String key, long time) {
+            window.put(key, time);
+            if (window.size() <= windowSize)
+                return;
+            Iterator<Map.Entry<String, Long>> oldest = window.entrySet().iterator();
+            Map.Entry<String, Long> evicted = oldest.next();
+            oldest.remove();
+            if (currentCount == bloomSize) {
+                if (previous != null)
+                    horizon = Math.max(horizon, previousLatest);
+                previous = current;
+                previousLatest = currentLatest;
+                current = newFilter();
+                currentCount = 0;
+            }
+            current.put(evicted.getKey());
+            currentCount++;
+            currentLatest = Math.max(currentLatest, evicted.getValue());
+        }
+
+        private BloomFilter<CharSequence> newFilter() {
+            return BloomFilter.create(Funnels.stringFunnel(UTF8), bloomSize, 0.001);
+        }
+
+        private final LinkedHashMap<String, Long> window = new LinkedHashMap<>();
+        private BloomFilter<CharSequence> current = newFilter();
+        private BloomFilter<CharSequence> previous;
+        private int currentCount;
+        private long currentLatest = Long.MIN_VALUE;
+        private long previousLatest = Long.MIN_VALUE;
+        private long horizon = Long.MIN_VALUE;
+
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ConcurrentHashMap<Class<?>, RecentKeyCache> caches = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final int windowSize;
+    private final int bloomSize;
+    private final long horizon;
+    private final ConcurrentHashMap<Object, Scope> scopes = new ConcurrentHashMap<>();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong maybes = new AtomicLong();
+
+}
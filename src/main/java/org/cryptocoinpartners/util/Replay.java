@@ -1,36 +1,35 @@
 package org.cryptocoinpartners.util;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.cryptocoinpartners.module.Context;
 import org.cryptocoinpartners.schema.Book;
 import org.cryptocoinpartners.schema.Event;
 import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.MarketDataExtent;
 import org.cryptocoinpartners.schema.RemoteEvent;
 import org.cryptocoinpartners.schema.Trade;
-import org.joda.time.Duration;
 import org.joda.time.Instant;
 import org.joda.time.Interval;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.espertech.esper.client.EPRuntime;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
 
 /**
- Manages a Context into which Trades and Books from the database are replayed.  The Context time is also managed by this
- class as it advances through the events.
+ Manages a Context into which Trades and Books from an EventSource, by default the database, are replayed.  The Context time is also managed by this
+ class as it advances through the events.  From the database, only the replay.types of the replay.markets are read.
  */
 public class Replay implements Runnable {
 
@@ -41,24 +40,12 @@ public class Replay implements Runnable {
         this(new Interval(getEventsStart(orderByTimeReceived), getEventsEnd(orderByTimeReceived)), orderByTimeReceived);
     }
 
-    //
-    @AssistedInject
-    public Replay(@Assisted boolean orderByTimeReceived, @Assisted Semaphore semaphore) {
-        this(new Interval(getEventsStart(orderByTimeReceived), getEventsEnd(orderByTimeReceived)), orderByTimeReceived, semaphore);
-    }
-
     //
     @AssistedInject
     public Replay(@Assisted("startTime") Instant start, @Assisted boolean orderByTimeReceived) {
         this(new Interval(start, getEventsEnd(orderByTimeReceived)), orderByTimeReceived);
     }
 
-    //
-    @AssistedInject
-    public Replay(@Assisted("startTime") Instant start, @Assisted boolean orderByTimeReceived, @Assisted Semaphore semaphore) {
-        this(new Interval(start, getEventsEnd(orderByTimeReceived)), orderByTimeReceived, semaphore);
-    }
-
     //
 
     @AssistedInject
@@ -66,24 +53,12 @@ public class Replay implements Runnable {
         this(new Interval(getEventsStart(orderByTimeReceived), end), orderByTimeReceived);
     }
 
-    //
-    @AssistedInject
-    public Replay(@Assisted("endTime") Instant end, @Assisted boolean orderByTimeReceived, @Assisted Semaphore semaphore, @Assisted("until") boolean until) {
-        this(new Interval(getEventsStart(orderByTimeReceived), end), orderByTimeReceived, semaphore);
-    }
-
     //
     @AssistedInject
     public Replay(@Assisted("startTime") Instant start, @Assisted("endTime") Instant end, @Assisted boolean orderByTimeReceived) {
         this(new Interval(start, end), orderByTimeReceived);
     }
 
-    //
-    @AssistedInject
-    public Replay(@Assisted("startTime") Instant start, @Assisted("endTime") Instant end, @Assisted boolean orderByTimeReceived, @Assisted Semaphore semaphore) {
-        this(new Interval(start, end), orderByTimeReceived, semaphore);
-    }
-
     //
     // @AssistedInject
     // public Replay (Interval interval, boolean orderByTimeReceived) {
@@ -98,26 +73,53 @@ public class Replay implements Runnable {
     @AssistedInject
     public Replay(@Assisted Interval replayTimeInterval, @Assisted boolean orderByTimeReceived) {
         this.replayTimeInterval = replayTimeInterval; // set this before creating EventTimeManager
-        this.semaphore = null;
         this.context = Context.create(new EventTimeManager());
         this.orderByTimeReceived = orderByTimeReceived;
     }
 
+    /**
+     * Creates a Replay whose Context runs on its own Esper engine, so several Replays can run in parallel without
+     * sharing statements or engine time.
+     */
     @AssistedInject
-    public Replay(@Assisted Interval replayTimeInterval, @Assisted boolean orderByTimeReceived, @Assisted Semaphore semaphore) {
+    public Replay(@Assisted Interval replayTimeInterval, @Assisted boolean orderByTimeReceived, @Assisted("engineURI") String engineURI) {
         this.replayTimeInterval = replayTimeInterval; // set this before creating EventTimeManager
-        this.semaphore = semaphore;
-        this.context = Context.create(new EventTimeManager());
+        this.context = Context.create(new EventTimeManager(), engineURI);
         this.orderByTimeReceived = orderByTimeReceived;
+        this.name = engineURI;
     }
 
     public Context getContext() {
         return context;
     }
 
+    /** throughput and progress of the current or most recent run(), or null if this Replay has not been run */
+    public ReplayStats getStats() {
+        return stats;
+    }
+
     /**
-     queries the database for all Books and Trades which have start <= time <= stop, then publishes those
-     Events in order of time to this Replay's Context
+     * Events before warmUpEnd are replayed only to prime indicators and windows.  The listener is run once, on the
+     * replay thread, just before the first event at or after warmUpEnd is published; use it to switch on trading.
+     */
+    public void setWarmUp(Instant warmUpEnd, Runnable warmUpListener) {
+        this.warmUpEnd = warmUpEnd;
+        this.warmUpListener = warmUpListener;
+    }
+
+    /**
+     Uses the given source instead of the database.  The replay.markets filter does not apply to other sources; they are
+     replayed in full between the start and end of this Replay's interval.
+     */
+    public void setEventSource(EventSource eventSource) {
+        this.eventSource = eventSource;
+    }
+
+    /**
+     reads all Books and Trades which have start <= time <= stop from the EventSource (the database unless another
+     source was set), then publishes those Events in order of time to this Replay's Context.  A reader thread keeps up
+     to replay.readahead events queued ahead of the publisher.  If the source fails, run() throws once the events read
+     before the failure have been published.
      */
 
     @Override
@@ -125,203 +127,168 @@ public class Replay implements Runnable {
 
         final Instant start = replayTimeInterval.getStart().toInstant();
         final Instant end = replayTimeInterval.getEnd().toInstant();
-        int threadCount = 0;
-        CountDownLatch startLatch = null;
-        CountDownLatch stopLatch = null;
-        service = Executors.newFixedThreadPool(dbReaderThreads);
-        //   engines = Executors.newFixedThreadPool(1);
-
-        // engines.submit(new PublisherRunnable());
-        if (replayTimeInterval.toDuration().isLongerThan(timeStep)) {
-            // Start two threads, but ensure the first thread publish first, then reuse it
-
-            for (Instant now = start; !now.isAfter(end);) {
-                final Instant stepEnd = now.plus(timeStep);
-                stopLatch = new CountDownLatch(1);
-                ReplayStepRunnable replayStep = new ReplayStepRunnable(now, stepEnd, context.getRunTime(), semaphore, startLatch, stopLatch, threadCount);
-                service.submit(replayStep);
-                startLatch = stopLatch;
-                // if (threadCount != 0)
-
-                threadCount++;
-                now = stepEnd;
-
-            }
-
-        } else
-            replayStep(start, end);
-
-        if (semaphore != null)
-            try {
-                semaphore.acquire(threadCount);
-            } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                //  e.printStackTrace();
-            }
-
-    }
-
-    private class PublisherRunnable implements Runnable {
-
-        public PublisherRunnable() {
-
+        final EventSource source;
+        if (eventSource != null)
+            source = eventSource;
+        else {
+            List<String> types = getReplayTypes();
+            source = new JpaEventSource(orderByTimeReceived, getReplayMarkets(), types.contains(Trade.class.getSimpleName()),
+                    types.contains(Book.class.getSimpleName()), end, dbReaderThreads);
+            log.info("replaying " + types + " for " + ConfigUtil.combined().getList("replay.markets"));
         }
-
-        @Override
-        // @Inject
-        public void run() {
-            while (true)
-                try {
-
-                    RemoteEvent event = queue.take();
-                    //runtime.sendEvent(event);
-                    context.publish(event);
-
-                } catch (Exception | Error e) {
-                    e.printStackTrace();
+        stats = new ReplayStats(name, replayTimeInterval);
+        stats.started();
+        ScheduledExecutorService statsLogger = startStatsLogger();
+
+        int readAhead = Math.max(1, ConfigUtil.combined().getInt("replay.readahead", 10000) / readBatchSize);
+        final BlockingQueue<List<RemoteEvent>> queue = new ArrayBlockingQueue<>(readAhead);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        reader.submit(new ReaderRunnable(source, start, end, queue));
+        reader.shutdown();
+
+        try {
+            for (List<RemoteEvent> batch = queue.take(); !batch.isEmpty(); batch = queue.take())
+                for (RemoteEvent event : batch) {
+                    publish(event);
+                    source.release(event);
                 }
-
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reader.shutdownNow();
+        }
+        try {
+            source.close();
+        } catch (IOException e) {
+            log.warn("Could not close event source", e);
         }
+        if (readerFailure != null) {
+            if (statsLogger != null)
+                statsLogger.shutdown();
+            throw new IllegalStateException("replay stopped at " + stats + " because its event source failed", readerFailure);
+        }
+        context.advanceTime(end); // advance to the end of the time window to trigger any timer events
 
+        stats.finished();
+        if (statsLogger != null)
+            statsLogger.shutdown();
+        log.info("replay finished " + stats);
     }
 
-    private class ReplayStepRunnable implements Runnable {
+    private class ReaderRunnable implements Runnable {
 
+        private final EventSource source;
         private final Instant start;
-        private final Instant stop;
-        private final EPRuntime runtime;
-        private final Semaphore semaphore;
-        private final CountDownLatch startLatch;
-        private final CountDownLatch stopLatch;
-        private final int threadCount;
-
-        public ReplayStepRunnable(Instant start, Instant stop, EPRuntime runtime, Semaphore semaphore, CountDownLatch startLatch, CountDownLatch stopLatch,
-                int threadCount) {
-            this.semaphore = semaphore;
-            this.start = start;
-            this.stop = stop;
-            this.runtime = runtime;
-            this.startLatch = startLatch;
-            this.stopLatch = stopLatch;
-            this.threadCount = threadCount;
+        private final Instant end;
+        private final BlockingQueue<List<RemoteEvent>> queue;
 
+        public ReaderRunnable(EventSource source, Instant start, Instant end, BlockingQueue<List<RemoteEvent>> queue) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.queue = queue;
         }
 
         @Override
-        // @Inject
         public void run() {
-
             try {
-                // perform interesting task
-
-                // Log.debug(context.getInjector().toString());
-                //PortfolioService port = context.getInjector().getInstance(PortfolioService.class);
-                Iterator<RemoteEvent> ite = queryEvents(start, stop).iterator();
-                // thread 1 starts, thread 2 finishes, want to wait till thread 1 is complete before processing 
-
-                // we need to wait for current thread to finish.
-                try {
-                    if (startLatch != null)
-                        startLatch.await();
-
-                    while (ite.hasNext()) {
-                        RemoteEvent event = ite.next();
-                        //   queue.put(event);
-
-                        context.publish(event);
-                        EM.detach(event);
-
+                source.seek(start);
+                List<RemoteEvent> batch = new ArrayList<>(readBatchSize);
+                long fetchStart = System.nanoTime();
+                while (source.hasNext()) {
+                    RemoteEvent event = source.next();
+                    if ((orderByTimeReceived ? event.getTimeReceived() : event.getTime()).isAfter(end))
+                        break;
+                    batch.add(event);
+                    if (batch.size() == readBatchSize) {
+                        stats.fetched(batch.size(), System.nanoTime() - fetchStart);
+                        queue.put(batch);
+                        batch = new ArrayList<>(readBatchSize);
+                        fetchStart = System.nanoTime();
                     }
-
-                } catch (Error | Exception e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
                 }
-
-                // context.advanceTime(stop);
-
+                if (!batch.isEmpty()) {
+                    stats.fetched(batch.size(), System.nanoTime() - fetchStart);
+                    queue.put(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             } catch (Error | Exception e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                readerFailure = e;
             }
-
-            finally {
-                if (semaphore != null)
-                    semaphore.release();
-
-                stopLatch.countDown();
-
+            try {
+                queue.put(Collections.<RemoteEvent> emptyList()); // tells the publisher there are no more events
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
 
     }
 
-    private void replayStep(Instant start, Instant stop) {
-        Iterator<RemoteEvent> ite = queryEvents(start, stop).iterator();
-        while (ite.hasNext()) {
-            RemoteEvent event = ite.next();
-            context.publish(event);
-            event.detach();
+    /**
+     The markets listed in replay.markets.  Each symbol must name a known Market, so a typo fails the replay instead
+     of silently replaying nothing for it.
+     */
+    public static List<Market> getReplayMarkets() {
+        List<Market> markets = new ArrayList<>();
+        for (Object symbol : ConfigUtil.combined().getList("replay.markets")) {
+            Market market = Market.forSymbol(symbol.toString());
+            if (market == null)
+                throw new IllegalArgumentException("replay.markets names " + symbol + ", which is not a known market");
+            markets.add(market);
         }
-        context.advanceTime(stop); // advance to the end of the time window to trigger any timer events
+        return markets;
     }
 
-    private List<RemoteEvent> queryEvents(Instant start, Instant stop) {
-        final Market market = Market.forSymbol("OKCOIN_THISWEEK:BTC.USD.THISWEEK");
-        final String timeField = timeFieldForOrdering(orderByTimeReceived);
-        final String tradeQuery = "select t from Trade t where market=?1 and " + timeField + " >= ?2 and " + timeField + " <= ?3";
-        final String bookQuery = "select b from Book b where market=?1 and " + timeField + " >= ?2 and " + timeField + " <= ?3";
-        final List<RemoteEvent> events = new ArrayList<>();
-        events.addAll(EM.queryList(Trade.class, tradeQuery, market, start, stop));
-        events.addAll(EM.queryList(Book.class, bookQuery, market, start, stop));
-        Collections.sort(events, orderByTimeReceived ? timeReceivedComparator : timeHappenedComparator);
-        return events;
+    /**
+     The event types listed in replay.types, each of which must be Trade or Book.  Only these tables are read, so a
+     backtest whose strategy only consumes Trades never scans the Book table.
+     */
+    public static List<String> getReplayTypes() {
+        List<String> types = new ArrayList<>();
+        for (Object type : ConfigUtil.combined().getList("replay.types", Arrays.<Object> asList(Trade.class.getSimpleName(), Book.class.getSimpleName()))) {
+            String name = type.toString().trim();
+            if (!name.equals(Trade.class.getSimpleName()) && !name.equals(Book.class.getSimpleName()))
+                throw new IllegalArgumentException("replay.types names " + type + ", but only Trade and Book can be replayed");
+            types.add(name);
+        }
+        return types;
     }
 
-    private static Instant getEventsStart(boolean orderByRemoteTime) {
-        String timeField = timeFieldForOrdering(orderByRemoteTime);
-        Instant bookStart = EM.queryOne(Instant.class, "select min(" + timeField + ") from Book");
-        Instant tradeStart = EM.queryOne(Instant.class, "select min(" + timeField + ") from Trade");
-        if (bookStart == null && tradeStart == null)
+    private ScheduledExecutorService startStatsLogger() {
+        long interval = ConfigUtil.combined().getLong("replay.stats.interval", 60);
+        if (interval <= 0)
             return null;
-        if (bookStart == null)
-            return tradeStart;
-        if (tradeStart == null)
-            return bookStart;
-        return tradeStart.isBefore(bookStart) ? tradeStart : bookStart;
+        ScheduledExecutorService statsLogger = Executors.newSingleThreadScheduledExecutor();
+        final ReplayStats runStats = stats;
+        statsLogger.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                log.info(runStats.toString());
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+        return statsLogger;
     }
 
-    private static Instant getEventsEnd(boolean orderByTimeReceived) {
-        final String timeField = timeFieldForOrdering(orderByTimeReceived);
-        // queries use max(time)+1 because the end of a range is exclusive, and we want to include the last event
-        Instant bookEnd = EM.queryOne(Instant.class, "select max(" + timeField + ") from Book");
-        Instant tradeEnd = EM.queryOne(Instant.class, "select max(" + timeField + ") from Trade");
-        if (bookEnd == null && tradeEnd == null)
-            return null;
-        if (bookEnd == null)
-            return tradeEnd;
-        if (tradeEnd == null)
-            return bookEnd;
-        return tradeEnd.isAfter(bookEnd) ? tradeEnd : bookEnd;
+    private void publish(RemoteEvent event) {
+        if (warmUpListener != null && !(orderByTimeReceived ? event.getTimeReceived() : event.getTime()).isBefore(warmUpEnd)) {
+            Runnable listener = warmUpListener;
+            warmUpListener = null;
+            log.info("warm-up complete at " + warmUpEnd);
+            listener.run();
+        }
+        long publishStart = System.nanoTime();
+        context.publish(event);
+        stats.published(event.getClass(), orderByTimeReceived ? event.getTimeReceived() : event.getTime(), System.nanoTime() - publishStart);
     }
 
-    private static String timeFieldForOrdering(boolean orderByTimeReceived) {
-        return orderByTimeReceived ? "timeReceived" : "time";
+    private static Instant getEventsStart(boolean orderByTimeReceived) {
+        return MarketDataExtent.getStart(orderByTimeReceived, Trade.class, Book.class);
     }
 
-    private static final Comparator<RemoteEvent> timeReceivedComparator = new Comparator<RemoteEvent>() {
-        @Override
-        public int compare(RemoteEvent event, RemoteEvent event2) {
-            return event.getTimeReceived().compareTo(event2.getTimeReceived());
-        }
-    };
-
-    private static final Comparator<RemoteEvent> timeHappenedComparator = new Comparator<RemoteEvent>() {
-        @Override
-        public int compare(RemoteEvent event, RemoteEvent event2) {
-            return event.getTime().compareTo(event2.getTime());
-        }
-    };
+    private static Instant getEventsEnd(boolean orderByTimeReceived) {
+        return MarketDataExtent.getEnd(orderByTimeReceived, Trade.class, Book.class);
+    }
 
     public class EventTimeManager implements Context.TimeProvider {
         @Override
@@ -340,15 +307,18 @@ public class Replay implements Runnable {
     }
 
     protected static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.replay");
-    private final BlockingQueue<RemoteEvent> queue = new LinkedBlockingQueue<RemoteEvent>();
     private final Interval replayTimeInterval;
     private final Integer dbReaderThreads = ConfigUtil.combined().getInt("db.replay.reader.threads");
-    private final Semaphore semaphore;
-    private static ExecutorService service;
-    private static ExecutorService engines;
+    private Instant warmUpEnd;
+    private volatile Runnable warmUpListener;
+    private String name = "replay";
+    private volatile ReplayStats stats;
+    // set by the reader when the EventSource fails, so the replay fails instead of ending early on partial data
+    private volatile Throwable readerFailure;
+    private EventSource eventSource;
 
     private final Context context;
-    private static final Duration timeStep = Duration.standardDays(1); // how many rows from the DB to gather in one batch
+    private static final int readBatchSize = 256; // events handed from the reader to the publisher at a time
     private final boolean orderByTimeReceived;
 
 }
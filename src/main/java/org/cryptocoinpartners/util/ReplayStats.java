@@ -0,0 +1,175 @@
+package org.cryptocoinpartners.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.joda.time.Interval;
+
+/**
+ Throughput and progress counters for one Replay.  The Replay records how long it spends fetching from its EventSource
+ and publishing into its Context, how many events of each type it has published, and how far through its interval it
+ has got.  All running Replays are registered here so the console can query them with getActive().
+ */
+public class ReplayStats {
+
+    public static List<ReplayStats> getActive() {
+        return Collections.unmodifiableList(active);
+    }
+
+    public ReplayStats(String name, Interval replayTimeInterval) {
+        this.name = name;
+        this.replayTimeInterval = replayTimeInterval;
+    }
+
+    public void started() {
+        wallStart = System.currentTimeMillis();
+        wallEnd = 0;
+        active.add(this);
+    }
+
+    public void finished() {
+        wallEnd = System.currentTimeMillis();
+        active.remove(this);
+    }
+
+    public void fetched(int events, long nanos) {
+        fetchNanos.addAndGet(nanos);
+        fetchedEvents.addAndGet(events);
+        queuedEvents.addAndGet(events);
+    }
+
+    public void published(Class<?> eventType, Instant eventTime, long nanos) {
+        publishNanos.addAndGet(nanos);
+        queuedEvents.decrementAndGet();
+        AtomicLong count = eventCounts.get(eventType.getSimpleName());
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = eventCounts.putIfAbsent(eventType.getSimpleName(), newCount);
+            if (count == null)
+                count = newCount;
+        }
+        count.incrementAndGet();
+        simulatedMillis = eventTime.getMillis();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Interval getReplayTimeInterval() {
+        return replayTimeInterval;
+    }
+
+    public Duration getWallTime() {
+        if (wallStart == 0)
+            return Duration.ZERO;
+        return new Duration((wallEnd == 0 ? System.currentTimeMillis() : wallEnd) - wallStart);
+    }
+
+    /** the time of the last published event, or null if nothing has been published yet */
+    public Instant getSimulatedTime() {
+        return simulatedMillis == 0 ? null : new Instant(simulatedMillis);
+    }
+
+    public Duration getSimulatedElapsed() {
+        if (simulatedMillis == 0)
+            return Duration.ZERO;
+        return new Duration(Math.max(0, simulatedMillis - replayTimeInterval.getStartMillis()));
+    }
+
+    public long getPublishedEvents() {
+        long total = 0;
+        for (AtomicLong count : eventCounts.values())
+            total += count.get();
+        return total;
+    }
+
+    /** published events by simple class name */
+    public Map<String, Long> getEventCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : eventCounts.entrySet())
+            counts.put(entry.getKey(), entry.getValue().get());
+        return counts;
+    }
+
+    public double getEventsPerSecond() {
+        long wallMillis = getWallTime().getMillis();
+        return wallMillis == 0 ? 0 : getPublishedEvents() * 1000d / wallMillis;
+    }
+
+    /** how many milliseconds of simulated time pass per millisecond of wall time */
+    public double getSpeedup() {
+        long wallMillis = getWallTime().getMillis();
+        return wallMillis == 0 ? 0 : getSimulatedElapsed().getMillis() / (double) wallMillis;
+    }
+
+    public Duration getFetchTime() {
+        return new Duration(fetchNanos.get() / 1000000);
+    }
+
+    public Duration getPublishTime() {
+        return new Duration(publishNanos.get() / 1000000);
+    }
+
+    public long getFetchedEvents() {
+        return fetchedEvents.get();
+    }
+
+    /** events read from the EventSource but not yet published */
+    public int getQueuedEvents() {
+        return queuedEvents.get();
+    }
+
+    public double getProgress() {
+        long length = replayTimeInterval.toDurationMillis();
+        return length == 0 ? 1 : Math.min(1, getSimulatedElapsed().getMillis() / (double) length);
+    }
+
+    /** estimated wall time remaining at the current speed, or null if there is no estimate yet */
+    public Duration getEta() {
+        double speedup = getSpeedup();
+        if (speedup == 0)
+            return null;
+        long remaining = replayTimeInterval.getEndMillis() - replayTimeInterval.getStartMillis() - getSimulatedElapsed().getMillis();
+        return new Duration((long) (Math.max(0, remaining) / speedup));
+    }
+
+    @Override
+    public String toString() {
+        Duration eta = getEta();
+        return String.format("%s: %.1f%% simulated=%s events=%d (%.0f/s) %s speedup=%.0fx fetch=%ss publish=%ss queued=%d eta=%s", name,
+                getProgress() * 100, getSimulatedTime(), getPublishedEvents(), getEventsPerSecond(), getEventCounts(), getSpeedup(), getFetchTime()
+                        .getStandardSeconds(), getPublishTime().getStandardSeconds(), getQueuedEvents(), eta == null ? "?" : eta
+                        .getStandardSeconds() + "s");
+    }
+
+    public static List<String> describeActive() {
+        List<String> descriptions = new ArrayList<>();
+        for (ReplayStats stats : active)
+            descriptions.add(stats.toString());
+        return descriptions;
+    }
+
+    private static final List<ReplayStats> active = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final Interval replayTimeInterval;
+    private volatile long wallStart;
+    private volatile long wallEnd;
+    private volatile long simulatedMillis;
+    private final ConcurrentHashMap<String, AtomicLong> eventCounts = new ConcurrentHashMap<>();
+    private final AtomicLong fetchNanos = new AtomicLong();
+    private final AtomicLong publishNanos = new AtomicLong();
+    private final AtomicLong fetchedEvents = new AtomicLong();
+    private final AtomicInteger queuedEvents = new AtomicInteger();
+
+}
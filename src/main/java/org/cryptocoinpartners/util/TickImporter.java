@@ -0,0 +1,372 @@
+package org.cryptocoinpartners.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import javax.inject.Inject;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.BookFactory;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.MarketData;
+import org.cryptocoinpartners.schema.MarketDataExtent;
+import org.cryptocoinpartners.schema.TradeFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Loads tick CSV files, in the format read by CsvEventSource, straight into the Book and Trade tables.  The calling
+ * thread reads raw rows in chunks, a pool of parser threads turns the chunks into Books and Trades, and a pool of writer
+ * threads inserts them through StatelessSessions, which skip the persistence context, the second-level cache and the
+ * entity callbacks, in transactions of batchSize rows sent as JDBC batches.  Progress is logged every
+ * db.import.progress.interval seconds.
+ * <p>
+ * Imported Books are saved as snapshots with all of their bids and asks rather than as diffs against a parent, so the
+ * rows of a Market may be parsed and written in any order.  Rows which cannot be parsed are logged and skipped, and a
+ * batch which cannot be written is logged and counted as failed without stopping the import.  Each batch is inserted
+ * one entity class at a time, so the JDBC batch is not flushed every time the rows switch between Books and Trades.
+ * <p>
+ * The importer does not go through the RecentKeyCache which deduplicates live market data, because every imported row
+ * is older than this process and would need a query of its own.  Instead each chunk asks once per Market for the remote
+ * keys already stored between its first and last times and skips those rows, so re-running an import, or importing
+ * files which overlap, does not duplicate rows.  A chunk whose lookup fails is logged and counted as failed, and the
+ * parser goes on to the next chunk.
+ */
+public class TickImporter {
+
+    @Inject
+    public TickImporter(TradeFactory tradeFactory, BookFactory bookFactory) {
+        this.tradeFactory = tradeFactory;
+        this.bookFactory = bookFactory;
+    }
+
+    /** @return the number of rows written */
+    public long importFiles(List<String> filenames, int parseThreads, int writerThreads, int batchSize) throws IOException, InterruptedException {
+        this.batchSize = Math.max(1, batchSize);
+        parseThreads = Math.max(1, parseThreads);
+        writerThreads = Math.max(1, writerThreads);
+        chunks = new ArrayBlockingQueue<>(parseThreads * 4);
+        parsed = new ArrayBlockingQueue<>(writerThreads * 4);
+        CountDownLatch parsersDone = new CountDownLatch(parseThreads);
+        CountDownLatch writersDone = new CountDownLatch(writerThreads);
+        for (int i = 0; i < parseThreads; i++)
+            start(new ParserRunnable(parsersDone), "import parser " + i);
+        for (int i = 0; i < writerThreads; i++)
+            start(new WriterRunnable(writersDone), "import writer " + i);
+        Thread progress = start(new ProgressRunnable(), "import progress");
+
+        long startTime = System.currentTimeMillis();
+        try {
+            for (String filename : filenames)
+                read(filename);
+        } finally {
+            for (int i = 0; i < parseThreads; i++)
+                chunks.put(END_OF_ROWS);
+            parsersDone.await();
+            for (int i = 0; i < writerThreads; i++)
+                parsed.put(Collections.<MarketData> emptyList());
+            writersDone.await();
+            progress.interrupt();
+            MarketDataExtent.flush();
+        }
+        long seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+        log.info("Imported " + written.get() + " rows from " + filenames.size() + " files in " + seconds + "s (" + written.get() / seconds
+                + " rows/s), " + badRows.get() + " rows could not be parsed, " + duplicates.get() + " were already stored and " + failed.get()
+                + " could not be written");
+        return written.get();
+    }
+
+    private void read(String filename) throws IOException, InterruptedException {
+        File file = new File(filename);
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        synchronized (progressLock) {
+            currentFile = filename;
+            currentFileLength = file.length();
+            currentFileCounter = counter;
+        }
+        CSVReader reader = new CSVReader(new InputStreamReader(counter, Charsets.UTF_8), ',', '\"', 1);
+        try {
+            List<String[]> rows = new ArrayList<>(CHUNK_SIZE);
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                rows.add(row);
+                if (rows.size() == CHUNK_SIZE) {
+                    chunks.put(new Chunk(filename, rows));
+                    rows = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            if (!rows.isEmpty())
+                chunks.put(new Chunk(filename, rows));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private List<MarketData> parse(Chunk chunk) {
+        List<MarketData> events = new ArrayList<>(chunk.rows.size() * 2);
+        for (String[] row : chunk.rows) {
+            try {
+                Market market = marketFor(row);
+                Book book = CsvEventSource.bookFor(row, market, bookFactory).buildSnapshot();
+                book.encodeBlobs();
+                events.add(book);
+                events.add(CsvEventSource.tradeFor(row, market, tradeFactory));
+            } catch (Exception e) {
+                if (badRows.incrementAndGet() % 1000 == 1)
+                    log.warn("Skipping row of " + chunk.filename + " which could not be parsed: " + (row.length > 5 ? row[5] : ""), e);
+            }
+        }
+        try {
+            dropImported(events);
+        } catch (Exception e) {
+            // without the stored keys the chunk could duplicate rows, so it is not written
+            failed.addAndGet(events.size());
+            log.error("Could not look up the rows of " + chunk.filename + " which are already stored, skipping " + events.size() + " rows", e);
+            events.clear();
+        }
+        return events;
+    }
+
+    /** removes the events whose remote keys are already stored for their Market and type within the events' times */
+    private void dropImported(List<MarketData> events) {
+        Map<Market, Instant[]> spans = new HashMap<>();
+        for (MarketData event : events) {
+            Instant[] span = spans.get(event.getMarket());
+            if (span == null)
+                spans.put(event.getMarket(), new Instant[] { event.getTime(), event.getTime() });
+            else if (event.getTime().isBefore(span[0]))
+                span[0] = event.getTime();
+            else if (event.getTime().isAfter(span[1]))
+                span[1] = event.getTime();
+        }
+        Map<Market, Set<String>> storedTrades = new HashMap<>();
+        Map<Market, Set<String>> storedBooks = new HashMap<>();
+        for (Map.Entry<Market, Instant[]> span : spans.entrySet()) {
+            storedTrades.put(span.getKey(), new HashSet<>(EM.queryList(String.class,
+                    "select t.remoteKey from Trade t where t.market=?1 and t.time>=?2 and t.time<=?3", span.getKey(), span.getValue()[0],
+                    span.getValue()[1])));
+            storedBooks.put(span.getKey(), new HashSet<>(EM.queryList(String.class,
+                    "select b.remoteKey from Book b where b.market=?1 and b.time>=?2 and b.time<=?3", span.getKey(), span.getValue()[0],
+                    span.getValue()[1])));
+        }
+        for (Iterator<MarketData> iterator = events.iterator(); iterator.hasNext();) {
+            MarketData event = iterator.next();
+            Set<String> stored = (event instanceof Book ? storedBooks : storedTrades).get(event.getMarket());
+            if (event.getRemoteKey() != null && stored.contains(event.getRemoteKey())) {
+                iterator.remove();
+                duplicates.incrementAndGet();
+            }
+        }
+    }
+
+    // Exchange and Market creation is not safe to race, so the parsers share one lookup
+    private Market marketFor(String[] row) {
+        String key = row[1] + ':' + row[2] + '.' + row[3] + '.' + row[4];
+        synchronized (markets) {
+            Market market = markets.get(key);
+            if (market == null) {
+                market = CsvEventSource.marketFor(row);
+                markets.put(key, market);
+            }
+            return market;
+        }
+    }
+
+    private void write(List<MarketData> rows) {
+        StatelessSession session = EM.openStatelessSession();
+        Transaction transaction = null;
+        Lock recording = MarketDataExtent.recording();
+        recording.lock();
+        try {
+            transaction = session.beginTransaction();
+            for (List<MarketData> group : byClass(rows))
+                for (MarketData row : group)
+                    session.insert(row);
+            transaction.commit();
+            written.addAndGet(rows.size());
+            for (MarketData row : rows)
+                MarketDataExtent.record(row);
+        } catch (Exception e) {
+            if (transaction != null && transaction.isActive())
+                transaction.rollback();
+            failed.addAndGet(rows.size());
+            log.error("Could not write a batch of " + rows.size() + " imported rows", e);
+        } finally {
+            recording.unlock();
+            session.close();
+        }
+    }
+
+    private static Collection<List<MarketData>> byClass(List<MarketData> rows) {
+        Map<Class<?>, List<MarketData>> groups = new LinkedHashMap<>();
+        for (MarketData row : rows) {
+            List<MarketData> group = groups.get(row.getClass());
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(row.getClass(), group);
+            }
+            group.add(row);
+        }
+        return groups.values();
+    }
+
+    private Thread start(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static class Chunk {
+
+        private Chunk(String filename, List<String[]> rows) {
+            this.filename = filename;
+            this.rows = rows;
+        }
+
+        private final String filename;
+        private final List<String[]> rows;
+
+    }
+
+    private class ParserRunnable implements Runnable {
+
+        private ParserRunnable(CountDownLatch done) {
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Chunk chunk;
+                while ((chunk = chunks.take()) != END_OF_ROWS) {
+                    List<MarketData> events;
+                    try {
+                        events = parse(chunk);
+                    } catch (Exception | Error e) {
+                        // a parser which died would leave the reader blocked on a full queue of chunks
+                        failed.addAndGet(chunk.rows.size());
+                        log.error("Could not parse a chunk of " + chunk.rows.size() + " rows of " + chunk.filename, e);
+                        continue;
+                    }
+                    parsedCount.addAndGet(events.size());
+                    // an empty list tells the writers to stop
+                    if (!events.isEmpty())
+                        parsed.put(events);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private final CountDownLatch done;
+
+    }
+
+    private class WriterRunnable implements Runnable {
+
+        private WriterRunnable(CountDownLatch done) {
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            List<MarketData> batch = new ArrayList<>(batchSize);
+            try {
+                List<MarketData> events;
+                while (!(events = parsed.take()).isEmpty()) {
+                    batch.addAll(events);
+                    if (batch.size() >= batchSize) {
+                        write(batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+                if (!batch.isEmpty())
+                    write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private final CountDownLatch done;
+
+    }
+
+    private class ProgressRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            long interval = ConfigUtil.combined().getLong("db.import.progress.interval", 10);
+            long lastWritten = 0;
+            try {
+                while (true) {
+                    TimeUnit.SECONDS.sleep(interval);
+                    long total = written.get();
+                    String file;
+                    synchronized (progressLock) {
+                        file = currentFile == null ? "" : String.format(", reading %s %.0f%%", currentFile, currentFileLength == 0 ? 100d
+                                : 100d * currentFileCounter.getCount() / currentFileLength);
+                    }
+                    log.info(String.format("Imported %d rows (%d rows/s), %d parsed, %d bad, %d already stored, %d failed%s", total,
+                            (total - lastWritten) / interval, parsedCount.get(), badRows.get(), duplicates.get(), failed.get(), file));
+                    lastWritten = total;
+                }
+            } catch (InterruptedException e) {
+                // the import has finished
+            }
+        }
+
+    }
+
+    private static final int CHUNK_SIZE = 1000;
+    private static final Chunk END_OF_ROWS = new Chunk(null, Collections.<String[]> emptyList());
+    private static Logger log = LoggerFactory.getLogger("org.cryptocoinpartners.persist");
+
+    private final TradeFactory tradeFactory;
+    private final BookFactory bookFactory;
+    private final Map<String, Market> markets = new HashMap<>();
+    private final Object progressLock = new Object();
+    private final AtomicLong parsedCount = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong badRows = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private int batchSize;
+    private BlockingQueue<Chunk> chunks;
+    private BlockingQueue<List<MarketData>> parsed;
+    private String currentFile;
+    private long currentFileLength;
+    private CountingInputStream currentFileCounter;
+
+}
@@ -0,0 +1,159 @@
+package org.cryptocoinpartners.module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+
+import org.cryptocoinpartners.schema.Book;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Offer;
+import org.cryptocoinpartners.schema.Portfolio;
+import org.cryptocoinpartners.schema.SpecificOrder;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+/**
+ * Checks the price-time priority, offer depletion and queue position of MockMatchingEngine.
+ */
+public class MockMatchingEngineTest {
+
+    @Test
+    public void fifoWithinLevel() {
+        MockMatchingEngine engine = new MockMatchingEngine(0, 0, false, 1);
+        SpecificOrder first = bid(100, 5);
+        SpecificOrder second = bid(100, 5);
+        engine.add(first, at(0));
+        engine.add(second, at(0));
+
+        List<MockMatchingEngine.Match> matches = engine.match(market, at(1), asks(offer(100, 5)), none(), false);
+        assertEquals(1, matches.size());
+        assertSame(first, matches.get(0).order);
+        assertEquals(5, matches.get(0).volumeCount);
+        assertTrue(matches.get(0).filled);
+
+        matches = engine.match(market, at(2), asks(offer(100, 5)), none(), false);
+        assertEquals(1, matches.size());
+        assertSame(second, matches.get(0).order);
+    }
+
+    @Test
+    public void offerDepletesAcrossRestingOrders() {
+        MockMatchingEngine engine = new MockMatchingEngine(0, 0, false, 1);
+        SpecificOrder better = bid(101, 3);
+        SpecificOrder worse = bid(100, 4);
+        engine.add(worse, at(0));
+        engine.add(better, at(0));
+
+        // one offer of 5 fills the better price first and only has 2 left for the worse one
+        List<MockMatchingEngine.Match> matches = engine.match(market, at(1), asks(offer(99, 5)), none(), false);
+        assertEquals(2, matches.size());
+        assertSame(better, matches.get(0).order);
+        assertEquals(3, matches.get(0).volumeCount);
+        assertTrue(matches.get(0).filled);
+        assertSame(worse, matches.get(1).order);
+        assertEquals(2, matches.get(1).volumeCount);
+        assertFalse(matches.get(1).filled);
+
+        // the worse order rests with what the offer could not fill
+        matches = engine.match(market, at(2), asks(offer(100, 10)), none(), false);
+        assertEquals(1, matches.size());
+        assertSame(worse, matches.get(0).order);
+        assertEquals(2, matches.get(0).volumeCount);
+        assertTrue(matches.get(0).filled);
+    }
+
+    @Test
+    public void tradesConsumeQueueAhead() {
+        MockMatchingEngine engine = new MockMatchingEngine(0, 0, true, 1);
+        engine.observe(book(100, 10, 101, 10));
+        SpecificOrder order = bid(100, 2);
+        engine.add(order, at(0));
+
+        // the first 10 traded at our price belong to the volume shown ahead of us
+        assertTrue(engine.match(market, at(1), asks(offer(100, 6)), none(), true).isEmpty());
+        List<MockMatchingEngine.Match> matches = engine.match(market, at(2), asks(offer(100, 6)), none(), true);
+        assertEquals(1, matches.size());
+        assertSame(order, matches.get(0).order);
+        assertEquals(2, matches.get(0).volumeCount);
+        assertTrue(matches.get(0).filled);
+    }
+
+    @Test
+    public void tradeThroughPriceSkipsQueue() {
+        MockMatchingEngine engine = new MockMatchingEngine(0, 0, true, 1);
+        engine.observe(book(100, 10, 101, 10));
+        SpecificOrder order = bid(100, 2);
+        engine.add(order, at(0));
+
+        List<MockMatchingEngine.Match> matches = engine.match(market, at(1), asks(offer(99, 1)), none(), true);
+        assertEquals(1, matches.size());
+        assertEquals(1, matches.get(0).volumeCount);
+    }
+
+    @Test
+    public void cancelInFlightCanStillFill() {
+        MockMatchingEngine engine = new MockMatchingEngine(10, 0, false, 1);
+        SpecificOrder order = bid(100, 5);
+        engine.add(order, at(0));
+        assertTrue(engine.cancel(order, at(20)));
+
+        // the cancel reaches the exchange at 30, so until then the order rests and fills
+        assertTrue(engine.dropCancelled(market, at(29)).isEmpty());
+        List<MockMatchingEngine.Match> matches = engine.match(market, at(29), asks(offer(100, 2)), none(), false);
+        assertEquals(1, matches.size());
+        assertEquals(2, matches.get(0).volumeCount);
+
+        assertEquals(Collections.singletonList(order), engine.dropCancelled(market, at(30)));
+        assertTrue(engine.match(market, at(31), asks(offer(100, 5)), none(), false).isEmpty());
+        assertFalse(engine.cancel(order, at(31)));
+    }
+
+    @Test
+    public void filledOrderIsNotReportedCancelled() {
+        MockMatchingEngine engine = new MockMatchingEngine(10, 0, false, 1);
+        SpecificOrder order = bid(100, 5);
+        engine.add(order, at(0));
+        engine.cancel(order, at(20));
+
+        assertTrue(engine.match(market, at(25), asks(offer(100, 5)), none(), false).get(0).filled);
+        assertTrue(engine.dropCancelled(market, at(30)).isEmpty());
+    }
+
+    private static SpecificOrder bid(long priceCount, long volumeCount) {
+        SpecificOrder order = new SpecificOrder(at(0), (Portfolio) null, market, volumeCount);
+        order.setLimitPriceCount(priceCount);
+        return order;
+    }
+
+    private static Offer offer(long priceCount, long volumeCount) {
+        return new Offer(market, at(0), at(0), priceCount, volumeCount);
+    }
+
+    private static List<Offer> asks(Offer offer) {
+        return Collections.singletonList(offer);
+    }
+
+    private static List<Offer> none() {
+        return Collections.emptyList();
+    }
+
+    private static Book book(long bidCount, long bidVolume, long askCount, long askVolume) {
+        Book.Builder builder = new Book.Builder();
+        builder.start(at(0), at(0), null, market);
+        builder.addBid(BigDecimal.valueOf(bidCount).movePointLeft(2), BigDecimal.valueOf(bidVolume));
+        builder.addAsk(BigDecimal.valueOf(askCount).movePointLeft(2), BigDecimal.valueOf(askVolume));
+        return builder.build();
+    }
+
+    private static Instant at(long millis) {
+        return new Instant(millis);
+    }
+
+    private static final Market market = TestMarket.create();
+
+}
@@ -0,0 +1,83 @@
+package org.cryptocoinpartners.module;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.cryptocoinpartners.enumeration.OrderState;
+import org.cryptocoinpartners.enumeration.PositionEffect;
+import org.cryptocoinpartners.schema.Fill;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Portfolio;
+import org.cryptocoinpartners.schema.SpecificOrder;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+/**
+ * Checks how RiskEngine's reservations follow an order as it fills and closes.
+ */
+public class RiskEngineTest {
+
+    @Test
+    public void partialFillShrinksReservation() {
+        RiskEngine engine = engine("risk.position.max", 10);
+        SpecificOrder order = order(8, PositionEffect.OPEN);
+        assertNull(engine.check(order, 0));
+        engine.fill(fill(order, 5));
+
+        // the 5 filled moved from the reservation to the position, leaving room for 2 more
+        assertNotNull(engine.check(order(3, PositionEffect.OPEN), 0));
+        assertNull(engine.check(order(2, PositionEffect.OPEN), 0));
+    }
+
+    @Test
+    public void closeReleasesUnfilledReservation() {
+        RiskEngine engine = engine("risk.position.max", 10);
+        SpecificOrder order = order(8, PositionEffect.OPEN);
+        assertNull(engine.check(order, 0));
+        engine.fill(fill(order, 5));
+        engine.update(order, OrderState.CANCELLED);
+
+        // only the 3 left unfilled are released, so the position of 5 still counts
+        assertNull(engine.check(order(5, PositionEffect.OPEN), 0));
+        assertNotNull(engine.check(order(1, PositionEffect.OPEN), 0));
+    }
+
+    @Test
+    public void closingOrdersAreExempt() {
+        RiskEngine engine = engine("risk.orders.open.max", 1);
+        SpecificOrder order = order(8, PositionEffect.OPEN);
+        assertNull(engine.check(order, 0));
+        engine.fill(fill(order, 8));
+        engine.update(order, OrderState.FILLED);
+
+        // an exit passes and takes no open order slot, while an opening order still does
+        SpecificOrder exit = order(-8, PositionEffect.CLOSE);
+        assertNull(engine.check(exit, 0));
+        assertNull(engine.check(order(1, PositionEffect.OPEN), 0));
+        assertNotNull(engine.check(order(1, PositionEffect.OPEN), 0));
+    }
+
+    private static RiskEngine engine(String limit, Object value) {
+        BaseConfiguration config = new BaseConfiguration();
+        config.addProperty(limit, value);
+        return new RiskEngine(config);
+    }
+
+    private SpecificOrder order(long volumeCount, PositionEffect positionEffect) {
+        SpecificOrder order = new SpecificOrder(new Instant(0), portfolio, market, volumeCount);
+        order.setLimitPriceCount(10000);
+        order.setPositionEffect(positionEffect);
+        return order;
+    }
+
+    private static Fill fill(SpecificOrder order, long volumeCount) {
+        return new Fill(order, new Instant(1), new Instant(1), market, order.getLimitPrice().getCount(), volumeCount, "fill");
+    }
+
+    // without positions, transactions or the database
+    private final Portfolio portfolio = new Portfolio();
+
+    private static final Market market = TestMarket.create();
+
+}
@@ -0,0 +1,60 @@
+package org.cryptocoinpartners.module;
+
+import org.cryptocoinpartners.schema.Asset;
+import org.cryptocoinpartners.schema.Listing;
+import org.cryptocoinpartners.schema.Market;
+
+/**
+ * A Market for the module tests which needs no Listing, Exchange or database: prices are in hundredths, volumes in
+ * whole units, and contracts are for one unit at a margin of one.
+ */
+class TestMarket {
+
+    static Market create() {
+        return new Market() {
+            @Override
+            public double getPriceBasis() {
+                return 0.01;
+            }
+
+            @Override
+            public double getVolumeBasis() {
+                return 1;
+            }
+
+            @Override
+            public double getContractSize() {
+                return 1;
+            }
+
+            @Override
+            public int getMargin() {
+                return 1;
+            }
+
+            @Override
+            public Asset getBase() {
+                return null;
+            }
+
+            @Override
+            public Asset getTradedCurrency() {
+                return null;
+            }
+
+            @Override
+            public String getSymbol() {
+                return "MOCK:TEST";
+            }
+
+            @Override
+            public Listing getListing() {
+                return null;
+            }
+        };
+    }
+
+    private TestMarket() {
+    }
+
+}
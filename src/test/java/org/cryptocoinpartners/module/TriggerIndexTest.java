@@ -0,0 +1,182 @@
+package org.cryptocoinpartners.module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+
+import org.cryptocoinpartners.enumeration.ExecutionInstruction;
+import org.cryptocoinpartners.enumeration.FillType;
+import org.cryptocoinpartners.schema.Amount;
+import org.cryptocoinpartners.schema.DecimalAmount;
+import org.cryptocoinpartners.schema.GeneralOrder;
+import org.cryptocoinpartners.schema.Market;
+import org.cryptocoinpartners.schema.Order;
+import org.cryptocoinpartners.schema.Portfolio;
+import org.cryptocoinpartners.util.Remainder;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+/**
+ * Checks that TriggerIndex fires each kind of trigger order at the same bid and ask prices as the scan of every trigger
+ * order which BaseOrderService.updateRestingOrders() used before the index.
+ */
+public class TriggerIndexTest {
+
+    @Test
+    public void bidStopMaker() {
+        check(true, true, ExecutionInstruction.MAKER);
+    }
+
+    @Test
+    public void bidStopTaker() {
+        check(true, true, ExecutionInstruction.TAKER);
+    }
+
+    @Test
+    public void bidTargetMaker() {
+        check(true, false, ExecutionInstruction.MAKER);
+    }
+
+    @Test
+    public void bidTargetTaker() {
+        check(true, false, ExecutionInstruction.TAKER);
+    }
+
+    @Test
+    public void askStopMaker() {
+        check(false, true, ExecutionInstruction.MAKER);
+    }
+
+    @Test
+    public void askStopTaker() {
+        check(false, true, ExecutionInstruction.TAKER);
+    }
+
+    @Test
+    public void askTargetMaker() {
+        check(false, false, ExecutionInstruction.MAKER);
+    }
+
+    @Test
+    public void askTargetTaker() {
+        check(false, false, ExecutionInstruction.TAKER);
+    }
+
+    @Test
+    public void triggeredOrderIsRemoved() {
+        Order order = order(true, true, ExecutionInstruction.MAKER);
+        TriggerIndex index = new TriggerIndex();
+        index.add(order);
+        assertEquals(1, index.popTriggered(market, LEVEL, LEVEL + SPREAD).size());
+        assertTrue(!index.contains(order));
+        assertTrue(index.popTriggered(market, LEVEL, LEVEL + SPREAD).isEmpty());
+    }
+
+    @Test
+    public void keyHoldsOneOrder() {
+        Order parent = order(true, true, ExecutionInstruction.MAKER);
+        Order first = order(true, true, ExecutionInstruction.MAKER);
+        Order second = order(false, false, ExecutionInstruction.TAKER);
+        TriggerIndex index = new TriggerIndex();
+        assertEquals(null, index.add(parent, first));
+        assertEquals(first, index.add(parent, second));
+        assertTrue(!index.contains(first));
+        assertTrue(index.orders(market, true).isEmpty());
+        assertEquals(Collections.singletonList(second), index.orders(market, false));
+        assertEquals(Collections.singletonList(second), index.orders(null, false));
+
+        // re-indexing at a new price keeps the key, and removing the order frees it
+        index.add(second);
+        index.remove(second);
+        assertEquals(null, index.add(parent, first));
+    }
+
+    @Test
+    public void trailingStopRatchets() {
+        // a MAKER bid stop trails the bid by 5 counts and only ever moves down
+        GeneralOrder order = new GeneralOrder(new Instant(0), (Portfolio) null, market, BigDecimal.ONE, FillType.TRAILING_STOP_LIMIT);
+        order.setExecutionInstruction(ExecutionInstruction.MAKER);
+        order.setTrailingStopPrice(DecimalAmount.of(BigDecimal.valueOf(5).movePointLeft(2)));
+        TriggerIndex index = new TriggerIndex();
+        index.add(order);
+
+        index.trail(market, LEVEL, LEVEL + SPREAD);
+        assertEquals(Collections.singletonMap((Order) order, LEVEL + 5), index.takeMoved());
+        index.trail(market, LEVEL + 2, LEVEL + 2 + SPREAD);
+        assertTrue(index.takeMoved().isEmpty());
+        index.trail(market, LEVEL - 2, LEVEL - 2 + SPREAD);
+        assertEquals(Long.valueOf(LEVEL + 3), index.takeMoved(order));
+
+        // the stop triggers at its new level, and its last move is kept for the caller to write to the order
+        assertTrue(index.popTriggered(market, LEVEL + 2, LEVEL + 2 + SPREAD).isEmpty());
+        index.trail(market, LEVEL - 3, LEVEL - 3 + SPREAD);
+        assertEquals(1, index.popTriggered(market, LEVEL + 2, LEVEL + 2 + SPREAD).size());
+        assertEquals(Long.valueOf(LEVEL + 2), index.takeMoved(order));
+    }
+
+    @Test
+    public void removedOrderForgetsTrailingStop() {
+        GeneralOrder order = new GeneralOrder(new Instant(0), (Portfolio) null, market, BigDecimal.ONE.negate(), FillType.TRAILING_STOP_LIMIT);
+        order.setExecutionInstruction(ExecutionInstruction.MAKER);
+        order.setTrailingStopPrice(DecimalAmount.of(BigDecimal.valueOf(5).movePointLeft(2)));
+        TriggerIndex index = new TriggerIndex();
+        index.add(order);
+        index.trail(market, LEVEL, LEVEL + SPREAD);
+        index.remove(order);
+        assertTrue(index.takeMoved().isEmpty());
+    }
+
+    /** sweeps the bid through the trigger level, with the ask SPREAD counts above it, comparing the index to the scan */
+    private void check(boolean bid, boolean stop, ExecutionInstruction instruction) {
+        int fired = 0;
+        for (long bidCount = LEVEL - 2 * SPREAD; bidCount <= LEVEL + 2 * SPREAD; bidCount++) {
+            long askCount = bidCount + SPREAD;
+            Order order = order(bid, stop, instruction);
+            TriggerIndex index = new TriggerIndex();
+            index.add(order);
+            boolean scanned = scanTriggers(order, bidCount, askCount);
+            boolean indexed = index.popTriggered(market, bidCount, askCount).contains(order);
+            assertEquals((bid ? "bid " : "ask ") + (stop ? "stop " : "target ") + instruction + " at bid " + bidCount + " ask " + askCount, scanned,
+                    indexed);
+            if (indexed)
+                fired++;
+        }
+        // the sweep must cross the level, so that both outcomes were compared
+        assertTrue(fired > 0 && fired < 4 * SPREAD + 1);
+    }
+
+    /** the trigger test from the scan in updateRestingOrders() before TriggerIndex */
+    private static boolean scanTriggers(Order order, long bidCount, long askCount) {
+        if (order.isBid()) {
+            long triggerPrice = order.getExecutionInstruction() == ExecutionInstruction.MAKER ? bidCount : askCount;
+            return (order.getStopPrice() != null && triggerPrice >= count(order.getStopPrice()))
+                    || (order.getTargetPrice() != null && triggerPrice <= count(order.getTargetPrice()));
+        }
+        long triggerPrice = order.getExecutionInstruction() == ExecutionInstruction.MAKER ? askCount : bidCount;
+        return (order.getStopPrice() != null && triggerPrice <= count(order.getStopPrice()))
+                || (order.getTargetPrice() != null && triggerPrice >= count(order.getTargetPrice()));
+    }
+
+    private static long count(Amount price) {
+        return price.toBasis(market.getPriceBasis(), Remainder.ROUND_EVEN).getCount();
+    }
+
+    private static Order order(boolean bid, boolean stop, ExecutionInstruction instruction) {
+        GeneralOrder order = new GeneralOrder(new Instant(0), (Portfolio) null, market, bid ? BigDecimal.ONE : BigDecimal.ONE.negate(), FillType.STOP_LIMIT);
+        order.setExecutionInstruction(instruction);
+        DecimalAmount price = DecimalAmount.of(BigDecimal.valueOf(LEVEL).movePointLeft(2));
+        if (stop)
+            order.setStopPrice(price);
+        else
+            order.setTargetPrice(price);
+        return order;
+    }
+
+    private static final long LEVEL = 100;
+    private static final long SPREAD = 3;
+
+    private static final Market market = TestMarket.create();
+
+}